@@ -0,0 +1,97 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading file content through {@link ContentHolder}: streamed from disk, read into pooled buffers
+ * (read twice, like a markable stream is read by the storage client) and memory mapped.
+ * The file is generated once and stays in the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentHolderBenchmark {
+	@Param({ "1048576", "33554432" })
+	long size;
+
+	File folder;
+	File file;
+	BufferPool heapBufferPool;
+	BufferPool directBufferPool;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		folder = Fixtures.createTempFolder("azureupload-content");
+		file = Fixtures.file(folder, size);
+		heapBufferPool = new BufferPool(2 * size, UploadSettings.DEFAULT_IN_MEMORY_BUFFER_SIZE, false);
+		directBufferPool = new BufferPool(2 * size, UploadSettings.DEFAULT_IN_MEMORY_BUFFER_SIZE, true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Fixtures.delete(folder);
+	}
+
+	private static long read(ContentHolder contentHolder, int times) throws IOException {
+		long read = 0;
+		try {
+			for(int i = 0; i < times; ++i) {
+				try (InputStream is = contentHolder.getInputStream()) {
+					read += IOUtils.copyLarge(is, NullOutputStream.NULL_OUTPUT_STREAM);
+				}
+			}
+		} finally {
+			contentHolder.close();
+		}
+		return read;
+	}
+
+	@Benchmark
+	public long streaming() throws IOException {
+		return read(new ContentHolder(file, size, null), 1);
+	}
+
+	@Benchmark
+	public long streamingTwice() throws IOException {
+		return read(new ContentHolder(file, size, null), 2);
+	}
+
+	@Benchmark
+	public long inMemoryHeapTwice() throws IOException {
+		return read(new ContentHolder(file, size, heapBufferPool), 2);
+	}
+
+	@Benchmark
+	public long inMemoryDirectTwice() throws IOException {
+		return read(new ContentHolder(file, size, directBufferPool), 2);
+	}
+
+	@Benchmark
+	public long mappedTwice() throws IOException {
+		ContentHolder contentHolder = new ContentHolder(file, size, null);
+		contentHolder.setMappedWindowSize(UploadSettings.DEFAULT_MAPPED_WINDOW_SIZE);
+		return read(contentHolder, 2);
+	}
+}
@@ -0,0 +1,142 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+/**
+ * Generates benchmark fixtures in a temporary folder, so benchmarks neither need network nor prepared data.
+ * Generated data depends only on the seed, so runs are comparable.
+ */
+public class Fixtures {
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	static final long SEED = 20150314L;
+	static final long BASE_DATE = 1420070400000L;
+
+	public static File createTempFolder(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	public static void delete(File file) {
+		FileUtils.deleteQuietly(file);
+	}
+
+	public static ObjectWriter csvObjectWriter() {
+		CsvMapper mapper = new CsvMapper();
+		CsvSchema schema = mapper.schemaFor(UploadedFileLogItem.class).withoutHeader();
+		return mapper.writer(schema);
+	}
+
+	public static ObjectReader csvObjectReader() {
+		CsvMapper mapper = new CsvMapper();
+		CsvSchema schema = mapper.schemaFor(UploadedFileLogItem.class).withoutHeader();
+		return mapper.reader(UploadedFileLogItem.class).with(schema);
+	}
+
+	public static String path(int index) {
+		return String.format("/data/source/%03d/%03d/file-%08d.dat", index % 997, index % 101, index);
+	}
+
+	public static long size(int index) {
+		return 1024L + (index * 7919L) % (16 * 1024 * 1024);
+	}
+
+	public static long lastModification(int index) {
+		return BASE_DATE + index * 1000L;
+	}
+
+	public static byte[] hash(int index) {
+		byte[] hash = new byte[16];
+		new Random(SEED + index).nextBytes(hash);
+		return hash;
+	}
+
+	public static UploadedFileLogItem logItem(int index) {
+		UploadedFileLogItem item = new UploadedFileLogItem();
+		item.setPath(path(index));
+		item.setSize(size(index));
+		item.setLast_modification(lastModification(index));
+		item.setUploaded(lastModification(index) + 60000);
+		item.setHash(Hex.encodeHexString(hash(index)));
+		return item;
+	}
+
+	public static UploadLogIndex uploadLogIndex(int itemsCount) {
+		UploadLogIndex index = new UploadLogIndex();
+		index.beginLoading();
+		for(int i = 0; i < itemsCount; ++i) {
+			index.add(path(i), size(i), lastModification(i), lastModification(i) + 60000, hash(i));
+		}
+		index.endLoading();
+		return index;
+	}
+
+	/**
+	 * Writes upload log of given items count the same way it's written by {@link AzureFolderUpload}.
+	 */
+	public static File uploadLog(File folder, int itemsCount) throws IOException {
+		File uploadLog = new File(folder, String.format("upload-log-%d.csv", itemsCount));
+		ObjectWriter writer = csvObjectWriter();
+		try (Writer out = Files.newBufferedWriter(uploadLog.toPath(), UTF_8)) {
+			for(int i = 0; i < itemsCount; ++i) {
+				out.write(writer.writeValueAsString(logItem(i)));
+			}
+		}
+		return uploadLog;
+	}
+
+	/**
+	 * Creates folder tree of given depth and fan out with files of given size in every folder.
+	 * @param markerFileName marker file put into the root folder, null for no marker
+	 */
+	public static File tree(File folder, int depth, int foldersCount, int filesCount, int fileSize, String markerFileName) throws IOException {
+		File root = new File(folder, "tree");
+		createTree(root, depth, foldersCount, filesCount, new byte[fileSize]);
+		if (markerFileName != null) {
+			FileUtils.touch(new File(root, markerFileName));
+		}
+		return root;
+	}
+
+	private static void createTree(File folder, int depth, int foldersCount, int filesCount, byte[] content) throws IOException {
+		if (!folder.mkdirs() && !folder.isDirectory()) {
+			throw new IOException(String.format("Failed to create folder [%s]", folder));
+		}
+		for(int i = 0; i < filesCount; ++i) {
+			FileUtils.writeByteArrayToFile(new File(folder, String.format("file-%04d.dat", i)), content);
+		}
+		if (depth > 0) {
+			for(int i = 0; i < foldersCount; ++i) {
+				createTree(new File(folder, String.format("folder-%02d", i)), depth - 1, foldersCount, filesCount, content);
+			}
+		}
+	}
+
+	/**
+	 * Creates file of random content.
+	 */
+	public static File file(File folder, long size) throws IOException {
+		File file = new File(folder, String.format("file-%d.dat", size));
+		byte[] buffer = new byte[1024 * 1024];
+		Random random = new Random(SEED);
+		try (OutputStream out = FileUtils.openOutputStream(file)) {
+			for(long written = 0; written < size; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+			}
+		}
+		return file;
+	}
+}
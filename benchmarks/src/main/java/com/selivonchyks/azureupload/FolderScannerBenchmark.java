@@ -0,0 +1,67 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning of a synthetic folder tree (the former <code>listFiles</code>) with and without the folder ready
+ * marker file. The tree is small enough to stay in the page cache, so the benchmark measures the scanner
+ * rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FolderScannerBenchmark {
+	static final String MARKER_FILE_NAME = ".ready";
+
+	@Param({ "false", "true" })
+	boolean marker;
+
+	@Param({ "1", "4" })
+	int threadsCount;
+
+	/** depth 3 with 8 folders per level and 20 files per folder makes 585 folders with 11700 files */
+	@Param({ "3" })
+	int depth;
+
+	File folder;
+	File tree;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		folder = Fixtures.createTempFolder("azureupload-tree");
+		tree = Fixtures.tree(folder, depth, 8, 20, 0, marker ? MARKER_FILE_NAME : null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Fixtures.delete(folder);
+	}
+
+	@Benchmark
+	public long scan() {
+		LinkedBlockingQueue<ScannedFile> queue = new LinkedBlockingQueue<ScannedFile>();
+		FolderScanner scanner = new FolderScanner(tree, marker ? MARKER_FILE_NAME : null, queue, threadsCount);
+		scanner.run();
+		return queue.size();
+	}
+}
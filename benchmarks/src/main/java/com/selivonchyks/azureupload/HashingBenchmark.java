@@ -0,0 +1,64 @@
+package com.selivonchyks.azureupload;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MD5 throughput of in memory content: plain digest as used for hashing before upload and
+ * {@link HashingInputStream} as used for hashing while uploading. Divide content size by the score
+ * to get bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashingBenchmark {
+	@Param({ "4096", "1048576", "16777216" })
+	int size;
+
+	byte[] content;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		content = new byte[size];
+		new Random(Fixtures.SEED).nextBytes(content);
+	}
+
+	@Benchmark
+	public byte[] digest() {
+		return DigestUtils.md5(content);
+	}
+
+	@Benchmark
+	public byte[] digestStream() throws IOException {
+		return DigestUtils.md5(new ByteArrayInputStream(content));
+	}
+
+	@Benchmark
+	public byte[] hashingInputStream() throws IOException {
+		try (HashingInputStream is = new HashingInputStream(new ByteArrayInputStream(content))) {
+			IOUtils.copyLarge(is, NullOutputStream.NULL_OUTPUT_STREAM);
+			return is.getHash();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Upload log parsing on start (<code>readUploadLog</code>) and serialization of an upload log item
+ * for every uploaded file (<code>logUpload</code>).
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class UploadLogCsvBenchmark {
+	@Param({ "1000000" })
+	int itemsCount;
+
+	@Param({ "1", "4" })
+	int readThreadsCount;
+
+	File folder;
+	File uploadLog;
+	ObjectReader csvObjectReader;
+	ObjectWriter csvObjectWriter;
+	UploadedFileLogItem logItem;
+	String logLine;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		folder = Fixtures.createTempFolder("azureupload-log");
+		uploadLog = Fixtures.uploadLog(folder, itemsCount);
+		csvObjectReader = Fixtures.csvObjectReader();
+		csvObjectWriter = Fixtures.csvObjectWriter();
+		logItem = Fixtures.logItem(42);
+		logLine = csvObjectWriter.writeValueAsString(logItem);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Fixtures.delete(folder);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public UploadLogIndex readUploadLog() throws IOException, InterruptedException {
+		UploadLogIndex index = new UploadLogIndex();
+		index.beginLoading();
+		new UploadLogReader(csvObjectReader, readThreadsCount, UploadLogReader.DEFAULT_CHUNK_SIZE).read(uploadLog, index);
+		index.endLoading();
+		return index;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public String serializeLogItem() throws IOException {
+		return csvObjectWriter.writeValueAsString(logItem);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public UploadedFileLogItem parseLogItem() throws IOException {
+		return csvObjectReader.readValue(logLine);
+	}
+}
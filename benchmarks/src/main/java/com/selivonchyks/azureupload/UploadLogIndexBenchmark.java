@@ -0,0 +1,74 @@
+package com.selivonchyks.azureupload;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Skip check lookups made for every found file by <code>AzureFolderUpload.checkFileHasBeenAlreadyUploaded</code>
+ * against upload log of given size, for files which are in the log and for files which are not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadLogIndexBenchmark {
+	@Param({ "10000", "1000000" })
+	int itemsCount;
+
+	UploadLogIndex index;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		index = Fixtures.uploadLogIndex(itemsCount);
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+
+		int next(int itemsCount) {
+			next = (next + 7919) % itemsCount;
+			return next;
+		}
+	}
+
+	@Benchmark
+	public Object findByModificationHit(Cursor cursor) {
+		int i = cursor.next(itemsCount);
+		return index.findByModification(Fixtures.path(i), Fixtures.size(i), Fixtures.lastModification(i));
+	}
+
+	@Benchmark
+	public Object findByModificationMiss(Cursor cursor) {
+		int i = cursor.next(itemsCount);
+		return index.findByModification(Fixtures.path(i + itemsCount), Fixtures.size(i), Fixtures.lastModification(i));
+	}
+
+	@Benchmark
+	public Object findByHashHit(Cursor cursor) {
+		int i = cursor.next(itemsCount);
+		return index.findByHash(Fixtures.path(i), Fixtures.size(i), Fixtures.hash(i));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object findByModificationHitContended(Cursor cursor) {
+		int i = cursor.next(itemsCount);
+		return index.findByModification(Fixtures.path(i), Fixtures.size(i), Fixtures.lastModification(i));
+	}
+}
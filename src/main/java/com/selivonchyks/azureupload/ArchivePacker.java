@@ -0,0 +1,215 @@
+package com.selivonchyks.azureupload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs small files into archive blobs. Files are appended to the archive blob stream as they come, once archive
+ * reaches its size limit it's committed together with the index blob listing offset, length and MD5 of every
+ * packed file, only then packed files are reported to the listener. Files of an archive which is dropped or fails to
+ * be committed are reported to the listener as dropped, so they can be queued again.
+ * Archive is a plain concatenation of file contents, index is a csv file with lines <code>path,offset,length,md5</code>.
+ */
+public class ArchivePacker implements Closeable {
+	static final Logger logger = LoggerFactory.getLogger(ArchivePacker.class);
+
+	static final String ARCHIVE_EXTENSION = ".pack";
+	static final String INDEX_EXTENSION = ".idx";
+
+	public interface Listener {
+		void archived(PackedFile packedFile);
+
+		/**
+		 * Called for every file of an archive which has been dropped, the file has not been uploaded.
+		 */
+		void dropped(PackedFile packedFile);
+	}
+
+	public static class PackedFile {
+		private final File file;
+		private final String blobItem;
+		private final long lastModificationDate;
+		private final String archive;
+		private final long offset;
+		private final long length;
+		private final byte[] md5;
+
+		PackedFile(File file, String blobItem, long lastModificationDate, String archive, long offset, long length, byte[] md5) {
+			this.file = file;
+			this.blobItem = blobItem;
+			this.lastModificationDate = lastModificationDate;
+			this.archive = archive;
+			this.offset = offset;
+			this.length = length;
+			this.md5 = md5;
+		}
+
+		public File getFile() {
+			return file;
+		}
+		public String getBlobItem() {
+			return blobItem;
+		}
+		public long getLastModificationDate() {
+			return lastModificationDate;
+		}
+		public String getArchive() {
+			return archive;
+		}
+		public long getOffset() {
+			return offset;
+		}
+		public long getLength() {
+			return length;
+		}
+		public byte[] getMd5() {
+			return md5;
+		}
+	}
+
+	private final BlobSink sink;
+	private final String archivePrefix;
+	private final long archiveSize;
+	private final Listener listener;
+
+	private int archivesCount = 0;
+	private String archiveName;
+	private OutputStream archiveStream;
+	private long archiveLength;
+	private final List<PackedFile> packedFiles = new ArrayList<PackedFile>();
+
+	/**
+	 * @param archivePrefix blob name prefix of archives, archives are named <code>prefix-N.pack</code>
+	 */
+	public ArchivePacker(
+			BlobSink sink,
+			String archivePrefix,
+			long archiveSize,
+			Listener listener
+	) {
+		this.sink = sink;
+		this.archivePrefix = archivePrefix;
+		this.archiveSize = archiveSize;
+		this.listener = listener;
+	}
+
+	/**
+	 * Appends file to the current archive, file is reported to the listener once the archive has been committed.
+	 * @return MD5 of the packed file
+	 */
+	public byte[] add(File file, String blobItem, long fileSize, long lastModificationDate, InputStream is) throws IOException {
+		if (archiveStream == null) {
+			openArchive();
+		}
+		long offset = archiveLength;
+		try (HashingInputStream his = new HashingInputStream(is)) {
+			long copied;
+			try {
+				copied = IOUtils.copyLarge(his, archiveStream);
+			} catch (IOException | RuntimeException | InternalError e) {
+				// part of the file might have been written into the archive, offsets of the next files would be wrong
+				abortArchive();
+				throw e;
+			}
+			if (copied != fileSize) {
+				// archive already contains bytes of the changed file, drop the whole archive
+				abortArchive();
+				throw new IOException(String.format("File [%s] has been changed during packing, read [%d] bytes but expected [%d]", file, copied, fileSize));
+			}
+			archiveLength += copied;
+			PackedFile packedFile = new PackedFile(file, blobItem, lastModificationDate, archiveName, offset, copied, his.getHash());
+			packedFiles.add(packedFile);
+			if (archiveLength >= archiveSize) {
+				closeArchive();
+			}
+			return packedFile.getMd5();
+		}
+	}
+
+	private void openArchive() throws IOException {
+		archiveName = String.format("%s-%d%s", archivePrefix, archivesCount++, ARCHIVE_EXTENSION);
+		try {
+			archiveStream = sink.openOutputStream(archiveName);
+		} catch (IOException e) {
+			throw new IOException(String.format("Failed to create archive [%s]", archiveName), e);
+		}
+		archiveLength = 0;
+		packedFiles.clear();
+	}
+
+	private void abortArchive() {
+		logger.warn("Dropping archive [{}] with [{}] packed files", archiveName, packedFiles.size());
+		OutputStream stream = archiveStream;
+		archiveStream = null;
+		try {
+			stream.close();
+			sink.deleteIfExists(archiveName);
+		} catch (Exception e) {
+			logger.info(String.format("Failed to delete dropped archive [%s]", archiveName), e);
+		}
+		dropPackedFiles();
+	}
+
+	private void closeArchive() throws IOException {
+		if (archiveStream == null) {
+			return;
+		}
+		OutputStream stream = archiveStream;
+		archiveStream = null;
+		try {
+			stream.close();
+			StringBuilder index = new StringBuilder();
+			for(PackedFile packedFile : packedFiles) {
+				index.append(escape(packedFile.getBlobItem())).append(',')
+					.append(packedFile.getOffset()).append(',')
+					.append(packedFile.getLength()).append(',')
+					.append(Hex.encodeHexString(packedFile.getMd5())).append('\n');
+			}
+			sink.uploadText(archiveName + INDEX_EXTENSION, index.toString());
+		} catch (IOException e) {
+			dropPackedFiles();
+			throw new IOException(String.format("Failed to commit archive [%s]", archiveName), e);
+		}
+		logger.info("Committed archive [{}] of size [{}] with [{}] packed files", archiveName, archiveLength, packedFiles.size());
+		for(PackedFile packedFile : packedFiles) {
+			listener.archived(packedFile);
+		}
+		packedFiles.clear();
+	}
+
+	private void dropPackedFiles() {
+		for(PackedFile packedFile : packedFiles) {
+			listener.dropped(packedFile);
+		}
+		packedFiles.clear();
+	}
+
+	private static String escape(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * Commits the current archive even if it hasn't reached archive size yet, e.g. when there is nothing to pack for a while.
+	 */
+	public void flush() throws IOException {
+		closeArchive();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeArchive();
+	}
+}
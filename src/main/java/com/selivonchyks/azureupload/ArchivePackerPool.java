@@ -0,0 +1,119 @@
+package com.selivonchyks.azureupload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Archive packers of one job shared by the upload threads. Every packer is used by one thread at a time, so files are
+ * packed into at most as many archives in parallel as there are packers, packers are created as they are needed.
+ * Waiting threads park on a lock instead of a monitor, so waiting virtual threads don't pin their carrier threads.
+ */
+public class ArchivePackerPool implements Closeable {
+	static final Logger logger = LoggerFactory.getLogger(ArchivePackerPool.class);
+
+	private final BlobSink sink;
+	private final String archivePrefix;
+	private final long archiveSize;
+	private final ArchivePacker.Listener listener;
+	private final int maxPackersCount;
+	private final List<ArchivePacker> packers = new ArrayList<ArchivePacker>();
+	private final Deque<ArchivePacker> idlePackers = new ArrayDeque<ArchivePacker>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	/**
+	 * @param archivePrefix blob name prefix of archives, archives of packers are named <code>prefix-P-N.pack</code>
+	 */
+	public ArchivePackerPool(BlobSink sink, String archivePrefix, long archiveSize, ArchivePacker.Listener listener, int maxPackersCount) {
+		this.sink = sink;
+		this.archivePrefix = archivePrefix;
+		this.archiveSize = archiveSize;
+		this.listener = listener;
+		this.maxPackersCount = Math.max(1, maxPackersCount);
+	}
+
+	/**
+	 * Takes idle packer, waits for one if all packers are in use.
+	 */
+	public ArchivePacker acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (idlePackers.isEmpty()) {
+				if (packers.size() < maxPackersCount) {
+					ArchivePacker packer = new ArchivePacker(sink, String.format("%s-%d", archivePrefix, packers.size()), archiveSize, listener);
+					packers.add(packer);
+					return packer;
+				}
+				released.await();
+			}
+			return idlePackers.pop();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void release(ArchivePacker packer) {
+		lock.lock();
+		try {
+			idlePackers.push(packer);
+			released.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Commits current archives of idle packers.
+	 */
+	public void flush() throws IOException {
+		List<ArchivePacker> flushed;
+		lock.lock();
+		try {
+			flushed = new ArrayList<ArchivePacker>(idlePackers);
+			idlePackers.clear();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			for(ArchivePacker packer : flushed) {
+				packer.flush();
+			}
+		} finally {
+			lock.lock();
+			try {
+				idlePackers.addAll(flushed);
+				released.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Commits last archives, packers have to be released by then.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			for(ArchivePacker packer : packers) {
+				try {
+					packer.close();
+				} catch (IOException e) {
+					logger.warn("Failed to commit last archive", e);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
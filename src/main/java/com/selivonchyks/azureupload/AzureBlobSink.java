@@ -0,0 +1,313 @@
+package com.selivonchyks.azureupload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestResult;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.RetryingEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlobDirectory;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyState;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+/**
+ * Azure blob storage container, every request is sent with transactional MD5 within the shared operation context.
+ */
+public class AzureBlobSink implements BlobSink {
+	static final Logger logger = LoggerFactory.getLogger(AzureBlobSink.class);
+
+	static final long COPY_POLL_INTERVAL = 100;
+	static final long MAX_COPY_POLL_INTERVAL = 2000;
+
+	private final CloudBlobContainer container;
+	private final BlobRequestOptions blobRequestOptions;
+	// blocks are retried by the uploader with its own backoff, so the client doesn't retry them on top of it
+	private final BlobRequestOptions blockRequestOptions;
+	private final OperationContext operationContext;
+
+	public AzureBlobSink(CloudBlobContainer container) {
+		this.container = container;
+		this.blobRequestOptions = new BlobRequestOptions();
+		this.blobRequestOptions.setUseTransactionalContentMD5(true);
+		this.blockRequestOptions = new BlobRequestOptions(blobRequestOptions);
+		this.blockRequestOptions.setRetryPolicyFactory(new RetryNoRetry());
+		this.operationContext = new OperationContext();
+		this.operationContext.setLogger(logger);
+	}
+
+	public static AzureBlobSink create(String connectionString, String containerName) throws BlobSinkException {
+		return create(createClient(connectionString), containerName);
+	}
+
+	/**
+	 * Client might be shared by sinks of several containers of the same account, so they reuse its connections.
+	 */
+	public static CloudBlobClient createClient(String connectionString) throws BlobSinkException {
+		try {
+			return CloudStorageAccount.parse(connectionString).createCloudBlobClient();
+		} catch (InvalidKeyException | URISyntaxException e) {
+			throw new BlobSinkException("Failed to connect to azure storage account", BlobSinkException.UNKNOWN_STATUS_CODE, e);
+		}
+	}
+
+	public static AzureBlobSink create(CloudBlobClient blobClient, String containerName) throws BlobSinkException {
+		try {
+			return new AzureBlobSink(blobClient.getContainerReference(containerName));
+		} catch (URISyntaxException e) {
+			throw new BlobSinkException(String.format("Failed to connect to azure container [%s]", containerName), BlobSinkException.UNKNOWN_STATUS_CODE, e);
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to connect to azure container [%s]", containerName), e);
+		}
+	}
+
+	static BlobSinkException wrap(String message, Exception e) {
+		if (e instanceof BlobSinkException) {
+			return (BlobSinkException) e;
+		}
+		int statusCode = e instanceof StorageException ? ((StorageException) e).getHttpStatusCode() : BlobSinkException.UNKNOWN_STATUS_CODE;
+		return new BlobSinkException(String.format("%s: %s", message, e.getMessage()), statusCode, e);
+	}
+
+	public CloudBlobContainer getContainer() {
+		return container;
+	}
+	public BlobRequestOptions getBlobRequestOptions() {
+		return blobRequestOptions;
+	}
+	public OperationContext getOperationContext() {
+		return operationContext;
+	}
+
+	@Override
+	public void addResponseListener(final ResponseListener listener) {
+		operationContext.getResponseReceivedEventHandler().addListener(new StorageEvent<ResponseReceivedEvent>() {
+			@Override
+			public void eventOccurred(ResponseReceivedEvent event) {
+				RequestResult result = event.getRequestResult();
+				if (result != null) {
+					long latency = result.getStartDate() != null ? System.currentTimeMillis() - result.getStartDate().getTime() : 0;
+					listener.responseReceived(result.getStatusCode(), latency);
+				}
+			}
+		});
+		operationContext.getRetryingEventHandler().addListener(new StorageEvent<RetryingEvent>() {
+			@Override
+			public void eventOccurred(RetryingEvent event) {
+				listener.retrying();
+			}
+		});
+	}
+
+	@Override
+	public URI getUri() {
+		return container.getUri();
+	}
+
+	@Override
+	public URI getUri(String blobName) throws IOException {
+		return blob(blobName).getUri();
+	}
+
+	private CloudBlockBlob blob(String blobName) throws BlobSinkException {
+		try {
+			return container.getBlockBlobReference(blobName);
+		} catch (URISyntaxException | StorageException e) {
+			throw wrap(String.format("Failed to reference blob [%s]", blobName), e);
+		}
+	}
+
+	@Override
+	public void createIfNotExists() throws IOException {
+		try {
+			container.createIfNotExists(blobRequestOptions, operationContext);
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to create container [%s]", container.getUri()), e);
+		}
+	}
+
+	@Override
+	public String upload(String blobName, InputStream is, long length) throws IOException {
+		return upload(blobName, is, length, null, null);
+	}
+
+	@Override
+	public String upload(String blobName, InputStream is, long length, String contentEncoding, Map<String, String> metadata) throws IOException {
+		CloudBlockBlob blob = blob(blobName);
+		if (contentEncoding != null) {
+			blob.getProperties().setContentEncoding(contentEncoding);
+		}
+		if (metadata != null) {
+			blob.setMetadata(new HashMap<String, String>(metadata));
+		}
+		try {
+			blob.upload(is, length, null, blobRequestOptions, operationContext);
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to upload blob [%s]", blob.getUri()), e);
+		}
+		return blob.getProperties().getContentMD5();
+	}
+
+	@Override
+	public void uploadBlock(String blobName, String blockId, InputStream is, long length) throws IOException {
+		CloudBlockBlob blob = blob(blobName);
+		try {
+			blob.uploadBlock(blockId, is, length, null, blockRequestOptions, operationContext);
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to upload block of blob [%s]", blob.getUri()), e);
+		}
+	}
+
+	@Override
+	public Map<String, Long> downloadUncommittedBlocks(String blobName) throws IOException {
+		CloudBlockBlob blob = blob(blobName);
+		Map<String, Long> blocks = new HashMap<String, Long>();
+		try {
+			for(BlockEntry blockEntry : blob.downloadBlockList(BlockListingFilter.UNCOMMITTED, null, blobRequestOptions, operationContext)) {
+				blocks.put(blockEntry.getId(), blockEntry.getSize());
+			}
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to list uncommitted blocks of blob [%s]", blob.getUri()), e);
+		}
+		return blocks;
+	}
+
+	@Override
+	public long commitBlockList(String blobName, List<String> blockIds, String contentMd5) throws IOException {
+		CloudBlockBlob blob = blob(blobName);
+		List<BlockEntry> blockList = new ArrayList<BlockEntry>(blockIds.size());
+		for(String blockId : blockIds) {
+			blockList.add(new BlockEntry(blockId, BlockSearchMode.LATEST));
+		}
+		blob.getProperties().setContentMD5(contentMd5);
+		try {
+			blob.commitBlockList(blockList, null, blobRequestOptions, operationContext);
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to commit block list of blob [%s]", blob.getUri()), e);
+		}
+		// commit response doesn't carry the blob length
+		try {
+			blob.downloadAttributes(null, blobRequestOptions, operationContext);
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to read properties of blob [%s]", blob.getUri()), e);
+		}
+		return blob.getProperties().getLength();
+	}
+
+	@Override
+	public OutputStream openOutputStream(String blobName) throws IOException {
+		CloudBlockBlob blob = blob(blobName);
+		try {
+			return blob.openOutputStream(null, blobRequestOptions, operationContext);
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to open blob [%s]", blob.getUri()), e);
+		}
+	}
+
+	@Override
+	public void uploadText(String blobName, String text) throws IOException {
+		CloudBlockBlob blob = blob(blobName);
+		try {
+			blob.uploadText(text, "UTF-8", null, blobRequestOptions, operationContext);
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to upload blob [%s]", blob.getUri()), e);
+		}
+	}
+
+	@Override
+	public String copy(String sourceBlobName, String blobName) throws IOException {
+		CloudBlockBlob blob = blob(blobName);
+		try {
+			blob.startCopyFromBlob(blob(sourceBlobName), null, null, blobRequestOptions, operationContext);
+			// copies within the account are usually completed synchronously, otherwise the status is polled
+			for(long interval = COPY_POLL_INTERVAL; ; interval = Math.min(MAX_COPY_POLL_INTERVAL, interval * 2)) {
+				CopyState copyState = blob.getCopyState();
+				if (copyState == null || copyState.getStatus() == CopyStatus.SUCCESS) {
+					break;
+				}
+				if (copyState.getStatus() != CopyStatus.PENDING) {
+					throw new BlobSinkException(String.format("Failed to copy blob [%s] to [%s]: %s %s", sourceBlobName, blob.getUri(), copyState.getStatus(), copyState.getStatusDescription()), BlobSinkException.UNKNOWN_STATUS_CODE);
+				}
+				Thread.sleep(interval);
+				blob.downloadAttributes(null, blobRequestOptions, operationContext);
+			}
+			blob.downloadAttributes(null, blobRequestOptions, operationContext);
+		} catch (URISyntaxException | StorageException e) {
+			throw wrap(String.format("Failed to copy blob [%s] to [%s]", sourceBlobName, blob.getUri()), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BlobSinkException(String.format("Interrupted while copying blob [%s] to [%s]", sourceBlobName, blob.getUri()), BlobSinkException.UNKNOWN_STATUS_CODE, e);
+		}
+		return blob.getProperties().getContentMD5();
+	}
+
+	@Override
+	public boolean deleteIfExists(String blobName) throws IOException {
+		CloudBlockBlob blob = blob(blobName);
+		try {
+			return blob.deleteIfExists();
+		} catch (StorageException e) {
+			throw wrap(String.format("Failed to delete blob [%s]", blob.getUri()), e);
+		}
+	}
+
+	@Override
+	public List<String> listBlobs(String prefix, boolean flat, BlobListener listener) throws IOException {
+		List<String> prefixes = new ArrayList<String>();
+		ResultContinuation continuationToken = null;
+		try {
+			do {
+				ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(prefix, flat, EnumSet.of(BlobListingDetails.METADATA), null, continuationToken, blobRequestOptions, operationContext);
+				for(ListBlobItem item : segment.getResults()) {
+					if (item instanceof CloudBlob) {
+						CloudBlob blob = (CloudBlob) item;
+						BlobProperties properties = blob.getProperties();
+						long length = properties.getLength();
+						String contentMd5 = properties.getContentMD5();
+						Map<String, String> metadata = blob.getMetadata();
+						if (metadata != null && metadata.containsKey(ORIGINAL_LENGTH_METADATA) && metadata.containsKey(ORIGINAL_MD5_METADATA)) {
+							length = Long.parseLong(metadata.get(ORIGINAL_LENGTH_METADATA));
+							contentMd5 = metadata.get(ORIGINAL_MD5_METADATA);
+						}
+						listener.blobFound(blob.getName(), length, properties.getLastModified() != null ? properties.getLastModified().getTime() : 0, contentMd5);
+					} else if (item instanceof CloudBlobDirectory) {
+						prefixes.add(((CloudBlobDirectory) item).getPrefix());
+					}
+				}
+				continuationToken = segment.getHasMoreResults() ? segment.getContinuationToken() : null;
+			} while (continuationToken != null);
+		} catch (URISyntaxException | StorageException e) {
+			throw wrap(String.format("Failed to list blobs of container [%s] with prefix [%s]", container.getUri(), prefix), e);
+		}
+		return prefixes;
+	}
+}
@@ -1,28 +1,26 @@
 package com.selivonchyks.azureupload;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Writer;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
-import java.security.InvalidKeyException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -31,35 +29,23 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.Predicate;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
-import org.apache.commons.io.Charsets;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.filefilter.IOFileFilter;
-import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.EnumUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
-import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.OperationContext;
-import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.Constants;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
-import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
 import com.microsoft.azure.storage.core.Base64;
 
 public class AzureFolderUpload {
@@ -76,14 +62,65 @@ public class AzureFolderUpload {
 	static final String UPLOAD_LOG_ARG_NAME = "uploadLog";
 	static final String SKIP_UPLOADED_ARG_NAME = "skipUploaded";
 	static final String FOLDER_READY_MARKER_FILE_ARG_NAME = "folderReadyMarkerFile";
+	static final String BLOCK_SIZE_ARG_NAME = "blockSize";
+	static final String PARALLEL_BLOCKS_ARG_NAME = "parallelBlocks";
+	static final String LARGE_FILE_THRESHOLD_ARG_NAME = "largeFileThreshold";
+	static final String PACK_THRESHOLD_ARG_NAME = "packThreshold";
+	static final String ARCHIVE_SIZE_ARG_NAME = "archiveSize";
+	static final String QUEUE_SIZE_ARG_NAME = "queueSize";
+	static final String SCAN_THREADS_ARG_NAME = "scanThreads";
+	static final String IN_MEMORY_BUDGET_ARG_NAME = "inMemoryBudget";
+	static final String IN_MEMORY_BUFFER_SIZE_ARG_NAME = "inMemoryBufferSize";
+	static final String IN_MEMORY_OFF_HEAP_ARG_NAME = "inMemoryOffHeap";
+	static final String MAP_FILES_ARG_NAME = "mmap";
+	static final String MAPPING_THRESHOLD_ARG_NAME = "mmapThreshold";
+	static final String MAPPED_WINDOW_SIZE_ARG_NAME = "mmapWindow";
+	static final String ADAPTIVE_CONCURRENCY_ARG_NAME = "adaptive";
+	static final String MIN_THREADS_COUNT_ARG_NAME = "minThreads";
+	static final String CHECKPOINT_FOLDER_ARG_NAME = "checkpointFolder";
+	static final String BLOCK_ATTEMPTS_ARG_NAME = "blockAttempts";
+	static final String METRICS_FILE_ARG_NAME = "metricsFile";
+	static final String METRICS_INTERVAL_ARG_NAME = "metricsInterval";
+	static final String SINK_ARG_NAME = "sink";
+	static final String SINK_LATENCY_ARG_NAME = "sinkLatency";
+	static final String SINK_THROTTLE_RATE_ARG_NAME = "sinkThrottleRate";
+
+	static final String LOG_FLUSH_RECORDS_ARG_NAME = "logFlushRecords";
+	static final String LOG_FLUSH_INTERVAL_ARG_NAME = "logFlushInterval";
+	static final String LOG_NO_FSYNC_ARG_NAME = "logNoFsync";
+	static final String SKIP_EXISTING_ARG_NAME = "skipExisting";
+	static final String MANIFEST_CACHE_ARG_NAME = "manifestCache";
+	static final String MANIFEST_TTL_ARG_NAME = "manifestTtl";
+	static final String DEDUPE_ARG_NAME = "dedupe";
+	static final String DEDUPE_THRESHOLD_ARG_NAME = "dedupeThreshold";
+	static final String COMPRESS_ARG_NAME = "compress";
+	static final String COMPRESS_THREADS_ARG_NAME = "compressThreads";
+	static final String SCHEDULE_ARG_NAME = "schedule";
+	static final String PRIORITY_FOLDERS_ARG_NAME = "priorityFolders";
+	static final String WATCH_ARG_NAME = "watch";
+	static final String RECONCILE_INTERVAL_ARG_NAME = "reconcileInterval";
+	static final String JOB_FILE_ARG_NAME = "jobs";
+	static final String BANDWIDTH_ARG_NAME = "bandwidth";
+	static final String ENGINE_ARG_NAME = "engine";
+	static final String SHARD_ARG_NAME = "shard";
+	static final String SHARD_BALANCE_ARG_NAME = "shardBalance";
+	static final String SNAPSHOT_ARG_NAME = "snapshot";
+	static final String FULL_SCAN_ARG_NAME = "fullScan";
+
+	static final String AZURE_SINK = "azure";
+
+	static final String ARCHIVES_FOLDER = ".archives";
+
+	static final long SHUTDOWN_TIMEOUT = 60000;
 
 	static final String AZURE_CONNECTION_STRING_PROPERTY_NAME = "connectionString";
 
 	private static CsvMapper mapper;
 	private static CsvSchema schema;
-	private static ObjectWriter csvObjectWriter;
 	private static ObjectReader csvObjectReader;
-	private static Collection<UploadedFileLogItem> uploadLogItems;
+	private static UploadLogIndex uploadLogIndex;
+	private static DedupeIndex dedupeIndex;
+	private static DirectorySnapshot directorySnapshot;
 
 	@SuppressWarnings("static-access")
 	private static Options buildCommandLineOptions() {
@@ -110,16 +147,16 @@ public class AzureFolderUpload {
 				OptionBuilder
 					.withLongOpt(SOURCE_FOLDER_ARG_NAME)
 					.hasArg(true)
-					.withDescription("source folder to upload")
-					.isRequired(true)
+					.withDescription("source folder to upload, required unless jobs argument is given")
+					.isRequired(false)
 					.create()
 		);
 		options.addOption(
 				OptionBuilder
 					.withLongOpt(TARGET_AZURE_CONTAINER_ARG_NAME)
 					.hasArg(true)
-					.withDescription("target azure container")
-					.isRequired(true)
+					.withDescription("target azure container, required unless jobs argument is given")
+					.isRequired(false)
 					.create()
 		);
 		options.addOption(
@@ -134,7 +171,7 @@ public class AzureFolderUpload {
 				OptionBuilder
 					.withLongOpt(IN_MEMORY_ARG_NAME)
 					.hasArg(false)
-					.withDescription("allow in memory file handling")
+					.withDescription("allow in memory file handling within memory budget, files which don't fit into the budget are streamed from disk, blocks of large files are read into the budget as well and are memory mapped when it is exhausted")
 					.isRequired(false)
 					.create()
 		);
@@ -150,7 +187,7 @@ public class AzureFolderUpload {
 				OptionBuilder
 					.withLongOpt(SKIP_UPLOADED_ARG_NAME)
 					.hasArg(true)
-					.withDescription("path to previously stored file with upload log, might be the same file as specified by uploadLog argument")
+					.withDescription("path to previously stored file with upload log in csv or compacted format, csv log might be the same file as specified by uploadLog argument, compacted log can't be")
 					.isRequired(false)
 					.create()
 		);
@@ -163,6 +200,375 @@ public class AzureFolderUpload {
 					.create()
 		);
 
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(BLOCK_SIZE_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("size in bytes of blocks large files are split into, %d by default", UploadSettings.DEFAULT_BLOCK_SIZE))
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(PARALLEL_BLOCKS_ARG_NAME)
+					.hasArg(true)
+					.withDescription("maximum count of blocks of the same large file uploaded in parallel, upload threads count by default")
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(LARGE_FILE_THRESHOLD_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("files larger than threshold in bytes are uploaded by blocks in parallel, %d by default", UploadSettings.DEFAULT_LARGE_FILE_THRESHOLD))
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(PACK_THRESHOLD_ARG_NAME)
+					.hasArg(true)
+					.withDescription("files smaller than threshold in bytes are packed into archive blobs with index blobs, packing is disabled by default")
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(ARCHIVE_SIZE_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("size in bytes archive blob is committed at, %d by default", UploadSettings.DEFAULT_ARCHIVE_SIZE))
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(QUEUE_SIZE_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("maximum count of found files waiting for upload, folder scanning pauses when uploading falls behind, %d by default", UploadSettings.DEFAULT_QUEUE_SIZE))
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SCAN_THREADS_ARG_NAME)
+					.hasArg(true)
+					.withDescription("source folder scanning threads count, available processors count by default")
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(IN_MEMORY_BUDGET_ARG_NAME)
+					.hasArg(true)
+					.withDescription("total size in bytes of memory used for in memory file handling, quarter of maximum heap size by default")
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(IN_MEMORY_BUFFER_SIZE_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("size in bytes of pooled buffers used for in memory file handling, %d by default", UploadSettings.DEFAULT_IN_MEMORY_BUFFER_SIZE))
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(IN_MEMORY_OFF_HEAP_ARG_NAME)
+					.hasArg(false)
+					.withDescription("allocate buffers used for in memory file handling off heap")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(MAP_FILES_ARG_NAME)
+					.hasArg(false)
+					.withDescription("read files not handled in memory through memory mapped windows")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(MAPPING_THRESHOLD_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("only files not smaller than threshold in bytes are memory mapped, %d by default", UploadSettings.DEFAULT_MAPPING_THRESHOLD))
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(MAPPED_WINDOW_SIZE_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("size in bytes of memory mapped windows, %d by default", UploadSettings.DEFAULT_MAPPED_WINDOW_SIZE))
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(ADAPTIVE_CONCURRENCY_ARG_NAME)
+					.hasArg(false)
+					.withDescription("adapt count of uploads in flight to measured throughput, latency and server busy responses, upload threads count is used as the upper bound")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(MIN_THREADS_COUNT_ARG_NAME)
+					.hasArg(true)
+					.withDescription("lower bound of uploads in flight for adaptive concurrency, 1 by default")
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(CHECKPOINT_FOLDER_ARG_NAME)
+					.hasArg(true)
+					.withDescription("folder to keep staged blocks of large files in, interrupted uploads of large files are resumed from there next time")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(BLOCK_ATTEMPTS_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("attempts count to upload a block of large file, %d by default", LargeFileUpload.DEFAULT_ATTEMPTS_COUNT))
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(METRICS_FILE_ARG_NAME)
+					.hasArg(true)
+					.withDescription("file JSON snapshot of upload metrics is written to on every progress report")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(METRICS_INTERVAL_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("interval in milliseconds progress is reported at, %d by default, 0 disables periodic reports", UploadMetrics.DEFAULT_REPORT_INTERVAL))
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SINK_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("upload target: %s (default), %s to discard uploaded content or local folder path to write container folder with blobs into, the latter two are loopback sinks for throughput runs", AZURE_SINK, LoopbackBlobSink.NULL_SINK))
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SINK_LATENCY_ARG_NAME)
+					.hasArg(true)
+					.withDescription("latency in milliseconds added to every request of loopback sink, 0 by default")
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SINK_THROTTLE_RATE_ARG_NAME)
+					.hasArg(true)
+					.withDescription("share of requests of loopback sink answered with server busy status, in range [0, 1], 0 by default")
+					.withType(Double.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(LOG_FLUSH_RECORDS_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("upload log is flushed to disk once this count of records has been written, %d by default", UploadLogWriter.DEFAULT_FLUSH_RECORDS_COUNT))
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(LOG_FLUSH_INTERVAL_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("maximum time in milliseconds upload log record stays unflushed, %d by default", UploadLogWriter.DEFAULT_FLUSH_INTERVAL))
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(LOG_NO_FSYNC_ARG_NAME)
+					.hasArg(false)
+					.withDescription("don't force flushed upload log records to disk, records might be lost if the machine crashes")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SKIP_EXISTING_ARG_NAME)
+					.hasArg(false)
+					.withDescription("skip files which blobs exist in target container with the same size and Content-MD5, container is listed before upload")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(MANIFEST_CACHE_ARG_NAME)
+					.hasArg(true)
+					.withDescription("folder container listings used by skipExisting argument are cached in, listing isn't cached by default")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(MANIFEST_TTL_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("time in milliseconds cached container listing is used for, %d by default", RemoteManifest.DEFAULT_TTL))
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(DEDUPE_ARG_NAME)
+					.hasArg(false)
+					.withDescription("copy files having the same content as an uploaded file from its blob on the service side instead of uploading them, files are hashed before upload")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(DEDUPE_THRESHOLD_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("minimum size in bytes of files deduplicated by dedupe argument, %d by default", DedupeIndex.DEFAULT_THRESHOLD))
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(COMPRESS_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("gzip files uploaded in one request unless they are already compressed, blobs get gzip Content-Encoding: %s", StringUtils.join(Compressor.Codec.values(), ", ").toLowerCase()))
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(COMPRESS_THREADS_ARG_NAME)
+					.hasArg(true)
+					.withDescription("count of threads compressing files, available processors count by default")
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SCHEDULE_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("order queued files are uploaded in: %s, fifo by default; files are ordered within queueSize files", StringUtils.join(ScheduledFileQueue.Schedule.values(), ", ").toLowerCase()))
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(PRIORITY_FOLDERS_ARG_NAME)
+					.hasArgs()
+					.withValueSeparator(',')
+					.withDescription("comma separated folders relative to the source folder which files are uploaded before the others, in the given order")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(WATCH_ARG_NAME)
+					.hasArg(false)
+					.withDescription("keep running and upload files as they appear in the source folder or get ready, until the process is stopped")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(RECONCILE_INTERVAL_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("interval in milliseconds of full scans of the watched source folder finding changes missed by file system events, %d by default", FolderWatcher.DEFAULT_RECONCILE_INTERVAL))
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(JOB_FILE_ARG_NAME)
+					.hasArg(true)
+					.withDescription("file with upload jobs run in one process sharing upload threads, one job per line: source,container[,target folder[,weight]], replaces source, container and target arguments")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(BANDWIDTH_ARG_NAME)
+					.hasArg(true)
+					.withDescription("upload bandwidth budget in bytes per second shared by all uploads, unlimited by default")
+					.withType(Long.class)
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(ENGINE_ARG_NAME)
+					.hasArg(true)
+					.withDescription(String.format("how uploads are run: %s, pool by default; pool runs threads count upload threads, virtual runs a thread per file with up to threads count files in flight", StringUtils.join(UploadThreads.Engine.values(), ", ").toLowerCase()))
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SHARD_ARG_NAME)
+					.hasArg(true)
+					.withDescription("upload only shard i of N shards the source folder is split into by hash of relative file paths, given as i/N, e.g. 2/4; upload log of the shard is written next to uploadLog with -i-of-N suffix")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SHARD_BALANCE_ARG_NAME)
+					.hasArg(true)
+					.withDescription("upload log of a previous run in csv or compacted format, files logged there are assigned to shards balancing shard sizes, the same log has to be given to all shards")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SNAPSHOT_ARG_NAME)
+					.hasArg(true)
+					.withDescription("file folder tree snapshot is saved into after upload, folders which haven't changed since then are not listed next time and their files are not uploaded")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(FULL_SCAN_ARG_NAME)
+					.hasArg(false)
+					.withDescription("list all folders and check all files against upload log ignoring the snapshot, the snapshot is saved anyway")
+					.isRequired(false)
+					.create()
+		);
+
 		return options;
 	}
 
@@ -179,134 +585,479 @@ public class AzureFolderUpload {
 		return new PropertiesConfiguration(configFile);
 	}
 
-	private static volatile int uploadedFilesCount = 0;
-	private static volatile int skippedFilesCount = 0;
-	private static volatile long uploadedFilesSize = 0;
-
-	private static void uploadFolder(
-			final String azureConnectionString, 
-			final String sourcePath, 
-			final String targetContainer, 
-			final String targetFolder,
-			final int uploadThreadsCount, 
-			final boolean allowInMemoryFileHandling, 
-			final String uploadLogFilePath,
-			final String skipUploadedFilePath,
-			final String folderReadyMarkerFileName
-	) {
+	private static void uploadFolder(final UploadSettings settings) {
+		final String azureConnectionString = settings.getAzureConnectionString();
+		final String sourcePath = settings.getSourcePath();
+		final String targetContainer = settings.getTargetContainer();
+		final String targetFolder = settings.getTargetFolder();
+		final int uploadThreadsCount = settings.getUploadThreadsCount();
+		final long largeFileThreshold = settings.getLargeFileThreshold();
+		final long packThreshold = settings.getPackThreshold();
+		final CountDownLatch uploadFinished = new CountDownLatch(1);
 		try {
-			if (StringUtils.isBlank(azureConnectionString)) {
+			if (isAzureSink(settings) && StringUtils.isBlank(azureConnectionString)) {
 				throw new IllegalArgumentException("Failed to proceed: azure connection string is empty, check properties file");
 			}
-			if (StringUtils.isBlank(sourcePath)) {
-				throw new IllegalArgumentException("Failed to proceed: source path is empty");
-			}
-			if (StringUtils.isBlank(targetContainer)) {
-				throw new IllegalArgumentException("Failed to proceed: target azure container is empty");
+			if (StringUtils.isBlank(settings.getJobFilePath())) {
+				if (StringUtils.isBlank(sourcePath)) {
+					throw new IllegalArgumentException("Failed to proceed: source path is empty");
+				}
+				if (StringUtils.isBlank(targetContainer)) {
+					throw new IllegalArgumentException("Failed to proceed: target azure container is empty");
+				}
 			}
 			if (uploadThreadsCount < 1) {
 				throw new IllegalArgumentException(String.format("Failed to proceed: specified upload threads count %d is less than 1", uploadThreadsCount));
 			}
+			if (settings.isMapFiles() && settings.getMappedWindowSize() < 1) {
+				throw new IllegalArgumentException(String.format("Failed to proceed: specified memory mapped window size %d is less than 1", settings.getMappedWindowSize()));
+			}
+			if (settings.getBlockSize() < 1 || settings.getBlockSize() > Constants.MAX_BLOCK_SIZE) {
+				throw new IllegalArgumentException(String.format("Failed to proceed: specified block size %d should be in range [1, %d]", settings.getBlockSize(), Constants.MAX_BLOCK_SIZE));
+			}
+			if (settings.getBandwidth() < 0) {
+				throw new IllegalArgumentException(String.format("Failed to proceed: specified bandwidth %d is negative", settings.getBandwidth()));
+			}
+			final Compressor.Codec compression = settings.getCompression() != null ? EnumUtils.getEnum(Compressor.Codec.class, settings.getCompression().toUpperCase()) : null;
+			if (settings.getCompression() != null && compression == null) {
+				throw new IllegalArgumentException(String.format("Failed to proceed: specified compression %s is not one of %s", settings.getCompression(), StringUtils.join(Compressor.Codec.values(), ", ").toLowerCase()));
+			}
+			final ScheduledFileQueue.Schedule schedule = settings.getSchedule() != null ? EnumUtils.getEnum(ScheduledFileQueue.Schedule.class, settings.getSchedule().toUpperCase()) : ScheduledFileQueue.Schedule.FIFO;
+			if (schedule == null) {
+				throw new IllegalArgumentException(String.format("Failed to proceed: specified schedule %s is not one of %s", settings.getSchedule(), StringUtils.join(ScheduledFileQueue.Schedule.values(), ", ").toLowerCase()));
+			}
+			final UploadThreads.Engine engine = settings.getEngine() != null ? EnumUtils.getEnum(UploadThreads.Engine.class, settings.getEngine().toUpperCase()) : UploadThreads.Engine.POOL;
+			if (engine == null) {
+				throw new IllegalArgumentException(String.format("Failed to proceed: specified engine %s is not one of %s", settings.getEngine(), StringUtils.join(UploadThreads.Engine.values(), ", ").toLowerCase()));
+			}
+			final Shard shard = StringUtils.isNotBlank(settings.getShard()) ? Shard.parse(settings.getShard()) : null;
+			if (shard == null && StringUtils.isNotBlank(settings.getShardBalanceFilePath())) {
+				throw new IllegalArgumentException("Failed to proceed: shard balancing requires shard to be specified");
+			}
+			if (settings.isWatch() && StringUtils.isNotBlank(settings.getSnapshotFilePath())) {
+				throw new IllegalArgumentException("Failed to proceed: folder snapshot can't be used in watch mode");
+			}
+			String uploadLogFilePath = settings.getUploadLogFilePath();
+			if (shard != null && StringUtils.isNotBlank(uploadLogFilePath)) {
+				uploadLogFilePath = shard.getLogPath(uploadLogFilePath);
+			}
+			if (StringUtils.isNotBlank(uploadLogFilePath) && new File(uploadLogFilePath).isFile() && CompactedUploadLog.isCompacted(new File(uploadLogFilePath))) {
+				// csv items appended to a compacted log would never be read
+				throw new IllegalArgumentException(String.format("Failed to proceed: upload log %s is a compacted log, specify a csv log and merge it with the compacted one by the compactor", uploadLogFilePath));
+			}
+			final List<UploadJob> jobs;
+			if (StringUtils.isNotBlank(settings.getJobFilePath())) {
+				jobs = UploadJob.readJobFile(new File(settings.getJobFilePath()));
+				if (jobs.isEmpty()) {
+					throw new IllegalArgumentException(String.format("Failed to proceed: job file %s doesn't contain any jobs", settings.getJobFilePath()));
+				}
+			} else {
+				jobs = new ArrayList<UploadJob>();
+				jobs.add(new UploadJob("job-1", new File(sourcePath), targetContainer, targetFolder, UploadJob.DEFAULT_WEIGHT));
+			}
 
 			long startTime = System.currentTimeMillis();
 
 			prepareUploadLogSchema();
-			readUploadLog(skipUploadedFilePath);
-
-			final File sourceFolder = new File(sourcePath);
-			final URI sourceFolderUri = sourceFolder.toURI();
-			final Collection<File> files = listFiles(sourceFolder, folderReadyMarkerFileName);
-			if (files != null && !files.isEmpty()) {
-				final Queue<File> queuedFiles = new ConcurrentLinkedQueue<File>(files);
-				final int filesCount = files.size();
-				logger.debug("Found [{}] files in source folder [{}]", filesCount, sourcePath);
-				try (Writer writer = prepareUploadLogWriter(uploadLogFilePath)) {
-					ExecutorService exec = Executors.newFixedThreadPool(uploadThreadsCount);
-					try {
-						CloudStorageAccount storageAccount = CloudStorageAccount.parse(azureConnectionString);
-						CloudBlobClient blobClient = storageAccount.createCloudBlobClient();
-						final CloudBlobContainer container = blobClient.getContainerReference(targetContainer);
-						container.createIfNotExists();
-
-						final BlobRequestOptions blobRequestOptions = new BlobRequestOptions();
-						blobRequestOptions.setUseTransactionalContentMD5(true);
-						final OperationContext operationContext = new OperationContext();
-						operationContext.setLogger(logger);
-						// operationContext.setLoggingEnabled(true);
-
-						logger.info("Starting uploading folder [{}] to azure container [{}] using [{}] threads ...", sourceFolder, container.getUri(), uploadThreadsCount);
+			if (settings.isDedupe()) {
+				dedupeIndex = new DedupeIndex();
+			}
+			readUploadLog(settings.getSkipUploadedFilePath());
+			if (shard != null) {
+				if (StringUtils.isNotBlank(settings.getShardBalanceFilePath())) {
+					shard.balance(new File(settings.getShardBalanceFilePath()));
+				}
+				logger.info("Uploading shard [{}] of source folders", shard);
+			}
+			File snapshotFile = null;
+			if (StringUtils.isNotBlank(settings.getSnapshotFilePath())) {
+				snapshotFile = new File(shard != null ? shard.getLogPath(settings.getSnapshotFilePath()) : settings.getSnapshotFilePath());
+				directorySnapshot = DirectorySnapshot.load(snapshotFile);
+				directorySnapshot.setFullScan(settings.isFullScan());
+			}
+
+			final BufferPool bufferPool = settings.isAllowInMemoryFileHandling() ? new BufferPool(settings.getInMemoryBudget(), settings.getInMemoryBufferSize(), settings.isInMemoryOffHeap()) : null;
+
+			final UploadMetrics metrics = new UploadMetrics();
+			if (StringUtils.isNotBlank(settings.getMetricsFilePath())) {
+				metrics.setMetricsFile(new File(settings.getMetricsFilePath()));
+			}
+			metrics.registerMBean();
+			final List<FolderWatcher> folderWatchers = new ArrayList<FolderWatcher>();
+			for(UploadJob job : jobs) {
+				File sourceFolder = job.getSourceFolder();
+				final BlockingQueue<ScannedFile> queuedFiles;
+				if (schedule != ScheduledFileQueue.Schedule.FIFO || ArrayUtils.isNotEmpty(settings.getPriorityFolders())) {
+					List<File> priorityFolders = new ArrayList<File>();
+					if (settings.getPriorityFolders() != null) {
+						for(String priorityFolder : settings.getPriorityFolders()) {
+							priorityFolders.add(new File(sourceFolder, priorityFolder.trim()));
+						}
+					}
+					queuedFiles = new ScheduledFileQueue(schedule, settings.getQueueSize(), priorityFolders);
+					logger.info("Scheduling uploads of {} [{}] first from folders {}", job.getName(), schedule.name().toLowerCase(), priorityFolders);
+				} else {
+					queuedFiles = new LinkedBlockingQueue<ScannedFile>(settings.getQueueSize());
+				}
+				job.setQueue(queuedFiles);
+				UploadMetrics jobMetrics = new UploadMetrics(metrics);
+				jobMetrics.setQueue(queuedFiles);
+				job.setMetrics(jobMetrics);
+				FolderScanner folderScanner;
+				if (settings.isWatch()) {
+					FolderWatcher folderWatcher = new FolderWatcher(sourceFolder, settings.getFolderReadyMarkerFileName(), queuedFiles, settings.getScanThreadsCount(), settings.getReconcileInterval());
+					folderWatchers.add(folderWatcher);
+					folderScanner = folderWatcher;
+				} else {
+					folderScanner = new FolderScanner(sourceFolder, settings.getFolderReadyMarkerFileName(), queuedFiles, settings.getScanThreadsCount());
+				}
+				folderScanner.setMetrics(jobMetrics);
+				folderScanner.setShard(shard);
+				folderScanner.setSnapshot(directorySnapshot);
+				job.setScanner(folderScanner);
+			}
+			final JobScheduler jobScheduler = new JobScheduler(jobs);
+			if (!folderWatchers.isEmpty()) {
+				// queued files are uploaded and upload log is closed before the process exits
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						logger.info("Stopping watching [{}] folders, waiting for [{}] queued files", folderWatchers.size(), jobScheduler.size());
+						for(FolderWatcher folderWatcher : folderWatchers) {
+							folderWatcher.stop();
+						}
+						try {
+							uploadFinished.await(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}, "watch-shutdown"));
+			}
+			for(UploadJob job : jobs) {
+				Thread scanner = new Thread(job.getScanner(), jobs.size() > 1 ? "folder-scanner-" + job.getName() : "folder-scanner");
+				scanner.setDaemon(true);
+				scanner.start();
+			}
+			try (final UploadLogWriter writer = prepareUploadLogWriter(uploadLogFilePath, settings)) {
+				ExecutorService exec = engine == UploadThreads.Engine.POOL ? Executors.newFixedThreadPool(uploadThreadsCount) : null;
+				final ConcurrencyController concurrencyController = settings.isAdaptiveConcurrency() ? new ConcurrencyController(settings.getMinThreadsCount(), uploadThreadsCount, Math.max(settings.getMinThreadsCount(), uploadThreadsCount / 4)) : null;
+				ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+				// compressed content is kept within the in memory budget even if files themselves are not handled in memory
+				final Compressor compressor = compression != null ? new Compressor(compression, settings.getCompressThreadsCount(), bufferPool != null ? bufferPool : new BufferPool(settings.getInMemoryBudget(), settings.getInMemoryBufferSize(), settings.isInMemoryOffHeap())) : null;
+				if (settings.getMetricsInterval() > 0) {
+					scheduler.scheduleWithFixedDelay(metrics, settings.getMetricsInterval(), settings.getMetricsInterval(), TimeUnit.MILLISECONDS);
+				}
+				try {
+					// sinks of all jobs share the client and the bandwidth budget
+					CloudBlobClient blobClient = isAzureSink(settings) ? AzureBlobSink.createClient(azureConnectionString) : null;
+					BandwidthLimiter bandwidthLimiter = settings.getBandwidth() > 0 ? new BandwidthLimiter(settings.getBandwidth()) : null;
+					if (bandwidthLimiter != null) {
+						logger.info("Limiting upload bandwidth to [{}] bytes per second", bandwidthLimiter.getBytesPerSecond());
+					}
+					for(UploadJob job : jobs) {
+						BlobSink sink = createBlobSink(settings, blobClient, job.getTargetContainer());
+						if (bandwidthLimiter != null) {
+							sink = new ThrottledBlobSink(sink, bandwidthLimiter);
+						}
+						sink.createIfNotExists();
+						job.getMetrics().listen(sink);
+						if (concurrencyController != null) {
+							concurrencyController.listen(sink);
+						}
+						job.setSink(sink);
+						if (settings.isSkipExisting()) {
+							String prefix = StringUtils.isNotBlank(job.getTargetFolder()) ? FilenameUtils.normalizeNoEndSeparator(job.getTargetFolder(), true).replaceFirst("^/", "") + "/" : "";
+							RemoteManifest remoteManifest = new RemoteManifest(sink, prefix, uploadThreadsCount);
+							if (StringUtils.isNotBlank(settings.getManifestCacheFolderPath())) {
+								remoteManifest.setCache(new File(settings.getManifestCacheFolderPath()), settings.getManifestTtl());
+							}
+							remoteManifest.load();
+							job.setRemoteManifestIndex(remoteManifest.getIndex());
+						}
+						if (packThreshold > 0) {
+							String archivePrefix = FilenameUtils.normalize(String.format("%s/%s/%s", StringUtils.defaultString(job.getTargetFolder()), ARCHIVES_FOLDER, new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(startTime))), true).replaceFirst("^/", "");
+							final UploadMetrics jobMetrics = job.getMetrics();
+							final FolderScanner jobScanner = job.getScanner();
+							job.setArchivePackers(new ArchivePackerPool(sink, archivePrefix, settings.getArchiveSize(), new ArchivePacker.Listener() {
+								@Override
+								public void archived(ArchivePacker.PackedFile packedFile) {
+									uploadedFile(metrics, jobMetrics, packedFile.getFile(), packedFile.getArchive(), packedFile.getLength());
+									long logWriteStartTime = System.nanoTime();
+									logUpload(writer, packedFile.getFile().getAbsolutePath(), packedFile.getLength(), packedFile.getMd5(), System.currentTimeMillis(), packedFile.getLastModificationDate(), packedFile.getArchive(), packedFile.getOffset(), null);
+									metrics.getLatency(UploadMetrics.Phase.LOG_WRITE).recordSince(logWriteStartTime);
+								}
+
+								@Override
+								public void dropped(ArchivePacker.PackedFile packedFile) {
+									logger.warn("Failed to upload packed file [{}], its archive [{}] has been dropped", packedFile.getFile(), packedFile.getArchive());
+									jobMetrics.fileFailed(packedFile.getLength());
+									// found again by the next scan of a watched folder
+									jobScanner.forget(new ScannedFile(packedFile.getFile(), packedFile.getLength(), packedFile.getLastModificationDate()));
+								}
+							}, engine == UploadThreads.Engine.VIRTUAL ? Math.min(uploadThreadsCount, Runtime.getRuntime().availableProcessors()) : uploadThreadsCount));
+						}
+						logger.info("Starting uploading folder [{}] to container [{}] using [{}] threads ...", job.getSourceFolder(), sink.getUri(), uploadThreadsCount);
+					}
+					if (concurrencyController != null) {
+						scheduler.scheduleWithFixedDelay(concurrencyController, ConcurrencyController.DEFAULT_ADJUSTMENT_INTERVAL, ConcurrencyController.DEFAULT_ADJUSTMENT_INTERVAL, TimeUnit.MILLISECONDS);
+						logger.info("Adapting upload concurrency within [{}, {}] starting from [{}]", concurrencyController.getMinLimit(), concurrencyController.getMaxLimit(), concurrencyController.getLimit());
+					}
+					final BlockUploadScheduler blockUploadScheduler = new BlockUploadScheduler();
+
+					final FileUploader fileUploader = new FileUploader() {
+						@Override
+						public boolean upload(JobScheduler.Task task) {
+							UploadJob job = task.getJob();
+							BlobSink sink = job.getSink();
+							UploadMetrics jobMetrics = job.getMetrics();
+							ScannedFile scannedFile = task.getFile();
+							File file = scannedFile.getFile();
+							ContentHolder contentHolder = null;
+							try {
+								String filePath = file.getAbsolutePath();
+								long fileSize = scannedFile.getSize();
+								long lastModificationDate = scannedFile.getLastModificationDate();
+
+								String blobItem = job.getBlobName(file);
+
+								long skipCheckStartTime = System.nanoTime();
+								boolean isUploaded = checkFileHasBeenAlreadyUploaded(job.getRemoteManifestIndex(), filePath, blobItem, fileSize, lastModificationDate, null);
+								metrics.getLatency(UploadMetrics.Phase.SKIP_CHECK).recordSince(skipCheckStartTime);
+								if (isUploaded) {
+									jobMetrics.fileSkipped(fileSize);
+									if (directorySnapshot != null) {
+										directorySnapshot.fileUploaded(file);
+									}
+									logger.info("Skipping file [{}], it has been already uploaded", filePath);
+									return false;
+								}
+
+								contentHolder = new ContentHolder(file, fileSize, bufferPool);
+								if (settings.isMapFiles()) {
+									contentHolder.setMappingThreshold(settings.getMappingThreshold());
+									contentHolder.setMappedWindowSize(settings.getMappedWindowSize());
+								}
+								boolean isPacked = job.getArchivePackers() != null && fileSize < packThreshold;
+								boolean isDeduplicated = dedupeIndex != null && !isPacked && fileSize >= settings.getDedupeThreshold();
+								boolean isHashCompared = checkFileHashShouldBeComparedBeforeUpload(job.getRemoteManifestIndex(), filePath, blobItem, fileSize);
+								byte[] md5 = null;
+								if (isDeduplicated || isHashCompared) {
+									long hashStartTime = System.nanoTime();
+									try (InputStream is = contentHolder.getInputStream()) {
+										md5 = DigestUtils.md5(is);
+									}
+									metrics.getLatency(UploadMetrics.Phase.HASH).recordSince(hashStartTime);
+								}
+								if (isHashCompared) {
+									skipCheckStartTime = System.nanoTime();
+									isUploaded = checkFileHasBeenAlreadyUploaded(job.getRemoteManifestIndex(), filePath, blobItem, fileSize, lastModificationDate, md5);
+									metrics.getLatency(UploadMetrics.Phase.SKIP_CHECK).recordSince(skipCheckStartTime);
+									if (isUploaded) {
+										jobMetrics.fileSkipped(fileSize);
+										if (directorySnapshot != null) {
+											directorySnapshot.fileUploaded(file);
+										}
+										logger.info("Skipping file [{}], it has been already uploaded", filePath);
+										if (!checkFileHasBeenAlreadyLogged(filePath, fileSize, md5)) {
+											// found in container only, logged so that next runs skip it without hashing
+											logUpload(writer, filePath, fileSize, md5, System.currentTimeMillis(), lastModificationDate, null, null, sink.getUri(blobItem).toString());
+										}
+										return false;
+									}
+								}
+
+								long fileUploadStartTime = System.nanoTime();
+								if (isPacked) {
+									byte[] packedFileHash;
+									ArchivePacker archivePacker = job.getArchivePackers().acquire();
+									try (InputStream is = contentHolder.getInputStream()) {
+										packedFileHash = archivePacker.add(file, blobItem, fileSize, lastModificationDate, is);
+									} finally {
+										job.getArchivePackers().release(archivePacker);
+									}
+									metrics.getLatency(UploadMetrics.Phase.UPLOAD).recordSince(fileUploadStartTime);
+									jobMetrics.bytesTransferred(fileSize);
+									if (concurrencyController != null) {
+										concurrencyController.recordUploaded(fileSize);
+									}
+									if (md5 != null && !Arrays.equals(md5, packedFileHash)) {
+										throw new IOException(String.format("File [%s] has been changed during packing", filePath));
+									}
+									return true;
+								}
+
+								URI blobUri = sink.getUri(blobItem);
+
+								if (isDeduplicated && copyDuplicate(sink, md5, fileSize, blobItem)) {
+									metrics.getLatency(UploadMetrics.Phase.UPLOAD).recordSince(fileUploadStartTime);
+									jobMetrics.fileDeduplicated(fileSize);
+									uploaded(jobMetrics, file, blobUri, fileSize);
+									long logWriteStartTime = System.nanoTime();
+									logUpload(writer, filePath, fileSize, md5, System.currentTimeMillis(), lastModificationDate, null, null, blobUri.toString());
+									metrics.getLatency(UploadMetrics.Phase.LOG_WRITE).recordSince(logWriteStartTime);
+									return true;
+								}
+
+								byte[] uploadedBytesHash = null;
+								// Content-MD5 of a committed block list is stored as given, so only blobs uploaded in one request are
+								// checked against it, blocks are checked by their transactional MD5 and the blob by its length instead
+								String uploadedFileHash = null;
+								Compressor.Result compressed = null;
+								if (fileSize > largeFileThreshold) {
+									LargeFileUpload largeFileUpload = new LargeFileUpload(file, fileSize, sink, blobItem, settings.getBlockSize(), settings.getParallelBlocksCount(), blockUploadScheduler);
+									largeFileUpload.setMapped(settings.isMapFiles());
+									largeFileUpload.setBufferPool(bufferPool);
+									largeFileUpload.setConcurrencyController(concurrencyController);
+									largeFileUpload.setAttemptsCount(settings.getBlockAttemptsCount());
+									largeFileUpload.setMetrics(jobMetrics);
+									if (StringUtils.isNotBlank(settings.getCheckpointFolderPath())) {
+										largeFileUpload.setCheckpoint(BlockCheckpoint.open(new File(settings.getCheckpointFolderPath()), blobUri.toString(), file, fileSize, lastModificationDate, settings.getBlockSize()));
+									}
+									uploadedBytesHash = largeFileUpload.upload();
+								} else {
+									if (compressor != null && fileSize >= Compressor.MIN_SIZE) {
+										long compressStartTime = System.nanoTime();
+										compressed = compressor.compress(contentHolder, fileSize);
+										metrics.getLatency(UploadMetrics.Phase.COMPRESS).recordSince(compressStartTime);
+									}
+									if (compressed != null) {
+										try {
+											uploadedFileHash = sink.upload(blobItem, compressed.getInputStream(), compressed.getLength(), Compressor.CONTENT_ENCODING, compressed.getMetadata());
+										} finally {
+											compressed.close();
+										}
+										uploadedBytesHash = compressed.getMd5();
+										jobMetrics.bytesTransferred(compressed.getLength());
+										jobMetrics.fileCompressed(fileSize, compressed.getLength());
+										if (concurrencyController != null) {
+											concurrencyController.recordUploaded(compressed.getLength());
+										}
+									} else {
+										try (HashingInputStream is = new HashingInputStream(contentHolder.getInputStream())) {
+											uploadedFileHash = sink.upload(blobItem, is, fileSize);
+											if (is.getHashedLength() != fileSize) {
+												throw new IOException(String.format("File [%s] has been changed during upload, read [%d] bytes but expected [%d]", filePath, is.getHashedLength(), fileSize));
+											}
+											uploadedBytesHash = is.getHash();
+											jobMetrics.bytesTransferred(fileSize);
+											if (concurrencyController != null) {
+												concurrencyController.recordUploaded(fileSize);
+											}
+										}
+									}
+								}
+								if (md5 == null) {
+									md5 = uploadedBytesHash;
+								} else if (!Arrays.equals(md5, uploadedBytesHash)) {
+									throw new IOException(String.format("File [%s] has been changed during upload", filePath));
+								}
+								// compressed blob is stored with Content-MD5 of its compressed content
+								String md5HashBase64 = Base64.encode(compressed != null ? compressed.getCompressedMd5() : md5);
+								if (fileSize <= largeFileThreshold && !StringUtils.equals(md5HashBase64, uploadedFileHash)) {
+									try {
+										sink.deleteIfExists(blobItem);
+									} catch (Exception e) {
+										logger.info(String.format("Failed to delete broken blob [%s]", blobUri), e);
+									}
+									throw new IOException(String.format("Uploaded file [%s] has wrong hash [%s] but expected [%s]", blobUri, uploadedFileHash, md5HashBase64));
+								}
+
+								// compressed blobs are not copied, their Content-MD5 doesn't match the file hash
+								if (dedupeIndex != null && compressed == null) {
+									dedupeIndex.add(sink.getUri(), md5, fileSize, blobItem);
+								}
+								metrics.getLatency(UploadMetrics.Phase.UPLOAD).recordSince(fileUploadStartTime);
+								logger.debug("Uploaded file [{}] in [{}] ms", file, (System.nanoTime() - fileUploadStartTime) / 1000000);
+								uploaded(jobMetrics, file, blobUri, fileSize);
+
+								long logWriteStartTime = System.nanoTime();
+								logUpload(writer, filePath, fileSize, md5, System.currentTimeMillis(), lastModificationDate, null, null, compressed == null ? blobUri.toString() : null);
+								metrics.getLatency(UploadMetrics.Phase.LOG_WRITE).recordSince(logWriteStartTime);
+								return true;
+							} catch (Exception e) {
+								logger.warn(String.format("Failed to upload file [%s]", file), e);
+								jobMetrics.fileFailed(scannedFile.getSize());
+								job.getScanner().forget(scannedFile);
+								return false;
+							} catch (InternalError e) {
+								if (!settings.isMapFiles()) {
+									throw e;
+								}
+								// fault on mapped pages of a truncated file, compiled code might raise it past the read which caused it
+								logger.warn(String.format("Failed to upload file [%s]", file), MappedFileInputStream.truncated(file, e));
+								jobMetrics.fileFailed(scannedFile.getSize());
+								job.getScanner().forget(scannedFile);
+								return false;
+							} finally {
+								if (contentHolder != null) {
+									contentHolder.close();
+								}
+							}
+						}
 
+						private void uploaded(UploadMetrics jobMetrics, File file, Object target, long fileSize) {
+							uploadedFile(metrics, jobMetrics, file, target, fileSize);
+						}
+					};
+
+					if (engine == UploadThreads.Engine.VIRTUAL) {
+						dispatch(fileUploader, jobScheduler, blockUploadScheduler, concurrencyController, uploadThreadsCount, settings.isWatch());
+					} else {
 						Collection<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
 						for(int i = 0; i < uploadThreadsCount; ++i) {
 							tasks.add(new Callable<Void>() {
+								private int threadUploadedFilesCount = 0;
+								private long threadUploadedFilesSize = 0;
+
 								@Override
 								public Void call() throws Exception {
-									int threadUploadedFilesCount = 0;
-									long threadUploadedFilesSize = 0;
-									File file = null;
+									try {
+										upload();
+									} finally {
+										metrics.workerFinished();
+									}
+									logger.info("Thread [{}] uploaded [{}] files of total size [{}]", Thread.currentThread().getName(), threadUploadedFilesCount, threadUploadedFilesSize);
+									return null;
+								}
+
+								private void upload() throws InterruptedException {
 									do {
+										boolean isPermitted = false;
 										try {
-											file = queuedFiles.poll();
-											if (file == null) {
-												break;
-											}
-											String filePath = file.getAbsolutePath();
-											long fileSize = file.length();
-											long lastModificationDate = file.lastModified();
-
-											if (checkFileHasBeenAlreadyUploaded(filePath, fileSize, lastModificationDate, null)) {
-												++skippedFilesCount;
-												logger.info("Skipping file [{}], it has been already uploaded", filePath);
-												continue;
-											}
-
-											ContentHolder contentHolder = new ContentHolder(file, allowInMemoryFileHandling);
-											byte[] md5 = null;
-											try (InputStream is = contentHolder.getInputStream()) {
-												md5 = DigestUtils.md5(new FileInputStream(file));
+											if (concurrencyController != null) {
+												concurrencyController.acquire();
+												isPermitted = true;
 											}
-											String md5HashBase64 = Base64.encode(md5);
-
-											if (checkFileHasBeenAlreadyUploaded(filePath, fileSize, lastModificationDate, md5)) {
-												++skippedFilesCount;
-												logger.info("Skipping file [{}], it has been already uploaded", filePath);
+											if (blockUploadScheduler.runPendingBlocks()) {
 												continue;
 											}
-
-											String blobItem = sourceFolderUri.relativize(file.toURI()).getPath();
-											if (StringUtils.isNotBlank(targetFolder)) {
-												blobItem = FilenameUtils.normalize(String.format("%s/%s", targetFolder, blobItem), true);
+											long pollStartTime = System.nanoTime();
+											JobScheduler.Task task = blockUploadScheduler.hasActiveUploads() ? jobScheduler.poll() : jobScheduler.poll(100, TimeUnit.MILLISECONDS);
+											metrics.workerIdle(System.nanoTime() - pollStartTime);
+											if (task == null) {
+												if (blockUploadScheduler.hasActiveUploads()) {
+													blockUploadScheduler.awaitPendingBlocks(100);
+													continue;
+												}
+												if (settings.isWatch()) {
+													flushArchives(jobScheduler);
+												}
+												if (!jobScheduler.isFinished()) {
+													continue;
+												}
+												break;
 											}
-		
-											long fileUploadStartTime = System.currentTimeMillis();
-											CloudBlockBlob blob = container.getBlockBlobReference(blobItem);
-		
-											try (InputStream is = contentHolder.getInputStream()) {
-												blob.upload(is, fileSize, null, blobRequestOptions, operationContext);
+											if (fileUploader.upload(task)) {
+												++threadUploadedFilesCount;
+												threadUploadedFilesSize += task.getFile().getSize();
 											}
-											String uploadedFileHash = blob.getProperties().getContentMD5();
-											if (!StringUtils.equals(md5HashBase64, uploadedFileHash)) {
-												try {
-													blob.deleteIfExists();
-												} catch (Exception e) {
-													logger.info(String.format("Failed to delete broken blob [%s]", blob.getUri().toString()), e);
-												}
-												throw new IOException(String.format("Uploaded file [%s] has wrong hash [%s] but expected [%s]", blob.getUri().toString(), uploadedFileHash, md5HashBase64));
+										} finally {
+											if (isPermitted) {
+												concurrencyController.release();
 											}
-		
-											++uploadedFilesCount;
-											++threadUploadedFilesCount;
-											uploadedFilesSize += fileSize;
-											threadUploadedFilesSize += fileSize;
-											logger.info("Uploaded file [{}] to [{}] in [{}] ms, totally uploaded [{}] files of [{}] ([{}] skipped), uploaded files size [{}]", file, blob.getUri(), System.currentTimeMillis() - fileUploadStartTime, uploadedFilesCount, filesCount, skippedFilesCount, uploadedFilesSize);
-		
-											logUpload(writer, filePath, fileSize, md5, System.currentTimeMillis(), lastModificationDate);
-										} catch (Exception e) {
-											logger.warn(String.format("Failed to upload file [%s]", file), e);
 										}
 									} while (true);
-									logger.info("Thread [{}] uploaded [{}] files of total size [{}]", Thread.currentThread().getName(), threadUploadedFilesCount, threadUploadedFilesSize);
-									return null;
 								}
 							});
 						}
@@ -315,108 +1066,319 @@ public class AzureFolderUpload {
 						for(Future<Void> result : tasksResult) {
 							result.get();
 						}
-					} catch (InvalidKeyException | URISyntaxException | StorageException e) {
-						logger.warn("Upload failed", e);
-						System.exit(1);
-					} finally {
+					}
+				} catch (IOException e) {
+					logger.warn("Upload failed", e);
+					System.exit(1);
+				} finally {
+					for(UploadJob job : jobs) {
+						if (job.getArchivePackers() != null) {
+							job.getArchivePackers().close();
+						}
+					}
+					if (exec != null) {
 						exec.shutdown();
 					}
-	
-					try {
+					scheduler.shutdownNow();
+					if (compressor != null) {
+						compressor.close();
+					}
+				}
+
+				try {
+					if (exec != null) {
 						exec.awaitTermination(31, TimeUnit.DAYS);
-					} catch (InterruptedException ex) {
-						logger.error("Upload failed", ex);
-						System.exit(1);
 					}
+				} catch (InterruptedException ex) {
+					logger.error("Upload failed", ex);
+					System.exit(1);
+				}
+			}
+			if (directorySnapshot != null) {
+				// folders having files which haven't been uploaded are left out, they are listed next time
+				try {
+					directorySnapshot.save(snapshotFile);
+				} catch (IOException e) {
+					logger.warn(String.format("Failed to save folder snapshot [%s]", snapshotFile), e);
+				}
+			}
+			metrics.run();
+			metrics.unregisterMBean();
+			if (metrics.getFoundFilesCount() > 0) {
+				if (jobs.size() > 1) {
+					for(UploadJob job : jobs) {
+						UploadMetrics jobMetrics = job.getMetrics();
+						logger.info("Finished {}: found [{}] files, uploaded [{}] files (+ [{}] skipped, [{}] failed) of total size [{}] bytes", job, jobMetrics.getFoundFilesCount(), jobMetrics.getUploadedFilesCount(), jobMetrics.getSkippedFilesCount(), jobMetrics.getFailedFilesCount(), jobMetrics.getUploadedFilesSize());
+					}
+				} else {
+					logger.info("Found [{}] files in source folder [{}]", metrics.getFoundFilesCount(), jobs.get(0).getSourceFolder());
+				}
+				logger.info("Finished uploading [{}] files (+ [{}] skipped, [{}] failed) of total size [{}] bytes in [{}] s", metrics.getUploadedFilesCount(), metrics.getSkippedFilesCount(), metrics.getFailedFilesCount(), metrics.getUploadedFilesSize(), (System.currentTimeMillis() - startTime) / 1000);
+				if (dedupeIndex != null) {
+					logger.info("Copied [{}] files having the same content as uploaded ones, saved [{}] bytes of upload", metrics.getDeduplicatedFilesCount(), metrics.getDeduplicatedBytes());
+				}
+				if (compression != null) {
+					logger.info("Compressed [{}] files, saved [{}] bytes of upload", metrics.getCompressedFilesCount(), metrics.getCompressionSavedBytes());
+				}
+				for(String phaseLatency : metrics.getPhaseLatencies()) {
+					logger.info("Latency of {}", phaseLatency);
+				}
+				for(String workerIdleTime : metrics.getWorkerIdleTimes()) {
+					logger.info("Idle time of {}", workerIdleTime);
+				}
+				if (bufferPool != null) {
+					logger.info("In memory buffer pool usage: {}", bufferPool);
 				}
-				logger.info("Finished uploading [{}] files (+ [{}] skipped) of total size [{}] bytes in [{}] s", uploadedFilesCount, skippedFilesCount, uploadedFilesSize, (System.currentTimeMillis() - startTime) / 1000);
 			} else {
-				logger.info("Specified source [{}] folder doesn't contain any files");
+				logger.info("Specified source folders {} don't contain any files", jobs.size() > 1 ? jobs : Arrays.asList(sourcePath));
 			}
 		} catch (Exception e) {
-			logger.warn(String.format("Failed to upload folder [%s] to azure container [%s] using [%d] threads and connection string [%s]", sourcePath, targetContainer, uploadThreadsCount, azureConnectionString), e);
+			if (StringUtils.isNotBlank(settings.getJobFilePath())) {
+				logger.warn(String.format("Failed to upload jobs of job file [%s] using [%d] threads and connection string [%s]", settings.getJobFilePath(), uploadThreadsCount, azureConnectionString), e);
+			} else {
+				logger.warn(String.format("Failed to upload folder [%s] to azure container [%s] using [%d] threads and connection string [%s]", sourcePath, targetContainer, uploadThreadsCount, azureConnectionString), e);
+			}
+		} finally {
+			uploadFinished.countDown();
 		}
 	}
 	
-	private static Collection<File> listFiles(final File directory, final String markerFileName) {
-		Collection<File> files = null;
-		final AtomicInteger skippedFilesCount = new AtomicInteger(0);
-		long startTime = System.currentTimeMillis();
-		if (StringUtils.isBlank(markerFileName)) {
-			files = FileUtils.listFiles(directory, null, true);
+	/**
+	 * Uploads file taken from the queue of its job, failures are logged and counted.
+	 */
+	private interface FileUploader {
+		/**
+		 * @return true if the file has been uploaded, copied or packed, false if it has been skipped or failed
+		 */
+		boolean upload(JobScheduler.Task task);
+	}
+
+	private static void uploadedFile(UploadMetrics metrics, UploadMetrics jobMetrics, File file, Object target, long fileSize) {
+		jobMetrics.fileUploaded(fileSize);
+		if (directorySnapshot != null) {
+			directorySnapshot.fileUploaded(file);
+		}
+		logger.info("Uploaded file [{}] to [{}], totally uploaded [{}] files of [{}{}] ([{}] skipped), uploaded files size [{}]", file, target, metrics.getUploadedFilesCount(), metrics.getFoundFilesCount(), metrics.isScanFinished() ? "" : "+", metrics.getSkippedFilesCount(), metrics.getUploadedFilesSize());
+	}
+
+	/**
+	 * Nothing to pack, files packed so far shouldn't wait for more files to appear.
+	 */
+	private static void flushArchives(JobScheduler jobScheduler) {
+		for(UploadJob job : jobScheduler.getJobs()) {
+			if (job.getArchivePackers() != null) {
+				try {
+					job.getArchivePackers().flush();
+				} catch (IOException e) {
+					logger.warn(String.format("Failed to commit archive of %s", job), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Virtual engine: starts a thread per queued file and per pending block of large files while the count of them in
+	 * flight is below the limit, returns once all files have been uploaded.
+	 */
+	private static void dispatch(final FileUploader fileUploader, JobScheduler jobScheduler, final BlockUploadScheduler blockUploadScheduler, final ConcurrencyController concurrencyController, int maxInFlightCount, boolean isWatch) throws InterruptedException {
+		ThreadFactory threadFactory = UploadThreads.newVirtualThreadFactory("upload-");
+		if (threadFactory != null) {
+			logger.info("Uploading up to [{}] files in flight on virtual threads", maxInFlightCount);
 		} else {
-			files = FileUtils.listFiles(
-					directory, 
-					new IOFileFilter() {
+			threadFactory = UploadThreads.newPlatformThreadFactory("upload-");
+			logger.info("Virtual threads are not supported by Java {}, uploading up to [{}] files in flight on platform threads", System.getProperty("java.version"), maxInFlightCount);
+		}
+		final Semaphore inFlight = new Semaphore(maxInFlightCount);
+		while (true) {
+			inFlight.acquire();
+			boolean isStarted = false;
+			try {
+				Runnable runnable;
+				if (blockUploadScheduler.hasPendingBlocks()) {
+					runnable = new Runnable() {
 						@Override
-						public boolean accept(File dir, String name) {
-							return true;
+						public void run() {
+							boolean isPermitted = false;
+							try {
+								if (concurrencyController != null) {
+									concurrencyController.acquire();
+									isPermitted = true;
+								}
+								blockUploadScheduler.runPendingBlocks();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							} finally {
+								if (isPermitted) {
+									concurrencyController.release();
+								}
+								inFlight.release();
+							}
+						}
+					};
+				} else {
+					final JobScheduler.Task task = blockUploadScheduler.hasActiveUploads() ? jobScheduler.poll() : jobScheduler.poll(100, TimeUnit.MILLISECONDS);
+					if (task == null) {
+						if (blockUploadScheduler.hasActiveUploads()) {
+							blockUploadScheduler.awaitPendingBlocks(100);
+							continue;
+						}
+						if (isWatch) {
+							flushArchives(jobScheduler);
 						}
-						
+						if (!jobScheduler.isFinished()) {
+							continue;
+						}
+						break;
+					}
+					runnable = new Runnable() {
 						@Override
-						public boolean accept(File file) {
-							if (file.isFile()) {
-								File parentFolder = file;
-								do {
-									parentFolder = parentFolder.getParentFile();
-									File markerFile = new File(parentFolder, markerFileName);
-									if (markerFile.exists()) {
-										return true;
-									}
-								} while (parentFolder != null && !parentFolder.equals(directory));
-								skippedFilesCount.incrementAndGet();
+						public void run() {
+							boolean isPermitted = false;
+							try {
+								if (concurrencyController != null) {
+									concurrencyController.acquire();
+									isPermitted = true;
+								}
+								fileUploader.upload(task);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							} finally {
+								if (isPermitted) {
+									concurrencyController.release();
+								}
+								inFlight.release();
 							}
-							return false;
 						}
-					},
-					TrueFileFilter.INSTANCE
-			);
+					};
+				}
+				threadFactory.newThread(runnable).start();
+				isStarted = true;
+			} finally {
+				if (!isStarted) {
+					inFlight.release();
+				}
+			}
+		}
+		// files still in flight
+		inFlight.acquire(maxInFlightCount);
+		inFlight.release(maxInFlightCount);
+	}
+
+	private static boolean isAzureSink(UploadSettings settings) {
+		return StringUtils.isBlank(settings.getSink()) || AZURE_SINK.equals(settings.getSink());
+	}
+
+	private static BlobSink createBlobSink(UploadSettings settings, CloudBlobClient blobClient, String containerName) throws IOException {
+		if (isAzureSink(settings)) {
+			return AzureBlobSink.create(blobClient, containerName);
 		}
-		logger.info("Found [{}] files in folder [{}] using marker file [{}] (skipped [{}] files), it took [{}] ms", files != null ? files.size() : 0, directory, markerFileName, skippedFilesCount.intValue(), System.currentTimeMillis() - startTime);
-		return files;
+		File directory = LoopbackBlobSink.NULL_SINK.equals(settings.getSink()) ? null : new File(settings.getSink(), containerName);
+		return new LoopbackBlobSink(directory, settings.getSinkLatency(), settings.getSinkThrottleRate());
 	}
 
 	private static void prepareUploadLogSchema() {
 		mapper = new CsvMapper();
 		schema = mapper.schemaFor(UploadedFileLogItem.class).withoutHeader();
-		csvObjectWriter = mapper.writer(schema);
 		csvObjectReader = mapper.reader(UploadedFileLogItem.class).with(schema);
 	}
 
-	private static void readUploadLog(String path) {
+	/**
+	 * Starts loading upload log in background, uploading may proceed while log is being loaded.
+	 * Paths of the log are collected into a {@link PathFilter} by a quick pass first, after it {@link UploadLogIndex}
+	 * lookups of files which are not in the log proceed immediately, lookups of logged files wait for the full load.
+	 * Compacted upload log is memory mapped instead of being loaded.
+	 */
+	private static void readUploadLog(final String path) {
 		if (StringUtils.isNotBlank(path)) {
-			long startTime = System.currentTimeMillis();
-			try {
-				File uploadLogFile = new File(path);
-				if (uploadLogFile.exists()) {
-					uploadLogItems = new ArrayList<UploadedFileLogItem>();
-					try (InputStream is = new BufferedInputStream(new FileInputStream(uploadLogFile))) {
-						for(String s : IOUtils.readLines(is)) {
-							try {
-								UploadedFileLogItem logItem = csvObjectReader.readValue(s);
-								uploadLogItems.add(logItem);
-							} catch (Exception e) {
-								logger.warn(String.format("Failed to parse upload log item\n%s", s), e);
-							}
+			final File uploadLogFile = new File(path);
+			if (uploadLogFile.exists()) {
+				try {
+					if (CompactedUploadLog.isCompacted(uploadLogFile)) {
+						long startTime = System.currentTimeMillis();
+						CompactedUploadLog compactedLog = CompactedUploadLog.open(uploadLogFile);
+						UploadLogIndex index = new UploadLogIndex();
+						index.setCompactedLog(compactedLog);
+						uploadLogIndex = index;
+						logger.info("Mapped [{}] compacted upload log items from [{}] in [{}] ms", compactedLog.size(), uploadLogFile, System.currentTimeMillis() - startTime);
+						if (dedupeIndex != null) {
+							readDedupeIndex(compactedLog, dedupeIndex);
 						}
+						return;
 					}
-					uploadLogItems = Collections.synchronizedCollection(uploadLogItems);
-					logger.info("Read [{}] upload log items from [{}] in [{}] ms", uploadLogItems.size(), uploadLogFile, System.currentTimeMillis() - startTime);
+				} catch (IOException e) {
+					logger.warn(String.format("Failed to read upload log file [%s]", path), e);
+					return;
 				}
-			} catch (Exception e) {
-				logger.warn(String.format("Failed to read upload log file [%s]", path), e);
+				final UploadLogIndex index = new UploadLogIndex();
+				index.beginLoading();
+				uploadLogIndex = index;
+				Thread loader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						long startTime = System.currentTimeMillis();
+						try {
+							final PathFilter pathFilter = PathFilter.forUploadLog(uploadLogFile.length());
+							new UploadLogReader(csvObjectReader).readPaths(uploadLogFile, new UploadLogReader.PathHandler() {
+								@Override
+								public void handle(String path) {
+									pathFilter.add(UploadLogIndex.normalizePath(path));
+								}
+							});
+							index.setPathFilter(pathFilter);
+							logger.info("Read upload log paths from [{}] in [{}] ms", uploadLogFile, System.currentTimeMillis() - startTime);
+
+							UploadLogReader reader = new UploadLogReader(csvObjectReader);
+							final DedupeIndex dedupe = dedupeIndex;
+							long itemsCount = reader.read(uploadLogFile, new UploadLogReader.ItemHandler() {
+								@Override
+								public void handle(UploadedFileLogItem item) {
+									index.add(item);
+									if (dedupe != null) {
+										dedupe.add(item);
+									}
+								}
+							});
+							logger.info("Read [{}] upload log items ([{}] malformed) from [{}] in [{}] ms", itemsCount, reader.getMalformedLinesCount(), uploadLogFile, System.currentTimeMillis() - startTime);
+						} catch (Exception e) {
+							logger.warn(String.format("Failed to read upload log file [%s]", path), e);
+						} finally {
+							index.endLoading();
+						}
+					}
+				}, "upload-log-reader");
+				loader.setDaemon(true);
+				loader.start();
 			}
-		}		
+		}
 	}
-	
-	private static Writer prepareUploadLogWriter(String path) {
+
+	/**
+	 * Compacted upload log isn't indexed by hash, so blobs are read from it in background. Duplicates of files found
+	 * before the reading is finished are uploaded.
+	 */
+	private static void readDedupeIndex(final CompactedUploadLog compactedLog, final DedupeIndex dedupe) {
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long startTime = System.currentTimeMillis();
+				for(int i = 0; i < compactedLog.size(); ++i) {
+					dedupe.add(compactedLog.getItem(i));
+				}
+				logger.info("Read blobs of [{}] distinct contents to deduplicate from [{}] in [{}] ms", dedupe.size(), compactedLog.getFile(), System.currentTimeMillis() - startTime);
+			}
+		}, "dedupe-reader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	private static UploadLogWriter prepareUploadLogWriter(String path, UploadSettings settings) {
 		if (StringUtils.isNotBlank(path)) {
 			File uploadLogFile = new File(path);
 			if (uploadLogFile.exists()) {
 				logger.info("Upload log file [{}] already exists, appending it", uploadLogFile);
 			}
 			try {
-				return Files.newBufferedWriter(uploadLogFile.toPath(), Charsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+				return new UploadLogWriter(uploadLogFile, settings.getLogFlushRecordsCount(), settings.getLogFlushInterval(), settings.isLogFsync());
 			} catch (IOException e) {
 				logger.warn(String.format("Failed to create writer for upload log file [%s]", path), e);
 			}			
@@ -424,55 +1386,70 @@ public class AzureFolderUpload {
 		return null;
 	}
 
-	private static void logUpload(Writer writer, String filePath, long size, byte[] hash, long uploadDate, long lastModification) {
-		if (writer == null) {
-			return;
+	/**
+	 * Copies blob of the sink container with the same content if there is one, the blob is forgotten if it can't be copied.
+	 * @return true if the blob has been copied
+	 */
+	private static boolean copyDuplicate(BlobSink sink, byte[] md5, long size, String blobName) {
+		String sourceBlobName = dedupeIndex.find(sink.getUri(), md5, size);
+		if (sourceBlobName == null || sourceBlobName.equals(blobName)) {
+			return false;
 		}
-		UploadedFileLogItem logItem = new UploadedFileLogItem();
-		logItem.setHash(Hex.encodeHexString(hash));
-		logItem.setLast_modification(lastModification);
-		logItem.setPath(filePath);
-		logItem.setSize(size);
-		logItem.setUploaded(uploadDate);
-		
+		String md5HashBase64 = Base64.encode(md5);
 		try {
-			String logItemString = csvObjectWriter.writeValueAsString(logItem);
-			IOUtils.write(logItemString, writer);
+			String copiedFileHash = sink.copy(sourceBlobName, blobName);
+			if (StringUtils.equals(md5HashBase64, copiedFileHash)) {
+				logger.debug("Copied blob [{}] to [{}]", sourceBlobName, blobName);
+				return true;
+			}
+			logger.info("Blob [{}] copied from [{}] has hash [{}] but expected [{}], uploading it", blobName, sourceBlobName, copiedFileHash, md5HashBase64);
 		} catch (IOException e) {
-			logger.info(String.format("Failed to save upload log item for file [%s]", filePath), e);
+			logger.info(String.format("Failed to copy blob [%s] to [%s], uploading it", sourceBlobName, blobName), e);
+		}
+		dedupeIndex.remove(sink.getUri(), md5, size, sourceBlobName);
+		return false;
+	}
+
+	private static void logUpload(UploadLogWriter writer, String filePath, long size, byte[] hash, long uploadDate, long lastModification, String archive, Long archiveOffset, String blob) {
+		if (writer == null) {
+			return;
 		}
+		writer.log(filePath, size, hash, uploadDate, lastModification, archive, archiveOffset, blob);
+	}
+
+	/**
+	 * Hash has to be computed before upload only if the file with the same path and size has been uploaded before,
+	 * otherwise it's computed while file is being uploaded.
+	 */
+	private static boolean checkFileHashShouldBeComparedBeforeUpload(final UploadLogIndex remoteManifestIndex, final String path, final String blobName, final long size) {
+		return (uploadLogIndex != null && !uploadLogIndex.isEmpty() && uploadLogIndex.hasCandidate(path, size))
+				|| (remoteManifestIndex != null && !remoteManifestIndex.isEmpty() && remoteManifestIndex.hasCandidate(blobName, size));
+	}
+
+	private static boolean checkFileHasBeenAlreadyLogged(final String path, final long size, final byte[] hash) {
+		return uploadLogIndex != null && !uploadLogIndex.isEmpty() && uploadLogIndex.findByHash(path, size, hash) != null;
 	}
 
-	private static boolean checkFileHasBeenAlreadyUploaded(final String path, final long size, final long lastModificationDate, final byte[] hash) {
-		if (uploadLogItems != null && !uploadLogItems.isEmpty()) {
-			String hashHexTmp = null;
+	/**
+	 * Blob in the remote manifest has no local modification date, so it's only matched by size and Content-MD5.
+	 */
+	private static boolean checkFileHasBeenAlreadyUploaded(final UploadLogIndex remoteManifestIndex, final String path, final String blobName, final long size, final long lastModificationDate, final byte[] hash) {
+		if (uploadLogIndex != null && !uploadLogIndex.isEmpty()) {
+			UploadLogIndex.Entry uploadedFileLogEntry = null;
 			if (hash != null && hash.length > 0) {
-				hashHexTmp = Hex.encodeHexString(hash);
-			}
-			final String hashHex = hashHexTmp;
-			UploadedFileLogItem uploadedFileLogItem = CollectionUtils.find(uploadLogItems, new Predicate<UploadedFileLogItem>() {
-				@Override
-				public boolean evaluate(UploadedFileLogItem item) {
-					if (StringUtils.isNotBlank(hashHex)) {
-						if (StringUtils.equalsIgnoreCase(path, item.getPath()) &&
-							StringUtils.equals(hashHex, item.getHash()) &&
-							size == item.getSize()
-						) {
-							return true;
-						}
-					} else {
-						if (StringUtils.equalsIgnoreCase(path, item.getPath()) &&
-							lastModificationDate == item.getLast_modification() &&
-							size == item.getSize()
-						) {
-							return true;
-						}
-					}
-					return false;
-				}
-			});
-			if (uploadedFileLogItem != null) {
-				logger.debug("File [{}] has been already uploaded on [{}]", path, new Date(uploadedFileLogItem.getUploaded()));
+				uploadedFileLogEntry = uploadLogIndex.findByHash(path, size, hash);
+			} else {
+				uploadedFileLogEntry = uploadLogIndex.findByModification(path, size, lastModificationDate);
+			}
+			if (uploadedFileLogEntry != null) {
+				logger.debug("File [{}] has been already uploaded on [{}]", path, new Date(uploadedFileLogEntry.getUploaded()));
+				return true;
+			}
+		}
+		if (hash != null && hash.length > 0 && remoteManifestIndex != null && !remoteManifestIndex.isEmpty()) {
+			UploadLogIndex.Entry blobEntry = remoteManifestIndex.findByHash(blobName, size, hash);
+			if (blobEntry != null) {
+				logger.debug("File [{}] exists in container as [{}] modified on [{}]", path, blobName, new Date(blobEntry.getLastModification()));
 				return true;
 			}
 		}
@@ -494,17 +1471,60 @@ public class AzureFolderUpload {
 
 			Configuration configuration = readConfiguration(configFileLocation);
 			String azureConnectionString = configuration.getString(AZURE_CONNECTION_STRING_PROPERTY_NAME);
-			uploadFolder(
-					azureConnectionString, 
-					commandLine.getOptionValue(SOURCE_FOLDER_ARG_NAME),
-					commandLine.getOptionValue(TARGET_AZURE_CONTAINER_ARG_NAME),
-					commandLine.getOptionValue(TARGET_FOLDER_ARG_NAME),
-					NumberUtils.toInt(commandLine.getOptionValue(THREADS_COUNT_ARG_NAME)),
-					commandLine.hasOption(IN_MEMORY_ARG_NAME),
-					commandLine.getOptionValue(UPLOAD_LOG_ARG_NAME),
-					commandLine.getOptionValue(SKIP_UPLOADED_ARG_NAME),
-					commandLine.getOptionValue(FOLDER_READY_MARKER_FILE_ARG_NAME)
-			);
+			UploadSettings settings = new UploadSettings();
+			settings.setAzureConnectionString(azureConnectionString);
+			settings.setSourcePath(commandLine.getOptionValue(SOURCE_FOLDER_ARG_NAME));
+			settings.setTargetContainer(commandLine.getOptionValue(TARGET_AZURE_CONTAINER_ARG_NAME));
+			settings.setTargetFolder(commandLine.getOptionValue(TARGET_FOLDER_ARG_NAME));
+			settings.setUploadThreadsCount(NumberUtils.toInt(commandLine.getOptionValue(THREADS_COUNT_ARG_NAME)));
+			settings.setAllowInMemoryFileHandling(commandLine.hasOption(IN_MEMORY_ARG_NAME));
+			settings.setUploadLogFilePath(commandLine.getOptionValue(UPLOAD_LOG_ARG_NAME));
+			settings.setSkipUploadedFilePath(commandLine.getOptionValue(SKIP_UPLOADED_ARG_NAME));
+			settings.setFolderReadyMarkerFileName(commandLine.getOptionValue(FOLDER_READY_MARKER_FILE_ARG_NAME));
+			settings.setBlockSize(NumberUtils.toInt(commandLine.getOptionValue(BLOCK_SIZE_ARG_NAME), UploadSettings.DEFAULT_BLOCK_SIZE));
+			settings.setParallelBlocksCount(NumberUtils.toInt(commandLine.getOptionValue(PARALLEL_BLOCKS_ARG_NAME)));
+			settings.setLargeFileThreshold(NumberUtils.toLong(commandLine.getOptionValue(LARGE_FILE_THRESHOLD_ARG_NAME), UploadSettings.DEFAULT_LARGE_FILE_THRESHOLD));
+			settings.setPackThreshold(NumberUtils.toLong(commandLine.getOptionValue(PACK_THRESHOLD_ARG_NAME)));
+			settings.setArchiveSize(NumberUtils.toLong(commandLine.getOptionValue(ARCHIVE_SIZE_ARG_NAME), UploadSettings.DEFAULT_ARCHIVE_SIZE));
+			settings.setQueueSize(NumberUtils.toInt(commandLine.getOptionValue(QUEUE_SIZE_ARG_NAME), UploadSettings.DEFAULT_QUEUE_SIZE));
+			settings.setScanThreadsCount(NumberUtils.toInt(commandLine.getOptionValue(SCAN_THREADS_ARG_NAME), Runtime.getRuntime().availableProcessors()));
+			settings.setInMemoryBudget(NumberUtils.toLong(commandLine.getOptionValue(IN_MEMORY_BUDGET_ARG_NAME), Runtime.getRuntime().maxMemory() / 4));
+			settings.setInMemoryBufferSize(NumberUtils.toInt(commandLine.getOptionValue(IN_MEMORY_BUFFER_SIZE_ARG_NAME), UploadSettings.DEFAULT_IN_MEMORY_BUFFER_SIZE));
+			settings.setInMemoryOffHeap(commandLine.hasOption(IN_MEMORY_OFF_HEAP_ARG_NAME));
+			settings.setMapFiles(commandLine.hasOption(MAP_FILES_ARG_NAME));
+			settings.setMappingThreshold(NumberUtils.toLong(commandLine.getOptionValue(MAPPING_THRESHOLD_ARG_NAME), UploadSettings.DEFAULT_MAPPING_THRESHOLD));
+			settings.setMappedWindowSize(NumberUtils.toInt(commandLine.getOptionValue(MAPPED_WINDOW_SIZE_ARG_NAME), UploadSettings.DEFAULT_MAPPED_WINDOW_SIZE));
+			settings.setAdaptiveConcurrency(commandLine.hasOption(ADAPTIVE_CONCURRENCY_ARG_NAME));
+			settings.setMinThreadsCount(NumberUtils.toInt(commandLine.getOptionValue(MIN_THREADS_COUNT_ARG_NAME), 1));
+			settings.setCheckpointFolderPath(commandLine.getOptionValue(CHECKPOINT_FOLDER_ARG_NAME));
+			settings.setBlockAttemptsCount(NumberUtils.toInt(commandLine.getOptionValue(BLOCK_ATTEMPTS_ARG_NAME), LargeFileUpload.DEFAULT_ATTEMPTS_COUNT));
+			settings.setMetricsFilePath(commandLine.getOptionValue(METRICS_FILE_ARG_NAME));
+			settings.setMetricsInterval(NumberUtils.toLong(commandLine.getOptionValue(METRICS_INTERVAL_ARG_NAME), UploadMetrics.DEFAULT_REPORT_INTERVAL));
+			settings.setSink(commandLine.getOptionValue(SINK_ARG_NAME, AZURE_SINK));
+			settings.setSinkLatency(NumberUtils.toLong(commandLine.getOptionValue(SINK_LATENCY_ARG_NAME)));
+			settings.setSinkThrottleRate(NumberUtils.toDouble(commandLine.getOptionValue(SINK_THROTTLE_RATE_ARG_NAME)));
+			settings.setLogFlushRecordsCount(NumberUtils.toInt(commandLine.getOptionValue(LOG_FLUSH_RECORDS_ARG_NAME), UploadLogWriter.DEFAULT_FLUSH_RECORDS_COUNT));
+			settings.setLogFlushInterval(NumberUtils.toLong(commandLine.getOptionValue(LOG_FLUSH_INTERVAL_ARG_NAME), UploadLogWriter.DEFAULT_FLUSH_INTERVAL));
+			settings.setLogFsync(!commandLine.hasOption(LOG_NO_FSYNC_ARG_NAME));
+			settings.setSkipExisting(commandLine.hasOption(SKIP_EXISTING_ARG_NAME));
+			settings.setManifestCacheFolderPath(commandLine.getOptionValue(MANIFEST_CACHE_ARG_NAME));
+			settings.setManifestTtl(NumberUtils.toLong(commandLine.getOptionValue(MANIFEST_TTL_ARG_NAME), RemoteManifest.DEFAULT_TTL));
+			settings.setDedupe(commandLine.hasOption(DEDUPE_ARG_NAME));
+			settings.setDedupeThreshold(NumberUtils.toLong(commandLine.getOptionValue(DEDUPE_THRESHOLD_ARG_NAME), DedupeIndex.DEFAULT_THRESHOLD));
+			settings.setCompression(commandLine.getOptionValue(COMPRESS_ARG_NAME));
+			settings.setCompressThreadsCount(NumberUtils.toInt(commandLine.getOptionValue(COMPRESS_THREADS_ARG_NAME), Runtime.getRuntime().availableProcessors()));
+			settings.setSchedule(commandLine.getOptionValue(SCHEDULE_ARG_NAME));
+			settings.setPriorityFolders(commandLine.getOptionValues(PRIORITY_FOLDERS_ARG_NAME));
+			settings.setWatch(commandLine.hasOption(WATCH_ARG_NAME));
+			settings.setReconcileInterval(NumberUtils.toLong(commandLine.getOptionValue(RECONCILE_INTERVAL_ARG_NAME), FolderWatcher.DEFAULT_RECONCILE_INTERVAL));
+			settings.setJobFilePath(commandLine.getOptionValue(JOB_FILE_ARG_NAME));
+			settings.setBandwidth(NumberUtils.toLong(commandLine.getOptionValue(BANDWIDTH_ARG_NAME)));
+			settings.setEngine(commandLine.getOptionValue(ENGINE_ARG_NAME));
+			settings.setShard(commandLine.getOptionValue(SHARD_ARG_NAME));
+			settings.setShardBalanceFilePath(commandLine.getOptionValue(SHARD_BALANCE_ARG_NAME));
+			settings.setSnapshotFilePath(commandLine.getOptionValue(SNAPSHOT_ARG_NAME));
+			settings.setFullScan(commandLine.hasOption(FULL_SCAN_ARG_NAME));
+			uploadFolder(settings);
 		} catch (ParseException exp) {
 			logger.warn(exp.getMessage());
 			HelpFormatter formatter = new HelpFormatter();
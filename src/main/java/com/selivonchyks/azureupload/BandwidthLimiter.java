@@ -0,0 +1,136 @@
+package com.selivonchyks.azureupload;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth budget shared by all uploads of the process. Bytes are paid for as they are read from or written
+ * into wrapped streams, the caller sleeps until the budget allows the bytes to be sent. Unused budget is saved
+ * for at most a second, so the rate might exceed the budget for a second after a pause.
+ */
+public class BandwidthLimiter {
+	private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final long bytesPerSecond;
+	// time the budget is spent until
+	private long nextFreeTime = System.nanoTime();
+
+	/**
+	 * @param bytesPerSecond bandwidth budget in bytes per second
+	 */
+	public BandwidthLimiter(long bytesPerSecond) {
+		if (bytesPerSecond < 1) {
+			throw new IllegalArgumentException(String.format("Bandwidth budget %d has to be positive", bytesPerSecond));
+		}
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Waits until the bytes fit into the budget.
+	 */
+	public void acquire(long bytes) throws InterruptedIOException {
+		if (bytes <= 0) {
+			return;
+		}
+		long waitNanos;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (nextFreeTime < now - BURST_NANOS) {
+				nextFreeTime = now - BURST_NANOS;
+			}
+			nextFreeTime += (long) (bytes * 1e9 / bytesPerSecond);
+			waitNanos = nextFreeTime - now;
+		}
+		if (waitNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for bandwidth budget");
+			}
+		}
+	}
+
+	/**
+	 * Bytes read again after reset are not paid for again, since the sink might read the stream twice to compute
+	 * its hash before sending it.
+	 */
+	public InputStream limit(InputStream is) {
+		return new FilterInputStream(is) {
+			private long position = 0;
+			private long paidPosition = 0;
+			private long markPosition = 0;
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					advance(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					advance(read);
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				position += skipped;
+				paidPosition = Math.max(paidPosition, position);
+				return skipped;
+			}
+
+			@Override
+			public synchronized void mark(int readlimit) {
+				super.mark(readlimit);
+				markPosition = position;
+			}
+
+			@Override
+			public synchronized void reset() throws IOException {
+				super.reset();
+				position = markPosition;
+			}
+
+			private void advance(long bytes) throws InterruptedIOException {
+				position += bytes;
+				if (position > paidPosition) {
+					acquire(position - paidPosition);
+					paidPosition = position;
+				}
+			}
+		};
+	}
+
+	public OutputStream limit(OutputStream os) {
+		return new FilterOutputStream(os) {
+			@Override
+			public void write(int b) throws IOException {
+				acquire(1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				acquire(len);
+				out.write(b, off, len);
+			}
+		};
+	}
+}
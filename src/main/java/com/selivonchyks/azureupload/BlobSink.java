@@ -0,0 +1,98 @@
+package com.selivonchyks.azureupload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Upload target, a container of block blobs addressed by blob names. Implementations must be thread safe.
+ * Failed requests are reported by {@link BlobSinkException} carrying the HTTP status code.
+ */
+public interface BlobSink {
+	/** metadata of compressed blobs: length of the content before compression */
+	String ORIGINAL_LENGTH_METADATA = "original_length";
+	/** metadata of compressed blobs: Base64 encoded MD5 of the content before compression */
+	String ORIGINAL_MD5_METADATA = "original_md5";
+
+	/**
+	 * Observes every response received by the sink, including the ones of requests retried by the sink itself.
+	 */
+	interface ResponseListener {
+		void responseReceived(int statusCode, long latencyMillis);
+
+		void retrying();
+	}
+
+	/**
+	 * Receives blobs found by listing, called from the listing thread.
+	 */
+	interface BlobListener {
+		/**
+		 * Compressed blobs are reported with length and MD5 of the original content if the sink keeps them.
+		 * @param contentMd5 Base64 encoded Content-MD5 of the blob, null if it has none
+		 */
+		void blobFound(String blobName, long length, long lastModification, String contentMd5);
+	}
+
+	void addResponseListener(ResponseListener listener);
+
+	URI getUri();
+
+	URI getUri(String blobName) throws IOException;
+
+	void createIfNotExists() throws IOException;
+
+	/**
+	 * Uploads blob in one go, the stream might be read more than once if it supports mark.
+	 * @return Content-MD5 of the blob as stored by the sink, Base64 encoded
+	 */
+	String upload(String blobName, InputStream is, long length) throws IOException;
+
+	/**
+	 * Uploads blob in one go with the given Content-Encoding and metadata.
+	 * @param contentEncoding Content-Encoding of the blob, null for none
+	 * @param metadata metadata of the blob, null for none
+	 * @return Content-MD5 of the blob as stored by the sink, Base64 encoded
+	 */
+	String upload(String blobName, InputStream is, long length, String contentEncoding, Map<String, String> metadata) throws IOException;
+
+	void uploadBlock(String blobName, String blockId, InputStream is, long length) throws IOException;
+
+	/**
+	 * @return sizes of uncommitted blocks by block id
+	 */
+	Map<String, Long> downloadUncommittedBlocks(String blobName) throws IOException;
+
+	/**
+	 * Commits staged blocks as the blob content. The service stores the given Content-MD5 as is without checking it
+	 * against the content, blocks are verified by their transactional MD5 when they are uploaded instead.
+	 * @param contentMd5 Base64 encoded MD5 of the whole blob stored as its Content-MD5
+	 * @return length of the committed blob as stored by the sink
+	 */
+	long commitBlockList(String blobName, List<String> blockIds, String contentMd5) throws IOException;
+
+	/**
+	 * @return stream blob content is written to, blob is committed when the stream is closed
+	 */
+	OutputStream openOutputStream(String blobName) throws IOException;
+
+	void uploadText(String blobName, String text) throws IOException;
+
+	/**
+	 * Copies blob within the container on the service side and waits for the copy to complete.
+	 * @return Content-MD5 of the copy as stored by the sink, Base64 encoded
+	 */
+	String copy(String sourceBlobName, String blobName) throws IOException;
+
+	boolean deleteIfExists(String blobName) throws IOException;
+
+	/**
+	 * Lists blobs which names start with the prefix.
+	 * @param flat list all blobs under the prefix, otherwise only blobs of the virtual folder the prefix points to
+	 * @return prefixes of virtual folders directly under the prefix, empty for flat listing
+	 */
+	List<String> listBlobs(String prefix, boolean flat, BlobListener listener) throws IOException;
+}
@@ -0,0 +1,31 @@
+package com.selivonchyks.azureupload;
+
+import java.io.IOException;
+
+/**
+ * Failure of a {@link BlobSink} request together with the HTTP status code the request has been answered with.
+ */
+public class BlobSinkException extends IOException {
+	private static final long serialVersionUID = -2195304875410923262L;
+
+	public static final int UNKNOWN_STATUS_CODE = -1;
+
+	private final int httpStatusCode;
+
+	public BlobSinkException(String message, int httpStatusCode) {
+		super(message);
+		this.httpStatusCode = httpStatusCode;
+	}
+
+	public BlobSinkException(String message, int httpStatusCode, Throwable cause) {
+		super(message, cause);
+		this.httpStatusCode = httpStatusCode;
+	}
+
+	/**
+	 * @return HTTP status code or {@link #UNKNOWN_STATUS_CODE} if the request has not been answered
+	 */
+	public int getHttpStatusCode() {
+		return httpStatusCode;
+	}
+}
@@ -0,0 +1,149 @@
+package com.selivonchyks.azureupload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local record of blocks of a large file which have been staged but not committed yet, so an interrupted
+ * upload can be resumed by the next run. Checkpoint file starts with the file identity lines followed by
+ * <code>block=index,md5</code> line appended for every staged block.
+ */
+public class BlockCheckpoint {
+	static final Logger logger = LoggerFactory.getLogger(BlockCheckpoint.class);
+
+	static final String CHECKPOINT_EXTENSION = ".checkpoint";
+
+	static final String BLOB_KEY = "blob";
+	static final String FILE_KEY = "file";
+	static final String SIZE_KEY = "size";
+	static final String LAST_MODIFICATION_KEY = "last_modification";
+	static final String BLOCK_SIZE_KEY = "block_size";
+	static final String BLOCK_KEY = "block";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File checkpointFile;
+	private final Map<Integer, byte[]> stagedBlocks = new HashMap<Integer, byte[]>();
+	private Writer writer;
+
+	private BlockCheckpoint(File checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	/**
+	 * Opens checkpoint of the blob, blocks recorded by the previous run are kept only if the file
+	 * has not been changed and the block size is the same, otherwise a new checkpoint is started.
+	 */
+	public static BlockCheckpoint open(File checkpointFolder, String blob, File file, long size, long lastModification, int blockSize) throws IOException {
+		if (!checkpointFolder.isDirectory() && !checkpointFolder.mkdirs()) {
+			throw new IOException(String.format("Failed to create checkpoint folder [%s]", checkpointFolder));
+		}
+		BlockCheckpoint checkpoint = new BlockCheckpoint(new File(checkpointFolder, DigestUtils.md5Hex(blob) + CHECKPOINT_EXTENSION));
+		Map<String, String> header = new HashMap<String, String>();
+		header.put(BLOB_KEY, blob);
+		header.put(FILE_KEY, file.getAbsolutePath());
+		header.put(SIZE_KEY, String.valueOf(size));
+		header.put(LAST_MODIFICATION_KEY, String.valueOf(lastModification));
+		header.put(BLOCK_SIZE_KEY, String.valueOf(blockSize));
+
+		if (checkpoint.checkpointFile.exists() && checkpoint.read(header)) {
+			checkpoint.writer = Files.newBufferedWriter(checkpoint.checkpointFile.toPath(), UTF_8, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			logger.info("Resuming upload of [{}] from checkpoint [{}] with [{}] staged blocks", file, checkpoint.checkpointFile, checkpoint.stagedBlocks.size());
+		} else {
+			checkpoint.stagedBlocks.clear();
+			checkpoint.writer = Files.newBufferedWriter(checkpoint.checkpointFile.toPath(), UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			for(String key : new String[] { BLOB_KEY, FILE_KEY, SIZE_KEY, LAST_MODIFICATION_KEY, BLOCK_SIZE_KEY }) {
+				checkpoint.writer.write(String.format("%s=%s\n", key, header.get(key)));
+			}
+			checkpoint.writer.flush();
+		}
+		return checkpoint;
+	}
+
+	private boolean read(Map<String, String> expectedHeader) {
+		Map<String, String> header = new HashMap<String, String>();
+		try (BufferedReader reader = Files.newBufferedReader(checkpointFile.toPath(), UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String key = StringUtils.substringBefore(line, "=");
+				String value = StringUtils.substringAfter(line, "=");
+				if (BLOCK_KEY.equals(key)) {
+					// last line might be incomplete if the previous run has been killed while writing it
+					int index = NumberUtils.toInt(StringUtils.substringBefore(value, ","), -1);
+					byte[] md5 = UploadLogIndex.decodeHash(StringUtils.substringAfter(value, ","));
+					if (index >= 0 && md5 != null && md5.length == 16) {
+						stagedBlocks.put(index, md5);
+					}
+				} else {
+					header.put(key, value);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to read checkpoint [%s]", checkpointFile), e);
+			return false;
+		}
+		return header.equals(expectedHeader);
+	}
+
+	/**
+	 * @return MD5 of the block staged by the previous run or null
+	 */
+	public synchronized byte[] getStagedBlock(int index) {
+		return stagedBlocks.get(index);
+	}
+
+	public synchronized int getStagedBlocksCount() {
+		return stagedBlocks.size();
+	}
+
+	/**
+	 * Keeps only blocks which are still present in the uncommitted block list of the blob.
+	 */
+	public synchronized void retain(Map<Integer, Long> uncommittedBlockSizes, int blockSize, long fileSize) {
+		for(Integer index : stagedBlocks.keySet().toArray(new Integer[stagedBlocks.size()])) {
+			long expectedSize = Math.min(blockSize, fileSize - (long) index * blockSize);
+			Long size = uncommittedBlockSizes.get(index);
+			if (size == null || size != expectedSize) {
+				stagedBlocks.remove(index);
+			}
+		}
+	}
+
+	public synchronized void blockStaged(int index, byte[] md5) throws IOException {
+		stagedBlocks.put(index, md5);
+		writer.write(String.format("%s=%d,%s\n", BLOCK_KEY, index, Hex.encodeHexString(md5)));
+		writer.flush();
+	}
+
+	public synchronized void close() {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			logger.info(String.format("Failed to close checkpoint [%s]", checkpointFile), e);
+		}
+	}
+
+	/**
+	 * Removes checkpoint once the block list has been committed.
+	 */
+	public synchronized void delete() {
+		close();
+		if (!checkpointFile.delete()) {
+			logger.info("Failed to delete checkpoint [{}]", checkpointFile);
+		}
+	}
+}
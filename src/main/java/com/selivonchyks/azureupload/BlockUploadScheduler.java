@@ -0,0 +1,70 @@
+package com.selivonchyks.azureupload;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares block uploads of large files with the upload threads. A thread uploading a large file publishes help requests,
+ * any upload thread picks them up before taking the next file from the queue.
+ */
+public class BlockUploadScheduler {
+	private final Queue<LargeFileUpload> helpRequests = new ConcurrentLinkedQueue<LargeFileUpload>();
+	private final AtomicInteger activeUploadsCount = new AtomicInteger(0);
+	private final Object monitor = new Object();
+
+	void register(LargeFileUpload upload, int helpersCount) {
+		activeUploadsCount.incrementAndGet();
+		for(int i = 0; i < helpersCount; ++i) {
+			helpRequests.add(upload);
+		}
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Drops help requests of the upload which have not been picked up, so helpers and {@link #hasPendingBlocks()}
+	 * don't see a finished upload.
+	 */
+	void unregister(LargeFileUpload upload) {
+		helpRequests.removeAll(Collections.singleton(upload));
+		activeUploadsCount.decrementAndGet();
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Uploads blocks of one of the large files being uploaded by other threads.
+	 * @return true if some help request has been handled
+	 */
+	public boolean runPendingBlocks() {
+		LargeFileUpload upload = helpRequests.poll();
+		if (upload == null) {
+			return false;
+		}
+		upload.help();
+		return true;
+	}
+
+	public boolean hasPendingBlocks() {
+		return !helpRequests.isEmpty();
+	}
+
+	public boolean hasActiveUploads() {
+		return activeUploadsCount.get() > 0;
+	}
+
+	/**
+	 * Waits until new help request is published or some large file upload is finished.
+	 */
+	public void awaitPendingBlocks(long timeoutMillis) throws InterruptedException {
+		synchronized (monitor) {
+			if (helpRequests.isEmpty() && hasActiveUploads()) {
+				monitor.wait(timeoutMillis);
+			}
+		}
+	}
+}
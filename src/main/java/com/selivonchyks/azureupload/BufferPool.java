@@ -0,0 +1,125 @@
+package com.selivonchyks.azureupload;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Global memory budget for in memory file handling, split into reusable buffers of the same size.
+ * Buffers are allocated lazily up to the budget and are never freed, threads wait for released buffers
+ * when the budget is exhausted.
+ */
+public class BufferPool {
+	static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+	private final int bufferSize;
+	private final int buffersCount;
+	private final boolean direct;
+	private final Semaphore permits;
+	private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger allocatedBuffersCount = new AtomicInteger(0);
+	private final AtomicInteger peakUsedBuffersCount = new AtomicInteger(0);
+	private final AtomicLong waitsCount = new AtomicLong(0);
+
+	public BufferPool(long budget, int bufferSize, boolean direct) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException(String.format("Buffer size %d is less than 1", bufferSize));
+		}
+		this.bufferSize = bufferSize;
+		this.buffersCount = (int) Math.min(Integer.MAX_VALUE, budget / bufferSize);
+		this.direct = direct;
+		this.permits = new Semaphore(buffersCount, true);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getBuffersCount() {
+		return buffersCount;
+	}
+
+	public int getUsedBuffersCount() {
+		return buffersCount - permits.availablePermits();
+	}
+
+	public int getPeakUsedBuffersCount() {
+		return peakUsedBuffersCount.get();
+	}
+
+	public long getWaitsCount() {
+		return waitsCount.get();
+	}
+
+	private int buffersNeeded(long length) {
+		return (int) Math.max(1, (length + bufferSize - 1) / bufferSize);
+	}
+
+	/**
+	 * @return true if content of given length can be held by the pool at all
+	 */
+	public boolean fits(long length) {
+		return (length + bufferSize - 1) / bufferSize <= buffersCount;
+	}
+
+	/**
+	 * Takes enough buffers to hold content of given length, waits while the pool is exhausted.
+	 */
+	public List<ByteBuffer> acquire(long length) throws InterruptedException {
+		int count = buffersNeeded(length);
+		if (!permits.tryAcquire(count)) {
+			waitsCount.incrementAndGet();
+			logger.debug("Waiting for [{}] buffers, pool usage is [{}]", count, this);
+			permits.acquire(count);
+		}
+		return take(count);
+	}
+
+	/**
+	 * Takes enough buffers to hold content of given length if they are available right away.
+	 * @return buffers or null if the pool is exhausted
+	 */
+	public List<ByteBuffer> tryAcquire(long length) {
+		int count = buffersNeeded(length);
+		if (!permits.tryAcquire(count)) {
+			return null;
+		}
+		return take(count);
+	}
+
+	private List<ByteBuffer> take(int count) {
+		int used = getUsedBuffersCount();
+		int peak;
+		while (used > (peak = peakUsedBuffersCount.get()) && !peakUsedBuffersCount.compareAndSet(peak, used));
+
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(count);
+		for(int i = 0; i < count; ++i) {
+			ByteBuffer buffer = freeBuffers.poll();
+			if (buffer == null) {
+				buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+				allocatedBuffersCount.incrementAndGet();
+			}
+			buffer.clear();
+			buffers.add(buffer);
+		}
+		return buffers;
+	}
+
+	public void release(List<ByteBuffer> buffers) {
+		freeBuffers.addAll(buffers);
+		permits.release(buffers.size());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d/%d buffers of %d bytes (%d allocated, %d peak, %d waits)", getUsedBuffersCount(), buffersCount, bufferSize, allocatedBuffersCount.get(), peakUsedBuffersCount.get(), waitsCount.get());
+	}
+}
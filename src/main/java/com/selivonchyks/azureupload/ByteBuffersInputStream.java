@@ -0,0 +1,89 @@
+package com.selivonchyks.azureupload;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads content spread over the list of buffers, buffers are read from their positions up to their limits.
+ */
+public class ByteBuffersInputStream extends InputStream {
+	private final List<ByteBuffer> buffers;
+	private int current = 0;
+	private int markedBuffer = 0;
+	private List<Integer> markedPositions;
+
+	public ByteBuffersInputStream(List<ByteBuffer> buffers) {
+		this.buffers = new ArrayList<ByteBuffer>(buffers.size());
+		for(ByteBuffer buffer : buffers) {
+			this.buffers.add(buffer.duplicate());
+		}
+	}
+
+	private ByteBuffer currentBuffer() {
+		while (current < buffers.size() && !buffers.get(current).hasRemaining()) {
+			++current;
+		}
+		return current < buffers.size() ? buffers.get(current) : null;
+	}
+
+	@Override
+	public int read() {
+		ByteBuffer buffer = currentBuffer();
+		return buffer != null ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		int read = 0;
+		ByteBuffer buffer;
+		while (read < len && (buffer = currentBuffer()) != null) {
+			int length = Math.min(len - read, buffer.remaining());
+			buffer.get(b, off + read, length);
+			read += length;
+		}
+		return read > 0 ? read : -1;
+	}
+
+	@Override
+	public int available() {
+		long available = 0;
+		for(int i = current; i < buffers.size(); ++i) {
+			available += buffers.get(i).remaining();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, available);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		markedBuffer = current;
+		markedPositions = new ArrayList<Integer>(buffers.size() - current);
+		for(int i = current; i < buffers.size(); ++i) {
+			markedPositions.add(buffers.get(i).position());
+		}
+	}
+
+	@Override
+	public synchronized void reset() {
+		if (markedPositions == null) {
+			markedBuffer = 0;
+			for(ByteBuffer buffer : buffers) {
+				buffer.rewind();
+			}
+		} else {
+			for(int i = markedBuffer; i < buffers.size(); ++i) {
+				buffers.get(i).position(markedPositions.get(i - markedBuffer));
+			}
+		}
+		current = markedBuffer;
+	}
+}
@@ -0,0 +1,398 @@
+package com.selivonchyks.azureupload;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read only upload log holding the latest item per path, memory mapped and looked up in place, so opening it doesn't
+ * depend on the items count and items never get onto the heap. The file consists of big endian sections:
+ * <ul>
+ * <li>header: magic, version, items count, flags and offsets of the sections</li>
+ * <li>hash table: open addressing slots keyed by hash of normalized path holding item index + 1, 0 when empty</li>
+ * <li>items: fixed width records sorted by normalized path with binary MD5</li>
+ * <li>strings: UTF-8 paths, blob and archive names referenced by items, up to the end of the file</li>
+ * </ul>
+ * Files are written by {@link UploadLogCompactor}.
+ */
+public class CompactedUploadLog {
+	static final Logger logger = LoggerFactory.getLogger(CompactedUploadLog.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	static final byte[] MAGIC = "AZULOGC1".getBytes(Charset.forName("US-ASCII"));
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int RECORD_SIZE = 96;
+	static final int HASH_SIZE = 16;
+	static final int MAX_ITEMS_COUNT = 1 << 29;
+	// multiple of the record field alignment, so aligned fields never cross regions
+	static final int REGION_SIZE = 1 << 30;
+
+	// offsets of record fields
+	static final int PATH_HASH = 0;
+	static final int PATH_OFFSET = 8;
+	static final int PATH_LENGTH = 16;
+	static final int ARCHIVE_LENGTH = 20;
+	static final int ARCHIVE_NAME_OFFSET = 24;
+	static final int ARCHIVE_OFFSET = 32;
+	static final int SIZE = 40;
+	static final int LAST_MODIFICATION = 48;
+	static final int UPLOADED = 56;
+	static final int HASH = 64;
+	static final int FLAGS = 80;
+	static final int BLOB_LENGTH = 84;
+	static final int BLOB_NAME_OFFSET = 88;
+
+	// header flags
+	static final int HEADER_FLAG_CASE_SENSITIVE = 1;
+
+	static final int FLAG_HAS_HASH = 1;
+	static final int FLAG_HAS_ARCHIVE_OFFSET = 2;
+	static final int FLAG_HAS_BLOB = 4;
+
+	private final File file;
+	private final ByteBuffer[] regions;
+	private final int itemsCount;
+	private final int slotsCount;
+	private final boolean caseSensitive;
+	private final long tableOffset;
+	private final long recordsOffset;
+	private final long stringsOffset;
+
+	private CompactedUploadLog(File file, ByteBuffer[] regions) throws IOException {
+		this.file = file;
+		this.regions = regions;
+		byte[] magic = new byte[MAGIC.length];
+		get(0, magic, 0, magic.length);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException(String.format("File [%s] is not a compacted upload log", file));
+		}
+		int version = getInt(8);
+		int recordSize = getInt(12);
+		if (version != VERSION || recordSize != RECORD_SIZE) {
+			throw new IOException(String.format("Compacted upload log [%s] has unsupported version [%d] with record size [%d]", file, version, recordSize));
+		}
+		this.itemsCount = (int) getLong(16);
+		this.slotsCount = getInt(24);
+		this.caseSensitive = (getInt(28) & HEADER_FLAG_CASE_SENSITIVE) != 0;
+		this.tableOffset = getLong(32);
+		this.recordsOffset = getLong(40);
+		this.stringsOffset = getLong(48);
+		if (Integer.bitCount(slotsCount) != 1 || recordsOffset + (long) itemsCount * RECORD_SIZE != stringsOffset || stringsOffset > length()) {
+			throw new IOException(String.format("Compacted upload log [%s] is truncated or corrupted", file));
+		}
+	}
+
+	/**
+	 * @return true if the file starts with the compacted upload log magic
+	 */
+	public static boolean isCompacted(File file) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		try (InputStream is = FileUtils.openInputStream(file)) {
+			return IOUtils.read(is, magic) == magic.length && Arrays.equals(magic, MAGIC);
+		}
+	}
+
+	/**
+	 * Maps the file, the mapping stays valid after the file is closed.
+	 */
+	public static CompactedUploadLog open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE) {
+				throw new IOException(String.format("File [%s] is not a compacted upload log", file));
+			}
+			ByteBuffer[] regions = new ByteBuffer[(int) ((fileSize + REGION_SIZE - 1) / REGION_SIZE)];
+			for(int i = 0; i < regions.length; ++i) {
+				long position = (long) i * REGION_SIZE;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, fileSize - position));
+			}
+			return new CompactedUploadLog(file, regions);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int size() {
+		return itemsCount;
+	}
+
+	/**
+	 * @return true if paths are keyed exactly instead of ignoring their case
+	 */
+	public boolean isCaseSensitive() {
+		return caseSensitive;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the path characters.
+	 */
+	static long hash(String normalizedPath) {
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < normalizedPath.length(); ++i) {
+			hash ^= normalizedPath.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static int slot(long hash, int slotsCount) {
+		return (int) (hash ^ (hash >>> 32)) & (slotsCount - 1);
+	}
+
+	/**
+	 * @param normalizedPath path normalized by {@link UploadLogIndex#normalizePath(String, boolean)} with case sensitivity of the log
+	 * @return the latest item of the path or null if there is none
+	 */
+	public UploadLogIndex.Entry find(String normalizedPath) {
+		long hash = hash(normalizedPath);
+		for(int slot = slot(hash, slotsCount); ; slot = (slot + 1) & (slotsCount - 1)) {
+			int index = getInt(tableOffset + 4L * slot);
+			if (index == 0) {
+				return null;
+			}
+			long record = record(index - 1);
+			if (getLong(record + PATH_HASH) == hash && normalizedPath.equals(UploadLogIndex.normalizePath(getPath(record), caseSensitive))) {
+				byte[] itemHash = null;
+				if ((getInt(record + FLAGS) & FLAG_HAS_HASH) != 0) {
+					itemHash = new byte[HASH_SIZE];
+					get(record + HASH, itemHash, 0, HASH_SIZE);
+				}
+				return new UploadLogIndex.Entry(getLong(record + SIZE), getLong(record + LAST_MODIFICATION), getLong(record + UPLOADED), itemHash, null);
+			}
+		}
+	}
+
+	/**
+	 * @param index index of the item in normalized path order
+	 */
+	public UploadedFileLogItem getItem(int index) {
+		long record = record(index);
+		UploadedFileLogItem item = new UploadedFileLogItem();
+		item.setPath(getPath(record));
+		item.setSize(getLong(record + SIZE));
+		item.setLast_modification(getLong(record + LAST_MODIFICATION));
+		item.setUploaded(getLong(record + UPLOADED));
+		int flags = getInt(record + FLAGS);
+		if ((flags & FLAG_HAS_HASH) != 0) {
+			byte[] hash = new byte[HASH_SIZE];
+			get(record + HASH, hash, 0, HASH_SIZE);
+			item.setHash(Hex.encodeHexString(hash));
+		}
+		int archiveLength = getInt(record + ARCHIVE_LENGTH);
+		if (archiveLength >= 0) {
+			item.setArchive(getString(getLong(record + ARCHIVE_NAME_OFFSET), archiveLength));
+		}
+		if ((flags & FLAG_HAS_ARCHIVE_OFFSET) != 0) {
+			item.setArchive_offset(getLong(record + ARCHIVE_OFFSET));
+		}
+		if ((flags & FLAG_HAS_BLOB) != 0) {
+			item.setBlob(getString(getLong(record + BLOB_NAME_OFFSET), getInt(record + BLOB_LENGTH)));
+		}
+		return item;
+	}
+
+	private long record(int index) {
+		if (index < 0 || index >= itemsCount) {
+			throw new IndexOutOfBoundsException(String.format("Item [%d] is out of [0, %d) range", index, itemsCount));
+		}
+		return recordsOffset + (long) index * RECORD_SIZE;
+	}
+
+	private String getPath(long record) {
+		return getString(getLong(record + PATH_OFFSET), getInt(record + PATH_LENGTH));
+	}
+
+	private String getString(long offset, int length) {
+		byte[] bytes = new byte[length];
+		get(stringsOffset + offset, bytes, 0, length);
+		return new String(bytes, UTF_8);
+	}
+
+	private long length() {
+		ByteBuffer last = regions[regions.length - 1];
+		return (long) (regions.length - 1) * REGION_SIZE + last.capacity();
+	}
+
+	private long getLong(long position) {
+		return regions[(int) (position / REGION_SIZE)].getLong((int) (position % REGION_SIZE));
+	}
+
+	private int getInt(long position) {
+		return regions[(int) (position / REGION_SIZE)].getInt((int) (position % REGION_SIZE));
+	}
+
+	private void get(long position, byte[] bytes, int offset, int length) {
+		while (length > 0) {
+			ByteBuffer region = regions[(int) (position / REGION_SIZE)];
+			int regionPosition = (int) (position % REGION_SIZE);
+			int count = Math.min(length, region.capacity() - regionPosition);
+			// absolute bulk get is not available, a duplicate keeps the shared buffer position untouched
+			ByteBuffer view = region.duplicate();
+			view.position(regionPosition);
+			view.get(bytes, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Writes the items next to the file and moves it over the file once complete.
+	 * @param items the latest item per path keyed by normalized path
+	 */
+	public static void write(File file, SortedMap<String, UploadedFileLogItem> items) throws IOException {
+		write(file, items, false);
+	}
+
+	/**
+	 * @param caseSensitive true if items are keyed by exact paths, e.g. blob names
+	 */
+	public static void write(File file, SortedMap<String, UploadedFileLogItem> items, boolean caseSensitive) throws IOException {
+		if (items.size() > MAX_ITEMS_COUNT) {
+			throw new IOException(String.format("Upload log has [%d] items while at most [%d] items can be compacted", items.size(), MAX_ITEMS_COUNT));
+		}
+		int itemsCount = items.size();
+		int slotsCount = 2;
+		while (slotsCount < 2L * itemsCount) {
+			slotsCount <<= 1;
+		}
+		int[] table = new int[slotsCount];
+		int index = 0;
+		for(String key : items.keySet()) {
+			int slot = slot(hash(key), slotsCount);
+			while (table[slot] != 0) {
+				slot = (slot + 1) & (slotsCount - 1);
+			}
+			table[slot] = ++index;
+		}
+		long tableOffset = HEADER_SIZE;
+		long recordsOffset = (tableOffset + 4L * slotsCount + 7) & ~7L;
+		long stringsOffset = recordsOffset + (long) itemsCount * RECORD_SIZE;
+
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+			os.write(MAGIC);
+			os.writeInt(VERSION);
+			os.writeInt(RECORD_SIZE);
+			os.writeLong(itemsCount);
+			os.writeInt(slotsCount);
+			os.writeInt(caseSensitive ? HEADER_FLAG_CASE_SENSITIVE : 0);
+			os.writeLong(tableOffset);
+			os.writeLong(recordsOffset);
+			os.writeLong(stringsOffset);
+			os.writeLong(0);
+
+			for(int slot : table) {
+				os.writeInt(slot);
+			}
+			for(long i = tableOffset + 4L * slotsCount; i < recordsOffset; ++i) {
+				os.write(0);
+			}
+
+			// records reference strings by offsets, strings are then written in the same order with archive names deduplicated
+			long stringsLength = 0;
+			Map<String, Long> archiveOffsets = new HashMap<String, Long>();
+			byte[] zeros = new byte[HASH_SIZE];
+			for(Map.Entry<String, UploadedFileLogItem> entry : items.entrySet()) {
+				UploadedFileLogItem item = entry.getValue();
+				byte[] path = item.getPath().getBytes(UTF_8);
+				os.writeLong(hash(entry.getKey()));
+				os.writeLong(stringsLength);
+				os.writeInt(path.length);
+				stringsLength += path.length;
+				String archive = StringUtils.defaultIfEmpty(item.getArchive(), null);
+				if (archive != null) {
+					Long archiveOffset = archiveOffsets.get(archive);
+					if (archiveOffset == null) {
+						archiveOffset = stringsLength;
+						archiveOffsets.put(archive, archiveOffset);
+						stringsLength += archive.getBytes(UTF_8).length;
+					}
+					os.writeInt(archive.getBytes(UTF_8).length);
+					os.writeLong(archiveOffset);
+				} else {
+					os.writeInt(-1);
+					os.writeLong(0);
+				}
+				int flags = 0;
+				os.writeLong(item.getArchive_offset() != null ? item.getArchive_offset().longValue() : 0);
+				if (item.getArchive_offset() != null) {
+					flags |= FLAG_HAS_ARCHIVE_OFFSET;
+				}
+				os.writeLong(item.getSize());
+				os.writeLong(item.getLast_modification());
+				os.writeLong(item.getUploaded());
+				byte[] hash = UploadLogIndex.decodeHash(item.getHash());
+				if (hash != null && hash.length == HASH_SIZE) {
+					os.write(hash);
+					flags |= FLAG_HAS_HASH;
+				} else {
+					os.write(zeros);
+				}
+				String blob = StringUtils.defaultIfEmpty(item.getBlob(), null);
+				if (blob != null) {
+					flags |= FLAG_HAS_BLOB;
+				}
+				os.writeInt(flags);
+				if (blob != null) {
+					byte[] blobName = blob.getBytes(UTF_8);
+					os.writeInt(blobName.length);
+					os.writeLong(stringsLength);
+					stringsLength += blobName.length;
+				} else {
+					os.writeInt(0);
+					os.writeLong(0);
+				}
+			}
+
+			archiveOffsets.clear();
+			long offset = 0;
+			for(UploadedFileLogItem item : items.values()) {
+				byte[] path = item.getPath().getBytes(UTF_8);
+				os.write(path);
+				offset += path.length;
+				String archive = StringUtils.defaultIfEmpty(item.getArchive(), null);
+				if (archive != null && !archiveOffsets.containsKey(archive)) {
+					archiveOffsets.put(archive, offset);
+					byte[] archiveName = archive.getBytes(UTF_8);
+					os.write(archiveName);
+					offset += archiveName.length;
+				}
+				if (StringUtils.isNotEmpty(item.getBlob())) {
+					byte[] blobName = item.getBlob().getBytes(UTF_8);
+					os.write(blobName);
+					offset += blobName.length;
+				}
+			}
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(tmpFile);
+			throw e;
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Wrote [{}] items into compacted upload log [{}]", itemsCount, file);
+	}
+}
@@ -0,0 +1,326 @@
+package com.selivonchyks.azureupload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * Gzip compresses file content in memory on its own pool, so compression of some files overlaps with upload of
+ * the others and doesn't take more cores than given. The start of every file is sampled first: files of known
+ * compressed formats and files which sample doesn't shrink enough are left as is. Compressed blobs have gzip
+ * Content-Encoding and keep the original length and MD5 in metadata.
+ * Compressed content is kept in buffers of the {@link BufferPool} budget, files are left as is when the pool runs
+ * out of buffers during compression.
+ */
+public class Compressor implements Closeable {
+	public enum Codec {
+		/** gzip with default compression level */
+		GZIP(Deflater.DEFAULT_COMPRESSION),
+		/** gzip with the fastest compression level, still readable by any gzip decoder */
+		FAST(Deflater.BEST_SPEED);
+
+		private final int level;
+
+		Codec(int level) {
+			this.level = level;
+		}
+	}
+
+	public static final String CONTENT_ENCODING = "gzip";
+	public static final long MIN_SIZE = 4 * 1024;
+	static final int SAMPLE_SIZE = 64 * 1024;
+	// sample compressed to more than this share of its size is considered incompressible
+	static final double MAX_SAMPLE_RATIO = 0.9;
+
+	// signatures of compressed formats: gzip, zip, bzip2, xz, zstd, 7z, rar, jpeg, png, gif
+	private static final byte[][] COMPRESSED_SIGNATURES = {
+		{ 0x1f, (byte) 0x8b },
+		{ 'P', 'K', 0x03, 0x04 },
+		{ 'B', 'Z', 'h' },
+		{ (byte) 0xfd, '7', 'z', 'X', 'Z', 0x00 },
+		{ 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd },
+		{ '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c },
+		{ 'R', 'a', 'r', '!' },
+		{ (byte) 0xff, (byte) 0xd8, (byte) 0xff },
+		{ (byte) 0x89, 'P', 'N', 'G' },
+		{ 'G', 'I', 'F', '8' }
+	};
+
+	/**
+	 * Compressed content with hashes of the original and of the compressed bytes, buffers of the content are
+	 * returned to the pool when the result is closed.
+	 */
+	public static class Result implements Closeable {
+		private final PooledOutputStream data;
+		private final long length;
+		private final long originalLength;
+		private final byte[] md5;
+		private final byte[] compressedMd5;
+
+		Result(PooledOutputStream data, long originalLength, byte[] md5, byte[] compressedMd5) {
+			this.data = data;
+			this.length = data.size();
+			this.originalLength = originalLength;
+			this.md5 = md5;
+			this.compressedMd5 = compressedMd5;
+		}
+
+		/**
+		 * @return stream of the compressed content, it must not be used after the result is closed
+		 */
+		public InputStream getInputStream() {
+			return new ByteBuffersInputStream(data.getContent());
+		}
+		public long getLength() {
+			return length;
+		}
+		public long getOriginalLength() {
+			return originalLength;
+		}
+		/**
+		 * @return MD5 of the original content
+		 */
+		public byte[] getMd5() {
+			return md5;
+		}
+		/**
+		 * @return MD5 of the compressed content, the one the sink stores as Content-MD5
+		 */
+		public byte[] getCompressedMd5() {
+			return compressedMd5;
+		}
+		public Map<String, String> getMetadata() {
+			Map<String, String> metadata = new HashMap<String, String>();
+			metadata.put(BlobSink.ORIGINAL_LENGTH_METADATA, Long.toString(originalLength));
+			metadata.put(BlobSink.ORIGINAL_MD5_METADATA, Base64.encode(md5));
+			return metadata;
+		}
+
+		@Override
+		public void close() {
+			data.release();
+		}
+	}
+
+	/**
+	 * Writes into buffers taken from the pool one by one. Compression doesn't wait for buffers since upload threads
+	 * waiting for it might hold the rest of the budget, the stream drops the content once the pool can't give a buffer.
+	 */
+	static class PooledOutputStream extends OutputStream {
+		private final BufferPool bufferPool;
+		private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		private long size = 0;
+		private boolean exhausted = false;
+
+		PooledOutputStream(BufferPool bufferPool) {
+			this.bufferPool = bufferPool;
+		}
+
+		long size() {
+			return size;
+		}
+
+		/**
+		 * @return true if the pool had no buffer for some content, so the content is incomplete
+		 */
+		boolean isExhausted() {
+			return exhausted;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			while (len > 0 && !exhausted) {
+				ByteBuffer buffer = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1);
+				if (buffer == null || !buffer.hasRemaining()) {
+					List<ByteBuffer> acquired = bufferPool.tryAcquire(bufferPool.getBufferSize());
+					if (acquired == null) {
+						exhausted = true;
+						release();
+						return;
+					}
+					buffers.addAll(acquired);
+					continue;
+				}
+				int count = Math.min(len, buffer.remaining());
+				buffer.put(b, off, count);
+				off += count;
+				len -= count;
+				size += count;
+			}
+		}
+
+		List<ByteBuffer> getContent() {
+			List<ByteBuffer> content = new ArrayList<ByteBuffer>(buffers.size());
+			for(ByteBuffer buffer : buffers) {
+				ByteBuffer duplicate = buffer.duplicate();
+				duplicate.flip();
+				content.add(duplicate);
+			}
+			return content;
+		}
+
+		/**
+		 * Returns buffers to the pool, closing the stream keeps them since the compressing stream closes it.
+		 */
+		void release() {
+			if (!buffers.isEmpty()) {
+				bufferPool.release(buffers);
+				buffers.clear();
+			}
+		}
+	}
+
+	private final Codec codec;
+	private final ExecutorService exec;
+	private final BufferPool bufferPool;
+
+	/**
+	 * @param bufferPool pool of the in memory budget compressed content is kept in
+	 */
+	public Compressor(Codec codec, int threadsCount, BufferPool bufferPool) {
+		this.codec = codec;
+		this.bufferPool = bufferPool;
+		final AtomicInteger threadsNumber = new AtomicInteger(0);
+		this.exec = Executors.newFixedThreadPool(Math.max(1, threadsCount), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "compressor-" + threadsNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Compresses content on the compression pool and waits for the result.
+	 * @return compressed content or null if content is not worth compressing
+	 */
+	public Result compress(final ContentHolder contentHolder, final long length) throws IOException, InterruptedException {
+		try {
+			return exec.submit(new Callable<Result>() {
+				@Override
+				public Result call() throws IOException {
+					return isCompressible(contentHolder) ? compress(contentHolder.getInputStream(), length) : null;
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	boolean isCompressible(ContentHolder contentHolder) throws IOException {
+		byte[] sample = new byte[SAMPLE_SIZE];
+		int length;
+		try (InputStream is = contentHolder.getInputStream()) {
+			length = IOUtils.read(is, sample);
+		}
+		for(byte[] signature : COMPRESSED_SIGNATURES) {
+			if (startsWith(sample, length, signature)) {
+				return false;
+			}
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			byte[] output = new byte[length];
+			int compressedLength = 0;
+			while (!deflater.finished() && compressedLength < output.length) {
+				compressedLength += deflater.deflate(output, compressedLength, output.length - compressedLength);
+			}
+			return deflater.finished() && compressedLength <= length * MAX_SAMPLE_RATIO;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static boolean startsWith(byte[] sample, int length, byte[] signature) {
+		if (length < signature.length) {
+			return false;
+		}
+		for(int i = 0; i < signature.length; ++i) {
+			if (sample[i] != signature[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return compressed content or null if it doesn't get smaller than the original or doesn't fit into the pool
+	 */
+	Result compress(InputStream content, long length) throws IOException {
+		PooledOutputStream buffer = new PooledOutputStream(bufferPool);
+		boolean isCompressed = false;
+		DigestOutputStream dos = new DigestOutputStream(buffer, DigestUtils.getMd5Digest());
+		byte[] chunk = new byte[64 * 1024];
+		long copied = 0;
+		try (HashingInputStream is = new HashingInputStream(content)) {
+			GZIPOutputStream gzip = new GZIPOutputStream(dos, chunk.length) {
+				{
+					def.setLevel(codec.level);
+				}
+			};
+			try {
+				int read;
+				while ((read = is.read(chunk)) != -1) {
+					gzip.write(chunk, 0, read);
+					copied += read;
+					if (buffer.size() >= length || buffer.isExhausted()) {
+						return null;
+					}
+				}
+				gzip.finish();
+			} finally {
+				gzip.close();
+			}
+			if (copied != length) {
+				throw new IOException(String.format("Content has been changed during compression, read [%d] bytes but expected [%d]", copied, length));
+			}
+			if (buffer.size() >= length || buffer.isExhausted()) {
+				return null;
+			}
+			Result result = new Result(buffer, length, is.getHash(), dos.getMessageDigest().digest());
+			isCompressed = true;
+			return result;
+		} finally {
+			if (!isCompressed) {
+				buffer.release();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		exec.shutdownNow();
+	}
+}
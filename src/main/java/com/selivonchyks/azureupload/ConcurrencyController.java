@@ -0,0 +1,158 @@
+package com.selivonchyks.azureupload;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits count of uploads in flight and adjusts the limit periodically (AIMD): the limit is cut multiplicatively
+ * when the service responds with server busy errors, it's decreased by one when request latency grows without
+ * throughput gain, otherwise it's increased by one while the limit is fully used and throughput doesn't drop.
+ */
+public class ConcurrencyController implements Runnable {
+	static final Logger logger = LoggerFactory.getLogger(ConcurrencyController.class);
+
+	public static final long DEFAULT_ADJUSTMENT_INTERVAL = 5000;
+
+	static final double DECREASE_FACTOR = 0.7;
+	static final double THROUGHPUT_TOLERANCE = 0.9;
+	static final double LATENCY_GROWTH_LIMIT = 2.0;
+	static final double BASE_LATENCY_DECAY = 1.01;
+
+	private static class AdjustableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 4284915727163154582L;
+
+		AdjustableSemaphore(int permits) {
+			super(permits, true);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final AdjustableSemaphore permits;
+	private volatile int limit;
+
+	private final AtomicLong uploadedBytes = new AtomicLong(0);
+	private final AtomicLong requestsCount = new AtomicLong(0);
+	private final AtomicLong requestsLatency = new AtomicLong(0);
+	private final AtomicLong throttledRequestsCount = new AtomicLong(0);
+
+	private long lastAdjustmentTime = System.currentTimeMillis();
+	private double lastThroughput = 0;
+	private double baseLatency = 0;
+
+	public ConcurrencyController(int minLimit, int maxLimit, int initialLimit) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+		this.permits = new AdjustableSemaphore(this.limit);
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getMinLimit() {
+		return minLimit;
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	public void acquire() throws InterruptedException {
+		permits.acquire();
+	}
+
+	public void release() {
+		permits.release();
+	}
+
+	public void recordUploaded(long bytes) {
+		uploadedBytes.addAndGet(bytes);
+	}
+
+	public void recordResponse(int statusCode, long latencyMillis) {
+		requestsCount.incrementAndGet();
+		requestsLatency.addAndGet(latencyMillis);
+		if (statusCode == HttpURLConnection.HTTP_UNAVAILABLE || statusCode == HttpURLConnection.HTTP_INTERNAL_ERROR) {
+			throttledRequestsCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Observes every response received by the sink, including the ones of retried requests.
+	 */
+	public void listen(BlobSink sink) {
+		sink.addResponseListener(new BlobSink.ResponseListener() {
+			@Override
+			public void responseReceived(int statusCode, long latencyMillis) {
+				recordResponse(statusCode, latencyMillis);
+			}
+
+			@Override
+			public void retrying() {
+			}
+		});
+	}
+
+	/**
+	 * Adjusts the limit using statistics collected since the previous adjustment.
+	 */
+	@Override
+	public synchronized void run() {
+		long now = System.currentTimeMillis();
+		long elapsed = Math.max(1, now - lastAdjustmentTime);
+		lastAdjustmentTime = now;
+		long bytes = uploadedBytes.getAndSet(0);
+		long requests = requestsCount.getAndSet(0);
+		long latency = requestsLatency.getAndSet(0);
+		long throttled = throttledRequestsCount.getAndSet(0);
+		boolean saturated = permits.availablePermits() <= 0;
+
+		double throughput = bytes * 1000.0 / elapsed;
+		double averageLatency = requests > 0 ? (double) latency / requests : 0;
+		if (requests > 0) {
+			baseLatency = baseLatency == 0 ? averageLatency : Math.min(baseLatency * BASE_LATENCY_DECAY, averageLatency);
+		}
+
+		int newLimit = limit;
+		String reason = null;
+		if (throttled > 0) {
+			newLimit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+			reason = "server is busy";
+		} else if (requests == 0) {
+			// nothing to learn from idle interval
+		} else if (averageLatency > baseLatency * LATENCY_GROWTH_LIMIT && throughput <= lastThroughput) {
+			newLimit = Math.max(minLimit, limit - 1);
+			reason = "latency grows without throughput gain";
+		} else if (saturated && throughput >= lastThroughput * THROUGHPUT_TOLERANCE) {
+			newLimit = Math.min(maxLimit, limit + 1);
+			reason = "throughput holds";
+		}
+		if (requests > 0) {
+			lastThroughput = throughput;
+		}
+
+		if (newLimit != limit) {
+			logger.info("Changing concurrency limit from [{}] to [{}], {}: throughput [{}] bytes/s, average latency [{}] ms (base [{}] ms), [{}] requests, [{}] server busy responses",
+					limit, newLimit, reason, (long) throughput, (long) averageLatency, (long) baseLatency, requests, throttled);
+			if (newLimit > limit) {
+				permits.release(newLimit - limit);
+			} else {
+				permits.reducePermits(limit - newLimit);
+			}
+			limit = newLimit;
+		} else {
+			logger.debug("Keeping concurrency limit [{}]: throughput [{}] bytes/s, average latency [{}] ms, [{}] requests, [{}] server busy responses", limit, (long) throughput, (long) averageLatency, requests, throttled);
+		}
+	}
+}
@@ -1,57 +1,136 @@
 package com.selivonchyks.azureupload;
 
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.commons.io.FileUtils;
-
-public class ContentHolder {
+/**
+ * Provides file content, in memory handling keeps the content in buffers taken from {@link BufferPool}
+ * until the holder is closed. Files which don't fit into the pool are memory mapped if they are not smaller
+ * than mapping threshold, otherwise they are streamed from disk. Reading waits for pool budget under a lock instead of
+ * a monitor, so waiting virtual threads don't pin their carrier threads.
+ */
+public class ContentHolder implements Closeable {
 	private File file;
-	private boolean isAllowedInMemoryHandling = false;
-	private byte[] data;
+	private long length;
+	private BufferPool bufferPool;
+	private List<ByteBuffer> buffers;
+	private long mappingThreshold = 0;
+	private int mappedWindowSize = 0;
+	private final ReentrantLock lock = new ReentrantLock();
 
-	public byte[] getData() {
-		return data;
-	}
-	public void setData(byte[] data) {
-		this.data = data;
-	}
 	public File getFile() {
 		return file;
 	}
 	public void setFile(File file) {
 		this.file = file;
 	}
-	public boolean isAllowedInMemoryHandling() {
-		return isAllowedInMemoryHandling;
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
 	}
-	public void setAllowedInMemoryHandling(boolean isAllowedInMemoryHandling) {
-		this.isAllowedInMemoryHandling = isAllowedInMemoryHandling;
+	public boolean isAllowedInMemoryHandling() {
+		return bufferPool != null && bufferPool.fits(length);
 	}
 	public long getLength() {
-		if (this.isAllowedInMemoryHandling() && this.getData() != null) {
-			return this.getData().length;
-		} else {
-			return this.getFile().length();
-		}
+		return length;
+	}
+	public long getMappingThreshold() {
+		return mappingThreshold;
+	}
+	public void setMappingThreshold(long mappingThreshold) {
+		this.mappingThreshold = mappingThreshold;
+	}
+	public int getMappedWindowSize() {
+		return mappedWindowSize;
+	}
+	/**
+	 * @param mappedWindowSize size of memory mapped windows, 0 disables memory mapping
+	 */
+	public void setMappedWindowSize(int mappedWindowSize) {
+		this.mappedWindowSize = mappedWindowSize;
+	}
+	public boolean isMapped() {
+		return mappedWindowSize > 0 && length >= mappingThreshold && length > 0;
 	}
 
-	public ContentHolder(File file, boolean isAllowedInMemoryHandling) {
+	/**
+	 * @param bufferPool pool used for in memory handling, null to always stream from disk
+	 */
+	public ContentHolder(File file, long length, BufferPool bufferPool) {
 		this.setFile(file);
-		this.setAllowedInMemoryHandling(isAllowedInMemoryHandling);
+		this.length = length;
+		this.setBufferPool(bufferPool);
 	}
 
-	public synchronized InputStream getInputStream() throws IOException {
+	public InputStream getInputStream() throws IOException {
 		if (this.isAllowedInMemoryHandling()) {
-			if (this.getData() == null) {
-				this.setData(FileUtils.readFileToByteArray(this.getFile()));
+			lock.lock();
+			try {
+				if (buffers == null) {
+					buffers = readFile();
+				}
+				return new ByteBuffersInputStream(buffers);
+			} finally {
+				lock.unlock();
 			}
-			return new ByteArrayInputStream(this.getData());
+		} else if (this.isMapped()) {
+			return new MappedFileInputStream(this.getFile(), length, mappedWindowSize);
 		} else {
 			return new FileInputStream(this.getFile());
 		}
 	}
+
+	private List<ByteBuffer> readFile() throws IOException {
+		List<ByteBuffer> fileBuffers;
+		try {
+			fileBuffers = bufferPool.acquire(length);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(String.format("Interrupted while waiting for memory to read file [%s]", file), e);
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long position = 0;
+			for(ByteBuffer buffer : fileBuffers) {
+				buffer.limit((int) Math.min(buffer.capacity(), length - position));
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, position);
+					if (read < 0) {
+						throw new IOException(String.format("File [%s] has been truncated, expected [%d] bytes", file, length));
+					}
+					position += read;
+				}
+				buffer.flip();
+			}
+		} catch (IOException e) {
+			bufferPool.release(fileBuffers);
+			throw e;
+		}
+		return fileBuffers;
+	}
+
+	/**
+	 * Returns buffers to the pool, streams obtained from this holder must not be used afterwards.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (buffers != null) {
+				bufferPool.release(buffers);
+				buffers = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
 }
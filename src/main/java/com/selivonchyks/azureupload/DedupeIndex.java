@@ -0,0 +1,151 @@
+package com.selivonchyks.azureupload;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Blobs uploaded with the given content, keyed by file size and MD5. Files having the same content are
+ * copied from a blob of the same container on the service side instead of being uploaded. Blobs are kept as URIs,
+ * so jobs uploading to different containers never copy from each other. Blobs are added from the upload log and
+ * as files get uploaded, identical files uploaded at the same time are both uploaded.
+ */
+public class DedupeIndex {
+	public static final long DEFAULT_THRESHOLD = 64L * 1024;
+	static final int MAX_BLOBS_PER_CONTENT = 16;
+
+	private final ConcurrentMap<String, String[]> blobs = new ConcurrentHashMap<String, String[]>(1 << 16, 0.75f, 64);
+
+	private static String key(byte[] hash, long size) {
+		return new StringBuilder(48).append(Hex.encodeHex(hash)).append(':').append(size).toString();
+	}
+
+	/**
+	 * @return decoded URI of the container ending with a slash, so names of its blobs follow it
+	 */
+	static String containerPrefix(URI containerUri) {
+		String prefix = decode(containerUri);
+		return prefix.endsWith("/") ? prefix : prefix + "/";
+	}
+
+	private static String decode(URI uri) {
+		return uri.getScheme() + "://" + StringUtils.defaultString(uri.getRawAuthority()) + uri.getPath();
+	}
+
+	/**
+	 * @return name of a blob of the container having the same content or null
+	 */
+	public String find(URI containerUri, byte[] hash, long size) {
+		if (hash == null || hash.length == 0) {
+			return null;
+		}
+		String[] uris = blobs.get(key(hash, size));
+		if (uris != null) {
+			String prefix = containerPrefix(containerUri);
+			for(String uri : uris) {
+				if (uri.startsWith(prefix) && uri.length() > prefix.length()) {
+					return uri.substring(prefix.length());
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds blob unless the container has one with the same content already.
+	 */
+	public void add(URI containerUri, byte[] hash, long size, String blobName) {
+		if (hash == null || hash.length == 0 || StringUtils.isBlank(blobName)) {
+			return;
+		}
+		String prefix = containerPrefix(containerUri);
+		add(key(hash, size), prefix + blobName, prefix);
+	}
+
+	/**
+	 * Adds the blob of the log item. Packed files and items which blob isn't an absolute URI, i.e. ones logged before
+	 * blob URIs were logged, are ignored since their container isn't known.
+	 */
+	public void add(UploadedFileLogItem item) {
+		if (StringUtils.isNotEmpty(item.getArchive()) || StringUtils.isEmpty(item.getBlob())) {
+			return;
+		}
+		byte[] hash = UploadLogIndex.decodeHash(item.getHash());
+		if (hash == null || hash.length == 0) {
+			return;
+		}
+		URI blobUri;
+		try {
+			blobUri = new URI(item.getBlob());
+		} catch (URISyntaxException e) {
+			return;
+		}
+		if (blobUri.isAbsolute() && !blobUri.isOpaque()) {
+			add(key(hash, item.getSize()), decode(blobUri), null);
+		}
+	}
+
+	/**
+	 * @param containerPrefix container of the blob if known, other blobs of the container make the blob redundant
+	 */
+	private void add(String key, String uri, String containerPrefix) {
+		while (true) {
+			String[] uris = blobs.get(key);
+			if (uris == null) {
+				if (blobs.putIfAbsent(key, new String[] { uri }) == null) {
+					return;
+				}
+				continue;
+			}
+			if (uris.length >= MAX_BLOBS_PER_CONTENT || ArrayUtils.contains(uris, uri)) {
+				return;
+			}
+			if (containerPrefix != null) {
+				for(String existingUri : uris) {
+					if (existingUri.startsWith(containerPrefix)) {
+						return;
+					}
+				}
+			}
+			String[] updatedUris = Arrays.copyOf(uris, uris.length + 1);
+			updatedUris[uris.length] = uri;
+			if (blobs.replace(key, uris, updatedUris)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forgets the blob of the container, e.g. when it can't be copied anymore.
+	 */
+	public void remove(URI containerUri, byte[] hash, long size, String blobName) {
+		if (hash == null || hash.length == 0) {
+			return;
+		}
+		String key = key(hash, size);
+		String uri = containerPrefix(containerUri) + blobName;
+		while (true) {
+			String[] uris = blobs.get(key);
+			if (uris == null || !ArrayUtils.contains(uris, uri)) {
+				return;
+			}
+			String[] updatedUris = ArrayUtils.removeElement(uris, uri);
+			if (updatedUris.length == 0 ? blobs.remove(key, uris) : blobs.replace(key, uris, updatedUris)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return count of distinct contents having a blob
+	 */
+	public int size() {
+		return blobs.size();
+	}
+}
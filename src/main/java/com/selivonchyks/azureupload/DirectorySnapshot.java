@@ -0,0 +1,246 @@
+package com.selivonchyks.azureupload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Directory tree state saved after a run: modification date, files count, subfolder names and digest of names, sizes
+ * and modification dates of files of every ready folder which files have all been uploaded. Folder which modification
+ * date hasn't changed since then has the same entries, so the next run doesn't list it and descends into its recorded
+ * subfolders, stating only folders instead of every file. Changed folder is listed, its files are queued only if
+ * the digest of its files has changed. Files modified in place don't change modification date of their folder,
+ * they are found by a full scan only.
+ */
+public class DirectorySnapshot {
+	static final Logger logger = LoggerFactory.getLogger(DirectorySnapshot.class);
+
+	static final String MAGIC = "AZSNAP1";
+	// folders modified this close to the previous scan might have been modified again within the same timestamp
+	static final long MODIFICATION_GRANULARITY = 2000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * State of a folder.
+	 */
+	public static class Entry {
+		private final long lastModificationDate;
+		private final int filesCount;
+		private final long digest;
+		private final List<String> subdirectories;
+		// files queued for upload and not uploaded yet, folder is saved only when all of them have been uploaded
+		private final AtomicInteger pendingFilesCount;
+
+		Entry(long lastModificationDate, int filesCount, long digest, List<String> subdirectories, int pendingFilesCount) {
+			this.lastModificationDate = lastModificationDate;
+			this.filesCount = filesCount;
+			this.digest = digest;
+			this.subdirectories = subdirectories;
+			this.pendingFilesCount = new AtomicInteger(pendingFilesCount);
+		}
+
+		public long getLastModificationDate() {
+			return lastModificationDate;
+		}
+		public int getFilesCount() {
+			return filesCount;
+		}
+		public long getDigest() {
+			return digest;
+		}
+		public List<String> getSubdirectories() {
+			return subdirectories;
+		}
+	}
+
+	private final Map<String, Entry> previousEntries;
+	private final long previousScanTime;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>(1 << 12, 0.75f, 16);
+	private final long scanTime = System.currentTimeMillis();
+	private boolean fullScan = false;
+
+	DirectorySnapshot(Map<String, Entry> previousEntries, long previousScanTime) {
+		this.previousEntries = previousEntries;
+		this.previousScanTime = previousScanTime;
+	}
+
+	/**
+	 * @return snapshot saved into the file or empty snapshot if the file doesn't exist or can't be read
+	 */
+	public static DirectorySnapshot load(File file) {
+		if (!file.exists()) {
+			return new DirectorySnapshot(Collections.<String, Entry>emptyMap(), 0);
+		}
+		long startTime = System.currentTimeMillis();
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (!MAGIC.equals(is.readUTF())) {
+				throw new IOException("Not a folder snapshot");
+			}
+			long previousScanTime = is.readLong();
+			int entriesCount = is.readInt();
+			Map<String, Entry> previousEntries = new HashMap<String, Entry>(entriesCount * 4 / 3 + 1);
+			for(int i = 0; i < entriesCount; ++i) {
+				String path = is.readUTF();
+				long lastModificationDate = is.readLong();
+				int filesCount = is.readInt();
+				long digest = is.readLong();
+				String[] subdirectories = new String[is.readInt()];
+				for(int j = 0; j < subdirectories.length; ++j) {
+					subdirectories[j] = is.readUTF();
+				}
+				previousEntries.put(path, new Entry(lastModificationDate, filesCount, digest, Arrays.asList(subdirectories), 0));
+			}
+			logger.info("Read [{}] folders from snapshot [{}] of [{}] in [{}] ms", entriesCount, file, new Date(previousScanTime), System.currentTimeMillis() - startTime);
+			return new DirectorySnapshot(previousEntries, previousScanTime);
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to read folder snapshot [%s], scanning all folders", file), e);
+			return new DirectorySnapshot(Collections.<String, Entry>emptyMap(), 0);
+		}
+	}
+
+	/**
+	 * Writes folders which files have all been uploaded next to the file and moves it over the file once complete.
+	 */
+	public void save(File file) throws IOException {
+		long startTime = System.currentTimeMillis();
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		FileUtils.deleteQuietly(tmpFile);
+		int savedCount = 0;
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+			os.writeUTF(MAGIC);
+			os.writeLong(scanTime);
+			Map<String, Entry> completed = new HashMap<String, Entry>();
+			for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+				if (entry.getValue().pendingFilesCount.get() == 0) {
+					completed.put(entry.getKey(), entry.getValue());
+				}
+			}
+			os.writeInt(completed.size());
+			for(Map.Entry<String, Entry> entry : completed.entrySet()) {
+				Entry value = entry.getValue();
+				os.writeUTF(entry.getKey());
+				os.writeLong(value.lastModificationDate);
+				os.writeInt(value.filesCount);
+				os.writeLong(value.digest);
+				os.writeInt(value.subdirectories.size());
+				for(String subdirectory : value.subdirectories) {
+					os.writeUTF(subdirectory);
+				}
+			}
+			savedCount = completed.size();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Saved [{}] of [{}] scanned folders into snapshot [{}] in [{}] ms", savedCount, entries.size(), file, System.currentTimeMillis() - startTime);
+	}
+
+	public boolean isFullScan() {
+		return fullScan;
+	}
+	/**
+	 * Full scan lists every folder and queues every file, the snapshot is still saved.
+	 */
+	public void setFullScan(boolean fullScan) {
+		this.fullScan = fullScan;
+	}
+
+	static String key(Path directory) {
+		return directory.toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * @return saved state of the folder if its entries haven't changed since it's been saved, null otherwise
+	 */
+	public Entry findUnchanged(Path directory, long lastModificationDate) {
+		if (fullScan) {
+			return null;
+		}
+		Entry entry = previousEntries.get(key(directory));
+		if (entry == null || entry.lastModificationDate != lastModificationDate || lastModificationDate >= previousScanTime - MODIFICATION_GRANULARITY) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * @return true if files of the listed folder are the same as when it's been saved
+	 */
+	public boolean hasSameFiles(Path directory, int filesCount, long digest) {
+		if (fullScan) {
+			return false;
+		}
+		Entry entry = previousEntries.get(key(directory));
+		return entry != null && entry.filesCount == filesCount && entry.digest == digest;
+	}
+
+	/**
+	 * Keeps the saved state of the folder which hasn't been listed.
+	 */
+	public void keep(Path directory, Entry entry) {
+		entries.put(key(directory), new Entry(entry.lastModificationDate, entry.filesCount, entry.digest, entry.subdirectories, 0));
+	}
+
+	/**
+	 * Records the listed folder before its files are queued.
+	 * @param queuedFilesCount count of files queued for upload, folder is saved once they all have been uploaded
+	 */
+	public void record(Path directory, long lastModificationDate, int filesCount, long digest, List<String> subdirectories, int queuedFilesCount) {
+		entries.put(key(directory), new Entry(lastModificationDate, filesCount, digest, subdirectories, queuedFilesCount));
+	}
+
+	/**
+	 * Marks the file uploaded or skipped as uploaded before.
+	 */
+	public void fileUploaded(File file) {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent == null) {
+			return;
+		}
+		Entry entry = entries.get(key(parent.toPath()));
+		if (entry != null) {
+			entry.pendingFilesCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return order independent digest of names, sizes and modification dates of files
+	 */
+	public static long digest(Collection<ScannedFile> files) {
+		long digest = 0;
+		for(ScannedFile file : files) {
+			byte[] md5 = DigestUtils.md5(String.format("%s/%d/%d", file.getFile().getName(), file.getSize(), file.getLastModificationDate()).getBytes(UTF8));
+			long hash = 0;
+			for(int i = 0; i < 8; ++i) {
+				hash = (hash << 8) | (md5[i] & 0xff);
+			}
+			digest += hash;
+		}
+		return digest;
+	}
+}
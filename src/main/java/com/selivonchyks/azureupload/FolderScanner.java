@@ -0,0 +1,332 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans the source folder in parallel and feeds found files into the bounded queue drained by the upload threads,
+ * scanning blocks while the queue is full. Every directory is read once by its own fork/join task: file attributes
+ * come from that read and the "folder is ready" state is resolved from the directory entries and inherited by
+ * the subdirectories, so no marker file lookups are made per file. Symbolic links are followed, a folder linking to
+ * one of the folders it's scanned from is skipped, so link cycles are not scanned forever.
+ */
+public class FolderScanner implements Runnable {
+	static final Logger logger = LoggerFactory.getLogger(FolderScanner.class);
+
+	protected final File directory;
+	protected final String markerFileName;
+	private final BlockingQueue<ScannedFile> queue;
+	private final ForkJoinPool pool;
+	private final AtomicLong foundFilesCount = new AtomicLong(0);
+	private final AtomicLong skippedFilesCount = new AtomicLong(0);
+	private volatile boolean finished = false;
+	private UploadMetrics metrics;
+	private Shard shard;
+	private DirectorySnapshot snapshot;
+	private final AtomicLong unchangedDirectoriesCount = new AtomicLong(0);
+	private final AtomicLong unchangedFilesCount = new AtomicLong(0);
+	private final URI directoryUri;
+
+	public FolderScanner(File directory, String markerFileName, BlockingQueue<ScannedFile> queue, int threadsCount) {
+		this.directory = directory;
+		this.markerFileName = markerFileName;
+		this.queue = queue;
+		this.pool = new ForkJoinPool(Math.max(1, threadsCount));
+		this.directoryUri = directory.toURI();
+	}
+
+	public long getFoundFilesCount() {
+		return foundFilesCount.get();
+	}
+
+	public long getSkippedFilesCount() {
+		return skippedFilesCount.get();
+	}
+
+	public UploadMetrics getMetrics() {
+		return metrics;
+	}
+	public void setMetrics(UploadMetrics metrics) {
+		this.metrics = metrics;
+	}
+	public Shard getShard() {
+		return shard;
+	}
+	/**
+	 * Only files of the shard are put into the queue, files of the other shards are ignored.
+	 */
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+	public DirectorySnapshot getSnapshot() {
+		return snapshot;
+	}
+	/**
+	 * Folders which haven't changed since the snapshot has been saved are not listed and their files are not queued,
+	 * listed folders are recorded into the snapshot.
+	 */
+	public void setSnapshot(DirectorySnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * @return count of folders which files haven't been queued since they haven't changed since the snapshot
+	 */
+	public long getUnchangedDirectoriesCount() {
+		return unchangedDirectoriesCount.get();
+	}
+	public long getUnchangedFilesCount() {
+		return unchangedFilesCount.get();
+	}
+
+	/**
+	 * @return true once all files have been put into the queue
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	@Override
+	public void run() {
+		long startTime = System.currentTimeMillis();
+		try {
+			scan(directory.toPath(), StringUtils.isBlank(markerFileName));
+		} catch (Exception e) {
+			logger.warn(String.format("Failed to scan folder [%s]", directory), e);
+		} finally {
+			finish();
+		}
+		logger.info("Found [{}] files in folder [{}] using marker file [{}] (skipped [{}] files), it took [{}] ms", foundFilesCount.get(), directory, markerFileName, skippedFilesCount.get(), System.currentTimeMillis() - startTime);
+		if (snapshot != null) {
+			logger.info("Skipped [{}] unchanged folders with [{}] files of folder [{}] using snapshot", unchangedDirectoriesCount.get(), unchangedFilesCount.get(), directory);
+		}
+	}
+
+	/**
+	 * Scans the folder and its subfolders, files of ready folders are put into the queue.
+	 * @param isParentReady true if the parent folder is ready or marker file is not used
+	 */
+	protected void scan(Path path, boolean isParentReady) {
+		pool.invoke(new DirectoryScan(path, null, null, isParentReady, false));
+	}
+
+	/**
+	 * Marks scanning finished, no more files will be put into the queue.
+	 */
+	protected void finish() {
+		pool.shutdown();
+		finished = true;
+		if (metrics != null) {
+			metrics.setScanFinished();
+		}
+	}
+
+	/**
+	 * Called for every scanned folder before its subfolders are scanned.
+	 * @return true to scan subfolders which have been scanned before as well
+	 */
+	protected boolean directoryScanned(Path directory, boolean isReady) {
+		return true;
+	}
+
+	/**
+	 * @return true if the folder has been scanned before, it's scanned again only if its parent asks for that
+	 */
+	protected boolean isScanned(Path directory) {
+		return false;
+	}
+
+	/**
+	 * @return false to not put the file of a ready folder into the queue, e.g. if it has been queued before
+	 */
+	protected boolean accept(ScannedFile file) {
+		return true;
+	}
+
+	/**
+	 * Makes the scanner find the file again, e.g. after its upload has failed.
+	 */
+	public void forget(ScannedFile file) {
+	}
+
+	/**
+	 * @return file key of the folder, its real path if the file system has no file keys
+	 */
+	private static Object fileKey(Path directory, BasicFileAttributes attributes) throws IOException {
+		Object fileKey = attributes.fileKey();
+		return fileKey != null ? fileKey : directory.toRealPath();
+	}
+
+	private class DirectoryScan extends RecursiveAction {
+		private static final long serialVersionUID = -3547120594232371245L;
+
+		private final Path path;
+		// identity of the folder the path resolves to, links to the same folder have the same key
+		private Object fileKey;
+		private final DirectoryScan parent;
+		private final boolean isParentReady;
+		private final boolean isRecursive;
+
+		/**
+		 * @param fileKey key of the folder or null to read it
+		 * @param parent scan of the parent folder or null for the folder the scan starts from
+		 */
+		DirectoryScan(Path path, Object fileKey, DirectoryScan parent, boolean isParentReady, boolean isRecursive) {
+			this.path = path;
+			this.fileKey = fileKey;
+			this.parent = parent;
+			this.isParentReady = isParentReady;
+			this.isRecursive = isRecursive;
+		}
+
+		@Override
+		protected void compute() {
+			long lastModificationDate = 0;
+			if (fileKey == null || snapshot != null) {
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					lastModificationDate = attributes.lastModifiedTime().toMillis();
+					if (fileKey == null) {
+						fileKey = fileKey(path, attributes);
+					}
+				} catch (IOException e) {
+					logger.warn(String.format("Failed to read [%s]", path), e);
+					return;
+				}
+			}
+			for(DirectoryScan ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+				if (fileKey.equals(ancestor.fileKey)) {
+					logger.warn("Skipping folder [{}], it links to folder [{}] it's been reached from", path, ancestor.path);
+					return;
+				}
+			}
+			if (snapshot != null) {
+				DirectorySnapshot.Entry unchanged = snapshot.findUnchanged(path, lastModificationDate);
+				if (unchanged != null) {
+					// entries are the same, only the folders saved as ready are in the snapshot
+					snapshot.keep(path, unchanged);
+					unchangedDirectoriesCount.incrementAndGet();
+					unchangedFilesCount.addAndGet(unchanged.getFilesCount());
+					boolean isSubdirectoriesRescanned = directoryScanned(path, true) || isRecursive;
+					List<DirectoryScan> subtasks = new ArrayList<DirectoryScan>(unchanged.getSubdirectories().size());
+					for(String subdirectoryName : unchanged.getSubdirectories()) {
+						Path subdirectory = path.resolve(subdirectoryName);
+						if (!isSubdirectoriesRescanned && isScanned(subdirectory)) {
+							continue;
+						}
+						DirectoryScan subtask = new DirectoryScan(subdirectory, null, this, true, isSubdirectoriesRescanned);
+						subtask.fork();
+						subtasks.add(subtask);
+					}
+					for(DirectoryScan subtask : subtasks) {
+						subtask.join();
+					}
+					return;
+				}
+			}
+			boolean isReady = isParentReady;
+			List<Path> directories = new ArrayList<Path>();
+			List<Object> directoryKeys = new ArrayList<Object>();
+			List<ScannedFile> files = new ArrayList<ScannedFile>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+				for(Path entry : entries) {
+					BasicFileAttributes attributes;
+					long statStartTime = System.nanoTime();
+					try {
+						attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+						if (attributes.isDirectory()) {
+							directoryKeys.add(fileKey(entry, attributes));
+							directories.add(entry);
+						}
+					} catch (IOException e) {
+						logger.warn(String.format("Failed to read [%s]", entry), e);
+						continue;
+					}
+					if (metrics != null) {
+						metrics.getLatency(UploadMetrics.Phase.STAT).recordSince(statStartTime);
+					}
+					if (attributes.isRegularFile()) {
+						if (!isReady && entry.getFileName().toString().equals(markerFileName)) {
+							isReady = true;
+						}
+						files.add(new ScannedFile(entry.toFile(), attributes.size(), attributes.lastModifiedTime().toMillis()));
+					}
+				}
+			} catch (IOException e) {
+				logger.warn(String.format("Failed to read [%s]", path), e);
+				return;
+			}
+
+			boolean isSubdirectoriesRescanned = directoryScanned(path, isReady) || isRecursive;
+			List<DirectoryScan> subtasks = new ArrayList<DirectoryScan>(directories.size());
+			for(int i = 0; i < directories.size(); ++i) {
+				Path subdirectory = directories.get(i);
+				if (!isSubdirectoriesRescanned && isScanned(subdirectory)) {
+					continue;
+				}
+				DirectoryScan subtask = new DirectoryScan(subdirectory, directoryKeys.get(i), this, isReady, isSubdirectoriesRescanned);
+				subtask.fork();
+				subtasks.add(subtask);
+			}
+
+			if (isReady) {
+				List<ScannedFile> queuedFiles = new ArrayList<ScannedFile>(files.size());
+				for(ScannedFile file : files) {
+					if (shard != null && !shard.contains(file.getFile(), directoryUri.relativize(file.getFile().toURI()).getPath())) {
+						continue;
+					}
+					if (!accept(file)) {
+						continue;
+					}
+					queuedFiles.add(file);
+				}
+				if (snapshot != null) {
+					long digest = DirectorySnapshot.digest(files);
+					if (snapshot.hasSameFiles(path, files.size(), digest)) {
+						unchangedDirectoriesCount.incrementAndGet();
+						unchangedFilesCount.addAndGet(files.size());
+						queuedFiles.clear();
+					}
+					List<String> subdirectories = new ArrayList<String>(directories.size());
+					for(Path subdirectory : directories) {
+						subdirectories.add(subdirectory.getFileName().toString());
+					}
+					snapshot.record(path, lastModificationDate, files.size(), digest, subdirectories, queuedFiles.size());
+				}
+				for(ScannedFile file : queuedFiles) {
+					try {
+						queue.put(file);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					foundFilesCount.incrementAndGet();
+					if (metrics != null) {
+						metrics.fileFound(file.getSize());
+					}
+				}
+			} else {
+				skippedFilesCount.addAndGet(files.size());
+			}
+
+			for(DirectoryScan subtask : subtasks) {
+				subtask.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps scanning the source folder until stopped. After the initial scan only folders reported by file system
+ * events are scanned again, once events have settled down, and the whole folder is reconciled periodically in case
+ * some events have been lost. Files are queued once per size and last modification date, the scan state of
+ * every folder and file is kept in memory.
+ */
+public class FolderWatcher extends FolderScanner {
+	static final Logger logger = LoggerFactory.getLogger(FolderWatcher.class);
+
+	public static final long DEFAULT_RECONCILE_INTERVAL = 10 * 60 * 1000;
+	// folders are scanned once no events have been received for them for this time
+	static final long SETTLE_DELAY = 1000;
+	// folders are scanned at least this often while events keep coming
+	static final long MAX_SETTLE_DELAY = 10000;
+
+	/**
+	 * Size and last modification date of a queued file.
+	 */
+	private static final class FileVersion {
+		private final long size;
+		private final long lastModificationDate;
+
+		FileVersion(ScannedFile file) {
+			this.size = file.getSize();
+			this.lastModificationDate = file.getLastModificationDate();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof FileVersion)) {
+				return false;
+			}
+			FileVersion version = (FileVersion) other;
+			return size == version.size && lastModificationDate == version.lastModificationDate;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (int) (size ^ (size >>> 32)) + (int) (lastModificationDate ^ (lastModificationDate >>> 32));
+		}
+	}
+
+	private final long reconcileInterval;
+	// ready state of scanned folders
+	private final ConcurrentMap<Path, Boolean> directories = new ConcurrentHashMap<Path, Boolean>();
+	// size and last modification date of queued files by path
+	private final ConcurrentMap<String, FileVersion> queuedFiles = new ConcurrentHashMap<String, FileVersion>(1 << 16, 0.75f, 16);
+	private volatile boolean stopped = false;
+	private volatile boolean isFullScan = false;
+	private WatchService watchService;
+	private volatile boolean isWatchLimitReached = false;
+
+	/**
+	 * @param reconcileInterval interval in milliseconds of full scans
+	 */
+	public FolderWatcher(File directory, String markerFileName, BlockingQueue<ScannedFile> queue, int threadsCount, long reconcileInterval) {
+		super(directory, markerFileName, queue, threadsCount);
+		this.reconcileInterval = reconcileInterval;
+	}
+
+	/**
+	 * Stops watching, upload threads finish once the queued files are uploaded.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void run() {
+		Path root = directory.toPath();
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to watch folder [%s], it's only scanned every [%d] ms", directory, reconcileInterval), e);
+		}
+		try {
+			long nextReconcileTime = reconcile(root);
+			Set<Path> changedDirectories = new LinkedHashSet<Path>();
+			long firstChangeTime = 0;
+			long lastChangeTime = 0;
+			while (!stopped) {
+				WatchKey key = watchService != null ? watchService.poll(SETTLE_DELAY, TimeUnit.MILLISECONDS) : null;
+				if (watchService == null) {
+					Thread.sleep(SETTLE_DELAY);
+				}
+				for(; key != null; key = watchService.poll()) {
+					Path path = (Path) key.watchable();
+					for(WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							logger.info("Missed file system events of folder [{}], reconciling", path);
+							nextReconcileTime = 0;
+						} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+							Path deleted = path.resolve((Path) event.context());
+							queuedFiles.remove(deleted.toString());
+							directories.remove(deleted);
+						} else {
+							changedDirectories.add(path);
+						}
+					}
+					if (!key.reset()) {
+						directories.remove(path);
+					}
+					long now = System.currentTimeMillis();
+					if (firstChangeTime == 0) {
+						firstChangeTime = now;
+					}
+					lastChangeTime = now;
+				}
+
+				long now = System.currentTimeMillis();
+				if (now >= nextReconcileTime) {
+					changedDirectories.clear();
+					firstChangeTime = 0;
+					nextReconcileTime = reconcile(root);
+				} else if (!changedDirectories.isEmpty() && (now - lastChangeTime >= SETTLE_DELAY || now - firstChangeTime >= MAX_SETTLE_DELAY)) {
+					for(Iterator<Path> it = changedDirectories.iterator(); it.hasNext() && !stopped; ) {
+						Path changed = it.next();
+						it.remove();
+						if (directories.containsKey(changed)) {
+							scan(changed, isParentReady(changed));
+						}
+					}
+					firstChangeTime = 0;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.warn(String.format("Failed to watch folder [%s]", directory), e);
+		} finally {
+			if (watchService != null) {
+				try {
+					watchService.close();
+				} catch (IOException e) {
+					logger.info(String.format("Failed to stop watching folder [%s]", directory), e);
+				}
+			}
+			finish();
+		}
+		logger.info("Stopped watching folder [{}], found [{}] files (skipped [{}] files)", directory, getFoundFilesCount(), getSkippedFilesCount());
+	}
+
+	/**
+	 * Scans the whole folder, files which have been queued before with the same size and modification date are ignored.
+	 * @return time of the next reconciliation
+	 */
+	private long reconcile(Path root) {
+		long startTime = System.currentTimeMillis();
+		long foundFilesCount = getFoundFilesCount();
+		isFullScan = true;
+		try {
+			scan(root, StringUtils.isBlank(markerFileName));
+		} finally {
+			isFullScan = false;
+		}
+		logger.info("Scanned folder [{}] using marker file [{}], found [{}] new files in [{}] folders, it took [{}] ms", directory, markerFileName, getFoundFilesCount() - foundFilesCount, directories.size(), System.currentTimeMillis() - startTime);
+		return System.currentTimeMillis() + reconcileInterval;
+	}
+
+	private boolean isParentReady(Path path) {
+		if (StringUtils.isBlank(markerFileName)) {
+			return true;
+		}
+		for(Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+			if (Boolean.TRUE.equals(directories.get(parent))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Folder which has got ready since it's been scanned last time gets its subfolders scanned again.
+	 */
+	@Override
+	protected boolean directoryScanned(Path directory, boolean isReady) {
+		Boolean wasReady = directories.put(directory, isReady);
+		if (wasReady == null && watchService != null && !isWatchLimitReached) {
+			try {
+				directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			} catch (IOException e) {
+				// e.g. inotify watches limit, changes of the rest of folders are found by reconciliation
+				isWatchLimitReached = true;
+				logger.warn(String.format("Failed to watch folder [%s], changes of not watched folders are found every [%d] ms", directory, reconcileInterval), e);
+			}
+		}
+		return isFullScan || (isReady && !Boolean.TRUE.equals(wasReady));
+	}
+
+	@Override
+	protected boolean isScanned(Path directory) {
+		return directories.containsKey(directory);
+	}
+
+	@Override
+	protected boolean accept(ScannedFile file) {
+		FileVersion version = new FileVersion(file);
+		return !version.equals(queuedFiles.put(file.getFile().getPath(), version));
+	}
+
+	@Override
+	public void forget(ScannedFile file) {
+		queuedFiles.remove(file.getFile().getPath(), new FileVersion(file));
+	}
+}
@@ -0,0 +1,96 @@
+package com.selivonchyks.azureupload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Computes MD5 of the bytes passing through the stream. Bytes re-read after {@link #reset()} are hashed only once,
+ * so the hash stays correct when consumer marks and rewinds the stream, e.g. to retry a request.
+ */
+public class HashingInputStream extends FilterInputStream {
+	private final MessageDigest digest = DigestUtils.getMd5Digest();
+	private long position = 0;
+	private long hashedPosition = 0;
+	private long markedPosition = 0;
+	private byte[] hash;
+
+	public HashingInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b != -1) {
+			if (position == hashedPosition) {
+				digest.update((byte) b);
+				++hashedPosition;
+			}
+			++position;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) {
+			long end = position + read;
+			if (end > hashedPosition) {
+				int skipped = (int) (hashedPosition - position);
+				digest.update(b, off + skipped, read - skipped);
+				hashedPosition = end;
+			}
+			position = end;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped bytes have to be hashed as well
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		in.mark(readlimit);
+		markedPosition = position;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		in.reset();
+		position = markedPosition;
+	}
+
+	/**
+	 * @return count of distinct bytes hashed so far
+	 */
+	public long getHashedLength() {
+		return hashedPosition;
+	}
+
+	/**
+	 * Completes hashing, should be called once all bytes have been consumed.
+	 */
+	public byte[] getHash() {
+		if (hash == null) {
+			hash = digest.digest();
+		}
+		return hash;
+	}
+}
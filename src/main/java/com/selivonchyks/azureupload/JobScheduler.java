@@ -0,0 +1,123 @@
+package com.selivonchyks.azureupload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands queued files of all jobs to the shared upload threads, sharing threads between jobs having queued files
+ * in proportion to job weights. Every job is charged for the bytes of the files taken from its queue plus a fixed
+ * cost per file, the job charged the least gets the next file. Job coming back after its queue has been empty
+ * is charged from the current charge of the others, so it doesn't take all threads to catch up.
+ */
+public class JobScheduler {
+	// cost of a file in bytes besides its size, so jobs of small files get their share as well
+	static final long FILE_COST = 64 * 1024;
+	static final long POLL_INTERVAL = 10;
+
+	/**
+	 * File taken from the queue of the job.
+	 */
+	public static class Task {
+		private final UploadJob job;
+		private final ScannedFile file;
+
+		Task(UploadJob job, ScannedFile file) {
+			this.job = job;
+			this.file = file;
+		}
+
+		public UploadJob getJob() {
+			return job;
+		}
+		public ScannedFile getFile() {
+			return file;
+		}
+	}
+
+	private final List<UploadJob> jobs;
+	// charge of every job in weighted bytes, the charge of the job is never less than the current charge
+	private final double[] charges;
+	private double currentCharge = 0;
+
+	public JobScheduler(Collection<UploadJob> jobs) {
+		this.jobs = new ArrayList<UploadJob>(jobs);
+		this.charges = new double[this.jobs.size()];
+	}
+
+	public List<UploadJob> getJobs() {
+		return jobs;
+	}
+
+	/**
+	 * @return file of the job which is due or null if no job has queued files
+	 */
+	public synchronized Task poll() {
+		int due = -1;
+		double dueCharge = Double.MAX_VALUE;
+		for(int i = 0; i < jobs.size(); ++i) {
+			if (jobs.get(i).getQueue().isEmpty()) {
+				continue;
+			}
+			double charge = Math.max(charges[i], currentCharge);
+			if (charge < dueCharge) {
+				due = i;
+				dueCharge = charge;
+			}
+		}
+		if (due < 0) {
+			return null;
+		}
+		UploadJob job = jobs.get(due);
+		ScannedFile file = job.getQueue().poll();
+		if (file == null) {
+			return null;
+		}
+		currentCharge = dueCharge;
+		charges[due] = dueCharge + (file.getSize() + FILE_COST) / job.getWeight();
+		return new Task(job, file);
+	}
+
+	/**
+	 * Waits for a file of any job.
+	 * @return file of the job which is due or null if no file has been queued within the timeout
+	 */
+	public Task poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			Task task = poll();
+			if (task != null) {
+				return task;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL)));
+		}
+	}
+
+	/**
+	 * @return true if scanners of all jobs have finished and all files have been taken
+	 */
+	public boolean isFinished() {
+		for(UploadJob job : jobs) {
+			if (!job.getScanner().isFinished() || !job.getQueue().isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return count of queued files of all jobs
+	 */
+	public int size() {
+		int size = 0;
+		for(UploadJob job : jobs) {
+			size += job.getQueue().size();
+		}
+		return size;
+	}
+}
@@ -0,0 +1,399 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * Uploads large file as a list of blocks staged in parallel by the owner thread and by the upload threads
+ * helping via {@link BlockUploadScheduler}. Blocks are read sequentially, so MD5 of the whole file is computed
+ * in the same pass, while every block is sent with its own transactional MD5. The service doesn't verify
+ * Content-MD5 of a committed block list, so verified blocks and the length of the committed blob are the integrity
+ * check of the whole file.
+ * Failed blocks are retried with exponential backoff, staged blocks are recorded by {@link BlockCheckpoint}
+ * so blocks staged by an interrupted run are not uploaded again if they are still uncommitted and unchanged.
+ * Blocks read into memory take their buffers from the shared {@link BufferPool} if there is one, blocks which
+ * don't get buffers right away are memory mapped instead of waiting for them.
+ */
+public class LargeFileUpload {
+	static final Logger logger = LoggerFactory.getLogger(LargeFileUpload.class);
+
+	static final int MAX_BLOCKS_COUNT = 50000;
+	public static final int DEFAULT_ATTEMPTS_COUNT = 5;
+	static final long BASE_RETRY_DELAY = 1000;
+	static final long MAX_RETRY_DELAY = 60000;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final long fileSize;
+	private final BlobSink sink;
+	private final String blobName;
+	private final int blockSize;
+	private final int parallelBlocksCount;
+	private final BlockUploadScheduler scheduler;
+	private boolean mapped = false;
+	private BufferPool bufferPool;
+	private ConcurrencyController concurrencyController;
+	private BlockCheckpoint checkpoint;
+	private UploadMetrics metrics;
+	private int attemptsCount = DEFAULT_ATTEMPTS_COUNT;
+	private final Random random = new Random();
+
+	// guards block state, blocks are read in order under the lock since the file digest is updated block by block;
+	// a lock instead of a monitor lets virtual threads park while waiting for it without pinning their carrier threads
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition blockCompleted = lock.newCondition();
+	private final MessageDigest fileDigest = DigestUtils.getMd5Digest();
+	private final List<String> blockIds = new ArrayList<String>();
+	private FileChannel channel;
+	private int blocksCount;
+	private int nextBlockIndex = 0;
+	private int inFlightBlocksCount = 0;
+	private int completedBlocksCount = 0;
+	private boolean finished = false;
+	private Exception failure;
+
+	static class Block {
+		final int index;
+		final String id;
+		final List<ByteBuffer> data;
+		final List<ByteBuffer> pooledBuffers;
+		final int length;
+		final byte[] md5;
+		final boolean isStaged;
+
+		Block(int index, String id, List<ByteBuffer> data, List<ByteBuffer> pooledBuffers, int length, byte[] md5, boolean isStaged) {
+			this.index = index;
+			this.id = id;
+			this.data = data;
+			this.pooledBuffers = pooledBuffers;
+			this.length = length;
+			this.md5 = md5;
+			this.isStaged = isStaged;
+		}
+	}
+
+	public LargeFileUpload(
+			File file,
+			long fileSize,
+			BlobSink sink,
+			String blobName,
+			int blockSize,
+			int parallelBlocksCount,
+			BlockUploadScheduler scheduler
+	) {
+		this.file = file;
+		this.fileSize = fileSize;
+		this.sink = sink;
+		this.blobName = blobName;
+		this.blockSize = blockSize;
+		this.parallelBlocksCount = Math.max(1, parallelBlocksCount);
+		this.scheduler = scheduler;
+	}
+
+	public boolean isMapped() {
+		return mapped;
+	}
+	/**
+	 * @param mapped blocks are read through memory mapped regions instead of being copied into heap buffers
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	/**
+	 * @param bufferPool pool of the in memory budget blocks are read into, null to allocate block buffers
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public ConcurrencyController getConcurrencyController() {
+		return concurrencyController;
+	}
+	public void setConcurrencyController(ConcurrencyController concurrencyController) {
+		this.concurrencyController = concurrencyController;
+	}
+
+	public BlockCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+	public void setCheckpoint(BlockCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+	public UploadMetrics getMetrics() {
+		return metrics;
+	}
+	public void setMetrics(UploadMetrics metrics) {
+		this.metrics = metrics;
+	}
+	public int getAttemptsCount() {
+		return attemptsCount;
+	}
+	public void setAttemptsCount(int attemptsCount) {
+		this.attemptsCount = Math.max(1, attemptsCount);
+	}
+
+	public static String blockId(int index) {
+		return Base64.encode(String.format("%08d", index).getBytes(UTF_8));
+	}
+
+	/**
+	 * Uploads all blocks and commits block list, blocks when other threads are still uploading blocks of this file.
+	 * @return MD5 of the whole file
+	 */
+	public byte[] upload() throws IOException, InterruptedException {
+		try {
+			blocksCount = (int) Math.max(1, (fileSize + blockSize - 1) / blockSize);
+			if ((fileSize + blockSize - 1) / blockSize > MAX_BLOCKS_COUNT) {
+				throw new IOException(String.format("File [%s] of size [%d] can't be uploaded using blocks of size [%d], blob can't have more than [%d] blocks", file, fileSize, blockSize, MAX_BLOCKS_COUNT));
+			}
+			for(int i = 0; i < blocksCount; ++i) {
+				blockIds.add(blockId(i));
+			}
+			if (checkpoint != null && checkpoint.getStagedBlocksCount() > 0) {
+				checkpoint.retain(downloadUncommittedBlockSizes(), blockSize, fileSize);
+				logger.info("Found [{}] of [{}] blocks of file [{}] staged by previous run", checkpoint.getStagedBlocksCount(), blocksCount, file);
+			}
+
+			try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				channel = fileChannel;
+				scheduler.register(this, Math.min(parallelBlocksCount, blocksCount) - 1);
+				try {
+					help();
+					awaitCompletion();
+				} finally {
+					scheduler.unregister(this);
+				}
+			}
+			if (failure != null) {
+				throw new IOException(String.format("Failed to upload blocks of file [%s]", file), failure);
+			}
+
+			byte[] md5 = fileDigest.digest();
+			long committedLength = sink.commitBlockList(blobName, blockIds, Base64.encode(md5));
+			if (committedLength != fileSize) {
+				throw new IOException(String.format("Committed blob [%s] has length [%d] but expected [%d]", blobName, committedLength, fileSize));
+			}
+			if (checkpoint != null) {
+				checkpoint.delete();
+			}
+			logger.debug("Committed [{}] blocks of file [{}] to [{}]", blocksCount, file, blobName);
+			return md5;
+		} finally {
+			// checkpoint of a failed upload is kept for the next run, only its file is closed
+			if (checkpoint != null) {
+				checkpoint.close();
+			}
+		}
+	}
+
+	private Map<Integer, Long> downloadUncommittedBlockSizes() {
+		Map<Integer, Long> blockSizes = new HashMap<Integer, Long>();
+		try {
+			for(Map.Entry<String, Long> block : sink.downloadUncommittedBlocks(blobName).entrySet()) {
+				int index = NumberUtils.toInt(new String(Base64.decode(block.getKey()), UTF_8), -1);
+				if (index >= 0) {
+					blockSizes.put(index, block.getValue());
+				}
+			}
+		} catch (IOException e) {
+			logger.info(String.format("Failed to list uncommitted blocks of [%s], uploading all blocks", blobName), e);
+		}
+		return blockSizes;
+	}
+
+	private void uploadBlock(Block block) throws IOException, InterruptedException {
+		for(int attempt = 1; ; ++attempt) {
+			try {
+				sink.uploadBlock(blobName, block.id, new ByteBuffersInputStream(block.data), block.length);
+				return;
+			} catch (IOException e) {
+				if (attempt >= attemptsCount || !isRetryable(e) || isFailed()) {
+					throw e;
+				}
+				long delay;
+				synchronized (random) {
+					delay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << (attempt - 1)) / 2 + (long) (random.nextDouble() * BASE_RETRY_DELAY);
+				}
+				if (metrics != null) {
+					metrics.retried();
+				}
+				logger.info("Retrying upload of block [{}] of file [{}] in [{}] ms, attempt [{}] of [{}] failed: {}", block.index, file, delay, attempt, attemptsCount, e.getMessage());
+				Thread.sleep(delay);
+			}
+		}
+	}
+
+	private static boolean isRetryable(Exception e) {
+		if (e instanceof BlobSinkException) {
+			int statusCode = ((BlobSinkException) e).getHttpStatusCode();
+			return statusCode != HttpURLConnection.HTTP_UNAUTHORIZED && statusCode != HttpURLConnection.HTTP_FORBIDDEN && statusCode != HttpURLConnection.HTTP_NOT_FOUND;
+		}
+		return true;
+	}
+
+	private boolean isFailed() {
+		lock.lock();
+		try {
+			return failure != null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Uploads blocks of this file until there is nothing left to upload.
+	 */
+	void help() {
+		Block block;
+		while ((block = nextBlock()) != null) {
+			Exception exception = null;
+			try {
+				// blocks staged by a previous run are not sent, so they are not counted as transferred
+				if (!block.isStaged) {
+					uploadBlock(block);
+					if (checkpoint != null) {
+						checkpoint.blockStaged(block.index, block.md5);
+					}
+					if (concurrencyController != null) {
+						concurrencyController.recordUploaded(block.length);
+					}
+					if (metrics != null) {
+						metrics.bytesTransferred(block.length);
+					}
+				}
+			} catch (Exception e) {
+				exception = e;
+			} catch (InternalError e) {
+				// mapped block of a file truncated meanwhile
+				exception = MappedFileInputStream.truncated(file, e);
+			} finally {
+				if (block.pooledBuffers != null) {
+					bufferPool.release(block.pooledBuffers);
+				}
+			}
+			blockCompleted(block, exception);
+		}
+	}
+
+	private Block nextBlock() {
+		lock.lock();
+		try {
+			return readBlock();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Block readBlock() {
+		if (finished || failure != null || nextBlockIndex >= blocksCount) {
+			return null;
+		}
+		int index = nextBlockIndex++;
+		long position = (long) index * blockSize;
+		int length = (int) Math.min(blockSize, fileSize - position);
+		List<ByteBuffer> data = null;
+		List<ByteBuffer> pooledBuffers = null;
+		byte[] md5 = null;
+		try {
+			if (!mapped && bufferPool != null) {
+				pooledBuffers = bufferPool.tryAcquire(length);
+			}
+			if (mapped || (bufferPool != null && pooledBuffers == null)) {
+				// no budget left for the block, reading it through a mapped region keeps it off the heap
+				data = Collections.<ByteBuffer>singletonList(MappedFileInputStream.map(channel, position, length));
+			} else {
+				data = pooledBuffers != null ? pooledBuffers : Collections.<ByteBuffer>singletonList(ByteBuffer.allocate(length));
+				long bufferPosition = position;
+				for(ByteBuffer buffer : data) {
+					buffer.limit((int) Math.min(buffer.capacity(), position + length - bufferPosition));
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, bufferPosition + buffer.position()) < 0) {
+							throw new IOException(String.format("File [%s] has been truncated during upload, expected [%d] bytes", file, fileSize));
+						}
+					}
+					buffer.flip();
+					bufferPosition += buffer.limit();
+				}
+			}
+			// block is read by hashing, so reading mapped pages of a truncated file fails here
+			MessageDigest blockDigest = DigestUtils.getMd5Digest();
+			for(ByteBuffer buffer : data) {
+				blockDigest.update(buffer.duplicate());
+				fileDigest.update(buffer.duplicate());
+			}
+			md5 = blockDigest.digest();
+		} catch (IOException e) {
+			failure = e;
+		} catch (InternalError e) {
+			failure = MappedFileInputStream.truncated(file, e);
+		}
+		if (md5 == null) {
+			if (pooledBuffers != null) {
+				bufferPool.release(pooledBuffers);
+			}
+			return null;
+		}
+		boolean isStaged = checkpoint != null && Arrays.equals(md5, checkpoint.getStagedBlock(index));
+		++inFlightBlocksCount;
+		return new Block(index, blockIds.get(index), data, pooledBuffers, length, md5, isStaged);
+	}
+
+	private void blockCompleted(Block block, Exception exception) {
+		if (exception != null) {
+			logger.warn(String.format("Failed to upload block [%d] of file [%s]", block.index, file), exception);
+		}
+		lock.lock();
+		try {
+			--inFlightBlocksCount;
+			if (exception != null) {
+				if (failure == null) {
+					failure = exception;
+				}
+			} else {
+				++completedBlocksCount;
+			}
+			blockCompleted.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void awaitCompletion() throws InterruptedException {
+		lock.lock();
+		try {
+			while (inFlightBlocksCount > 0 || (failure == null && completedBlocksCount < blocksCount)) {
+				blockCompleted.await();
+			}
+		} finally {
+			finished = true;
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.selivonchyks.azureupload;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in microseconds with power of two buckets: bucket N counts values
+ * in range [2^(N-1), 2^N), so percentiles are reported as the upper bound of their bucket.
+ */
+public class LatencyHistogram {
+	static final int BUCKETS_COUNT = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_COUNT);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong(0);
+
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		buckets.incrementAndGet(BUCKETS_COUNT - Long.numberOfLeadingZeros(value));
+		count.increment();
+		sum.add(value);
+		long currentMax;
+		while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Records time elapsed since the start taken from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long count = getCount();
+		return count > 0 ? getSum() / count : 0;
+	}
+
+	/**
+	 * @param percentile in range (0, 100]
+	 * @return upper bound of the bucket the percentile falls into, but not more than the maximum recorded value
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS_COUNT];
+		long total = 0;
+		for(int i = 0; i < BUCKETS_COUNT; ++i) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS_COUNT; ++i) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min((1L << i) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d, mean=%d us, p50=%d us, p90=%d us, p99=%d us, max=%d us", getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+	}
+}
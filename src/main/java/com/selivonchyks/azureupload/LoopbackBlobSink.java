@@ -0,0 +1,370 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * In process upload target for throughput runs without a storage account: blobs are written into a local folder
+ * or discarded when no folder is given. Content-MD5 is computed from the received bytes like the service does.
+ * Every request can be delayed by a fixed latency and answered with server busy status at a given rate, such
+ * requests are retried with exponential backoff like the storage client retries them.
+ */
+public class LoopbackBlobSink implements BlobSink {
+	static final Logger logger = LoggerFactory.getLogger(LoopbackBlobSink.class);
+
+	public static final String NULL_SINK = "null";
+	static final String BLOCKS_FOLDER = ".blocks";
+	static final int ATTEMPTS_COUNT = 4;
+	static final long BASE_RETRY_DELAY = 100;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final long latency;
+	private final double throttleRate;
+	private final List<ResponseListener> listeners = new CopyOnWriteArrayList<ResponseListener>();
+	private final ConcurrentMap<String, ConcurrentMap<String, Long>> uncommittedBlocks = new ConcurrentHashMap<String, ConcurrentMap<String, Long>>();
+	// Content-MD5 of blobs uploaded into the discarding sink, so that they can be copied
+	private final ConcurrentMap<String, String> discardedBlobs = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param directory folder blobs are written to, null to discard uploaded content
+	 * @param latency delay in milliseconds added to every request
+	 * @param throttleRate share of requests in range [0, 1] answered with server busy status
+	 */
+	public LoopbackBlobSink(File directory, long latency, double throttleRate) {
+		this.directory = directory;
+		this.latency = Math.max(0, latency);
+		this.throttleRate = Math.max(0, Math.min(1, throttleRate));
+	}
+
+	private interface Request<T> {
+		T execute() throws IOException;
+	}
+
+	private <T> T request(String description, Request<T> request) throws IOException {
+		for(int attempt = 1; ; ++attempt) {
+			long startTime = System.currentTimeMillis();
+			delay(latency);
+			if (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+				responseReceived(HttpURLConnection.HTTP_UNAVAILABLE, startTime);
+				if (attempt >= ATTEMPTS_COUNT) {
+					throw new BlobSinkException(String.format("Server is busy, failed to %s", description), HttpURLConnection.HTTP_UNAVAILABLE);
+				}
+				for(ResponseListener listener : listeners) {
+					listener.retrying();
+				}
+				delay(BASE_RETRY_DELAY << (attempt - 1));
+				continue;
+			}
+			T result = request.execute();
+			responseReceived(HttpURLConnection.HTTP_CREATED, startTime);
+			return result;
+		}
+	}
+
+	private void responseReceived(int statusCode, long startTime) {
+		long elapsed = System.currentTimeMillis() - startTime;
+		for(ResponseListener listener : listeners) {
+			listener.responseReceived(statusCode, elapsed);
+		}
+	}
+
+	private static void delay(long millis) throws IOException {
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for response", e);
+			}
+		}
+	}
+
+	private File file(String blobName) {
+		return new File(directory, blobName);
+	}
+
+	private File blockFile(String blobName, String blockId) {
+		return new File(new File(new File(directory, BLOCKS_FOLDER), DigestUtils.md5Hex(blobName)), Hex.encodeHexString(blockId.getBytes(UTF_8)));
+	}
+
+	/**
+	 * Copies exactly length bytes of the stream.
+	 * @return Base64 encoded MD5 of the copied bytes
+	 */
+	private static String copy(InputStream is, long length, File target) throws IOException {
+		try (HashingInputStream his = new HashingInputStream(is)) {
+			long copied;
+			if (target != null) {
+				try (OutputStream os = FileUtils.openOutputStream(target)) {
+					copied = IOUtils.copyLarge(his, os, 0, length);
+				}
+			} else {
+				copied = IOUtils.copyLarge(his, NullOutputStream.NULL_OUTPUT_STREAM, 0, length);
+			}
+			if (copied != length) {
+				throw new BlobSinkException(String.format("Received [%d] bytes but expected [%d]", copied, length), HttpURLConnection.HTTP_BAD_REQUEST);
+			}
+			return Base64.encode(his.getHash());
+		}
+	}
+
+	@Override
+	public void addResponseListener(ResponseListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public URI getUri() {
+		if (directory != null) {
+			return directory.toURI();
+		}
+		return URI.create(NULL_SINK + ":/");
+	}
+
+	@Override
+	public URI getUri(String blobName) throws IOException {
+		if (directory != null) {
+			return file(blobName).toURI();
+		}
+		try {
+			return new URI(NULL_SINK, null, "/" + blobName, null);
+		} catch (URISyntaxException e) {
+			throw new BlobSinkException(String.format("Wrong blob name [%s]", blobName), HttpURLConnection.HTTP_BAD_REQUEST, e);
+		}
+	}
+
+	@Override
+	public void createIfNotExists() throws IOException {
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException(String.format("Failed to create folder [%s]", directory));
+		}
+		logger.info("Uploading to loopback sink [{}] with latency [{}] ms and throttle rate [{}]", getUri(), latency, throttleRate);
+	}
+
+	@Override
+	public String upload(String blobName, InputStream is, long length) throws IOException {
+		return upload(blobName, is, length, null, null);
+	}
+
+	/**
+	 * Content is stored as received, Content-Encoding and metadata are not kept.
+	 */
+	@Override
+	public String upload(final String blobName, final InputStream is, final long length, String contentEncoding, Map<String, String> metadata) throws IOException {
+		return request(String.format("upload blob [%s]", blobName), new Request<String>() {
+			@Override
+			public String execute() throws IOException {
+				String contentMd5 = copy(is, length, directory != null ? file(blobName) : null);
+				if (directory == null) {
+					discardedBlobs.put(blobName, contentMd5);
+				}
+				return contentMd5;
+			}
+		});
+	}
+
+	@Override
+	public void uploadBlock(final String blobName, final String blockId, final InputStream is, final long length) throws IOException {
+		request(String.format("upload block of blob [%s]", blobName), new Request<Void>() {
+			@Override
+			public Void execute() throws IOException {
+				copy(is, length, directory != null ? blockFile(blobName, blockId) : null);
+				ConcurrentMap<String, Long> blocks = uncommittedBlocks.get(blobName);
+				if (blocks == null) {
+					ConcurrentMap<String, Long> newBlocks = new ConcurrentHashMap<String, Long>();
+					blocks = uncommittedBlocks.putIfAbsent(blobName, newBlocks);
+					if (blocks == null) {
+						blocks = newBlocks;
+					}
+				}
+				blocks.put(blockId, length);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Map<String, Long> downloadUncommittedBlocks(final String blobName) throws IOException {
+		return request(String.format("list uncommitted blocks of blob [%s]", blobName), new Request<Map<String, Long>>() {
+			@Override
+			public Map<String, Long> execute() {
+				Map<String, Long> blocks = uncommittedBlocks.get(blobName);
+				return blocks != null ? new HashMap<String, Long>(blocks) : new HashMap<String, Long>();
+			}
+		});
+	}
+
+	@Override
+	public long commitBlockList(final String blobName, final List<String> blockIds, final String contentMd5) throws IOException {
+		return request(String.format("commit block list of blob [%s]", blobName), new Request<Long>() {
+			@Override
+			public Long execute() throws IOException {
+				Map<String, Long> blocks = uncommittedBlocks.get(blobName);
+				long length = 0;
+				for(String blockId : blockIds) {
+					if (blocks == null || !blocks.containsKey(blockId)) {
+						throw new BlobSinkException(String.format("Block list of blob [%s] contains block [%s] which has not been uploaded", blobName, blockId), HttpURLConnection.HTTP_BAD_REQUEST);
+					}
+					length += blocks.get(blockId);
+				}
+				if (directory != null) {
+					try (OutputStream os = FileUtils.openOutputStream(file(blobName))) {
+						for(String blockId : blockIds) {
+							FileUtils.copyFile(blockFile(blobName, blockId), os);
+						}
+					}
+					FileUtils.deleteQuietly(blockFile(blobName, blockIds.get(0)).getParentFile());
+				}
+				uncommittedBlocks.remove(blobName);
+				if (directory == null) {
+					discardedBlobs.put(blobName, contentMd5);
+				}
+				return length;
+			}
+		});
+	}
+
+	@Override
+	public OutputStream openOutputStream(final String blobName) throws IOException {
+		OutputStream os = directory != null ? FileUtils.openOutputStream(file(blobName)) : NullOutputStream.NULL_OUTPUT_STREAM;
+		return new FilterOutputStream(os) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				request(String.format("commit blob [%s]", blobName), new Request<Void>() {
+					@Override
+					public Void execute() throws IOException {
+						out.close();
+						return null;
+					}
+				});
+			}
+		};
+	}
+
+	@Override
+	public void uploadText(final String blobName, final String text) throws IOException {
+		request(String.format("upload blob [%s]", blobName), new Request<Void>() {
+			@Override
+			public Void execute() throws IOException {
+				if (directory != null) {
+					FileUtils.writeStringToFile(file(blobName), text, UTF_8);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public String copy(final String sourceBlobName, final String blobName) throws IOException {
+		return request(String.format("copy blob [%s] to [%s]", sourceBlobName, blobName), new Request<String>() {
+			@Override
+			public String execute() throws IOException {
+				if (directory == null) {
+					String contentMd5 = discardedBlobs.get(sourceBlobName);
+					if (contentMd5 == null) {
+						throw new BlobSinkException(String.format("Blob [%s] doesn't exist", sourceBlobName), HttpURLConnection.HTTP_NOT_FOUND);
+					}
+					discardedBlobs.put(blobName, contentMd5);
+					return contentMd5;
+				}
+				File source = file(sourceBlobName);
+				if (!source.isFile()) {
+					throw new BlobSinkException(String.format("Blob [%s] doesn't exist", sourceBlobName), HttpURLConnection.HTTP_NOT_FOUND);
+				}
+				FileUtils.copyFile(source, file(blobName));
+				try (InputStream is = FileUtils.openInputStream(file(blobName))) {
+					return Base64.encode(DigestUtils.md5(is));
+				}
+			}
+		});
+	}
+
+	@Override
+	public boolean deleteIfExists(String blobName) throws IOException {
+		if (directory == null) {
+			return discardedBlobs.remove(blobName) != null;
+		}
+		return file(blobName).delete();
+	}
+
+	/**
+	 * Lists files of the folder, Content-MD5 is computed from file content.
+	 */
+	@Override
+	public List<String> listBlobs(final String prefix, final boolean flat, final BlobListener listener) throws IOException {
+		if (directory == null) {
+			return Collections.emptyList();
+		}
+		return request(String.format("list blobs with prefix [%s]", prefix), new Request<List<String>>() {
+			@Override
+			public List<String> execute() throws IOException {
+				String folderPrefix = StringUtils.defaultString(prefix);
+				String namePrefix = folderPrefix.substring(folderPrefix.lastIndexOf('/') + 1);
+				folderPrefix = folderPrefix.substring(0, folderPrefix.length() - namePrefix.length());
+				List<String> prefixes = new ArrayList<String>();
+				list(file(folderPrefix), folderPrefix, namePrefix, flat, listener, prefixes);
+				return prefixes;
+			}
+		});
+	}
+
+	private void list(File folder, String folderPrefix, String namePrefix, boolean flat, BlobListener listener, List<String> prefixes) throws IOException {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+		for(File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(namePrefix) || (folderPrefix.isEmpty() && BLOCKS_FOLDER.equals(name))) {
+				continue;
+			}
+			if (file.isDirectory()) {
+				if (flat) {
+					list(file, folderPrefix + name + "/", "", true, listener, prefixes);
+				} else {
+					prefixes.add(folderPrefix + name + "/");
+				}
+			} else {
+				String contentMd5;
+				try (InputStream is = FileUtils.openInputStream(file)) {
+					contentMd5 = Base64.encode(DigestUtils.md5(is));
+				}
+				listener.blobFound(folderPrefix + name, file.length(), file.lastModified(), contentMd5);
+			}
+		}
+	}
+}
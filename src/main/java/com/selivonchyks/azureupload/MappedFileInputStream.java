@@ -0,0 +1,129 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads file through memory mapped windows of fixed size, so file content is served from the page cache
+ * without copying it into intermediate buffers. Mark and reset are supported by remapping the window.
+ * Reading mapped pages of a file truncated meanwhile raises {@link InternalError}, it is rethrown as {@link IOException}.
+ */
+public class MappedFileInputStream extends InputStream {
+	private final File file;
+	private final FileChannel channel;
+	private final long length;
+	private final int windowSize;
+	private MappedByteBuffer window;
+	private long windowPosition;
+	private long position = 0;
+	private long markedPosition = 0;
+
+	public MappedFileInputStream(File file, long length, int windowSize) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.length = length;
+		this.windowSize = windowSize;
+	}
+
+	public static MappedByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+
+	/**
+	 * @return exception to throw instead of the error raised by access to mapped pages which are beyond the end of the file
+	 */
+	public static IOException truncated(File file, InternalError e) {
+		return new IOException(String.format("File [%s] has been truncated during upload", file), e);
+	}
+
+	private boolean ensureWindow() throws IOException {
+		if (window != null && window.hasRemaining()) {
+			return true;
+		}
+		if (position >= length) {
+			return false;
+		}
+		windowPosition = position;
+		window = map(channel, position, Math.min(windowSize, length - position));
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureWindow()) {
+			return -1;
+		}
+		int b;
+		try {
+			b = window.get() & 0xFF;
+		} catch (InternalError e) {
+			throw truncated(file, e);
+		}
+		++position;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!ensureWindow()) {
+			return -1;
+		}
+		int read = Math.min(len, window.remaining());
+		try {
+			window.get(b, off, read);
+		} catch (InternalError e) {
+			throw truncated(file, e);
+		}
+		position += read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = Math.max(0, Math.min(n, length - position));
+		seek(position + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, length - position);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		markedPosition = position;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		seek(markedPosition);
+	}
+
+	private void seek(long newPosition) {
+		if (window != null && newPosition >= windowPosition && newPosition <= windowPosition + window.limit()) {
+			window.position((int) (newPosition - windowPosition));
+		} else {
+			window = null;
+		}
+		position = newPosition;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+}
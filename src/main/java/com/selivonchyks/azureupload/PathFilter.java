@@ -0,0 +1,70 @@
+package com.selivonchyks.azureupload;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of normalized paths filled by a quick pass over the upload log before its items are parsed, so
+ * a lookup of a path which is not in the log doesn't wait for the whole log to be loaded. Paths are never reported
+ * missing if they have been added, paths which have not been added might be reported present. Paths are added
+ * concurrently by the reading threads.
+ */
+public class PathFilter {
+	static final int HASHES_COUNT = 6;
+	static final long MIN_BITS_COUNT = 1L << 16;
+	static final long MAX_BITS_COUNT = 1L << 33;
+
+	private final AtomicLongArray bits;
+	private final long mask;
+
+	/**
+	 * @param expectedBitsCount bits to use, rounded up to the power of two within [2^16, 2^33]
+	 */
+	public PathFilter(long expectedBitsCount) {
+		long bitsCount = MIN_BITS_COUNT;
+		while (bitsCount < expectedBitsCount && bitsCount < MAX_BITS_COUNT) {
+			bitsCount <<= 1;
+		}
+		this.bits = new AtomicLongArray((int) (bitsCount >>> 6));
+		this.mask = bitsCount - 1;
+	}
+
+	/**
+	 * @return filter of about 25 bits per item of a csv upload log of the size, at least 50 bytes per line
+	 */
+	public static PathFilter forUploadLog(long fileSize) {
+		return new PathFilter(fileSize / 4);
+	}
+
+	public void add(String normalizedPath) {
+		long hash = CompactedUploadLog.hash(normalizedPath);
+		long step = step(hash);
+		for(int i = 0; i < HASHES_COUNT; ++i) {
+			long bit = (hash + i * step) & mask;
+			int index = (int) (bit >>> 6);
+			long value = 1L << (bit & 63);
+			long word;
+			while (((word = bits.get(index)) & value) == 0 && !bits.compareAndSet(index, word, word | value)) {
+				// another bit of the word has been set concurrently, retry
+			}
+		}
+	}
+
+	/**
+	 * @return false if the path has definitely not been added
+	 */
+	public boolean mightContain(String normalizedPath) {
+		long hash = CompactedUploadLog.hash(normalizedPath);
+		long step = step(hash);
+		for(int i = 0; i < HASHES_COUNT; ++i) {
+			long bit = (hash + i * step) & mask;
+			if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long step(long hash) {
+		return Long.rotateLeft(hash * 0x9e3779b97f4a7c15L, 31) | 1;
+	}
+}
@@ -0,0 +1,188 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * Blobs of the target container under the target folder indexed by blob name with size and Content-MD5, so files
+ * which already exist in the container are skipped without the upload log and without a request per file.
+ * Container is listed in parallel by virtual folders: the first levels of folders are listed one by one, deeper
+ * folders are listed flat. Listing is kept in memory mapped cache file until it gets older than its time to live.
+ * Blob names are case sensitive, so unlike local paths of the upload log they are matched exactly.
+ */
+public class RemoteManifest {
+	static final Logger logger = LoggerFactory.getLogger(RemoteManifest.class);
+
+	public static final long DEFAULT_TTL = 60 * 60 * 1000;
+	static final int PARTITION_DEPTH = 2;
+	static final String CACHE_FILE_PREFIX = "manifest-";
+	static final String CACHE_FILE_EXTENSION = ".bin";
+
+	private final BlobSink sink;
+	private final String prefix;
+	private final int threadsCount;
+	private final UploadLogIndex index = new UploadLogIndex(true);
+	private final Queue<UploadedFileLogItem> listedItems = new ConcurrentLinkedQueue<UploadedFileLogItem>();
+	private final AtomicLong listedBlobsCount = new AtomicLong(0);
+	private File cacheFile;
+	private long ttl = DEFAULT_TTL;
+
+	/**
+	 * @param prefix prefix of listed blob names, blank to list the whole container
+	 * @param threadsCount count of parallel listing requests
+	 */
+	public RemoteManifest(BlobSink sink, String prefix, int threadsCount) {
+		this.sink = sink;
+		this.prefix = StringUtils.defaultString(prefix);
+		this.threadsCount = Math.max(1, threadsCount);
+	}
+
+	/**
+	 * @param cacheFolder folder listings are cached in, file name is derived from the container and the prefix
+	 * @param ttl time in milliseconds cached listing is used for
+	 */
+	public void setCache(File cacheFolder, long ttl) {
+		this.cacheFile = new File(cacheFolder, CACHE_FILE_PREFIX + DigestUtils.md5Hex(sink.getUri() + "/" + prefix) + CACHE_FILE_EXTENSION);
+		this.ttl = ttl;
+	}
+
+	public File getCacheFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * Blobs are indexed by blob name, last modification of the entries is the one of the blob.
+	 */
+	public UploadLogIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Maps cached listing if it's not expired, otherwise starts listing in background,
+	 * lookups of {@link #getIndex()} wait for the listing to finish on a miss.
+	 */
+	public void load() {
+		if (cacheFile != null && cacheFile.isFile() && System.currentTimeMillis() - cacheFile.lastModified() < ttl) {
+			try {
+				if (CompactedUploadLog.isCompacted(cacheFile)) {
+					CompactedUploadLog compactedLog = CompactedUploadLog.open(cacheFile);
+					// listings cached before blob names were matched exactly are listed again
+					if (compactedLog.isCaseSensitive()) {
+						index.setCompactedLog(compactedLog);
+						logger.info("Using [{}] blobs of container [{}] cached in [{}]", compactedLog.size(), sink.getUri(), cacheFile);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				logger.warn(String.format("Failed to read cached manifest [%s], listing container", cacheFile), e);
+			}
+		}
+		index.beginLoading();
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long startTime = System.currentTimeMillis();
+				try {
+					list();
+					logger.info("Listed [{}] blobs of container [{}] with prefix [{}] in [{}] ms", listedBlobsCount.get(), sink.getUri(), prefix, System.currentTimeMillis() - startTime);
+					if (cacheFile != null) {
+						writeCache();
+					}
+				} catch (Exception e) {
+					logger.warn(String.format("Failed to list blobs of container [%s]", sink.getUri()), e);
+				} finally {
+					index.endLoading();
+				}
+			}
+		}, "manifest-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	void list() throws IOException, InterruptedException {
+		List<String> prefixes = Collections.singletonList(prefix);
+		ExecutorService exec = Executors.newFixedThreadPool(threadsCount);
+		try {
+			for(int depth = 0; !prefixes.isEmpty(); ++depth) {
+				final boolean flat = depth >= PARTITION_DEPTH;
+				Collection<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+				for(final String folderPrefix : prefixes) {
+					tasks.add(new Callable<List<String>>() {
+						@Override
+						public List<String> call() throws Exception {
+							return sink.listBlobs(folderPrefix, flat, new BlobSink.BlobListener() {
+								@Override
+								public void blobFound(String blobName, long length, long lastModification, String contentMd5) {
+									add(blobName, length, lastModification, contentMd5);
+								}
+							});
+						}
+					});
+				}
+				List<String> nextPrefixes = new ArrayList<String>();
+				for(Future<List<String>> result : exec.invokeAll(tasks)) {
+					nextPrefixes.addAll(result.get());
+				}
+				prefixes = nextPrefixes;
+			}
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	private void add(String blobName, long length, long lastModification, String contentMd5) {
+		long now = System.currentTimeMillis();
+		byte[] hash = StringUtils.isNotBlank(contentMd5) ? Base64.decode(contentMd5) : null;
+		index.add(blobName, length, lastModification, now, hash);
+		listedBlobsCount.incrementAndGet();
+		if (cacheFile == null) {
+			return;
+		}
+		UploadedFileLogItem item = new UploadedFileLogItem();
+		item.setPath(blobName);
+		item.setSize(length);
+		item.setLast_modification(lastModification);
+		item.setUploaded(now);
+		item.setHash(hash != null ? Hex.encodeHexString(hash) : null);
+		listedItems.add(item);
+	}
+
+	private void writeCache() {
+		SortedMap<String, UploadedFileLogItem> items = new TreeMap<String, UploadedFileLogItem>();
+		for(UploadedFileLogItem item : listedItems) {
+			items.put(UploadLogIndex.normalizePath(item.getPath(), true), item);
+		}
+		listedItems.clear();
+		try {
+			FileUtils.forceMkdir(cacheFile.getAbsoluteFile().getParentFile());
+			CompactedUploadLog.write(cacheFile, items, true);
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to cache manifest in [%s]", cacheFile), e);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+
+/**
+ * File found by {@link FolderScanner} together with its attributes read during the scan.
+ */
+public class ScannedFile {
+	private final File file;
+	private final long size;
+	private final long lastModificationDate;
+
+	public ScannedFile(File file, long size, long lastModificationDate) {
+		this.file = file;
+		this.size = size;
+		this.lastModificationDate = lastModificationDate;
+	}
+
+	public File getFile() {
+		return file;
+	}
+	public long getSize() {
+		return size;
+	}
+	public long getLastModificationDate() {
+		return lastModificationDate;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
@@ -0,0 +1,284 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of found files handing them to the upload threads in the order of the schedule instead of the order
+ * they have been found in, so that huge files don't get picked up last and leave a single thread uploading while
+ * the others are idle. Files of priority folders are handed out first, in the order folders are given. Ordering
+ * applies to files waiting in the queue, so the queue size limits how far ahead the schedule looks.
+ */
+public class ScheduledFileQueue extends AbstractQueue<ScannedFile> implements BlockingQueue<ScannedFile> {
+	public enum Schedule {
+		/** files are uploaded in the order they have been found */
+		FIFO,
+		/** the largest queued file is uploaded first */
+		LARGEST,
+		/** the largest and the smallest queued files are uploaded in turn, so small files fill connections while large ones stream */
+		MIXED
+	}
+
+	private static class Entry {
+		final ScannedFile file;
+		final long size;
+		final int priority;
+		final long sequence;
+
+		Entry(ScannedFile file, long size, int priority, long sequence) {
+			this.file = file;
+			this.size = size;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+	}
+
+	private final Schedule schedule;
+	private final int capacity;
+	private final List<Path> priorityFolders = new ArrayList<Path>();
+	private final NavigableSet<Entry> entries;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private long sequence = 0;
+	private boolean isLargestNext = true;
+
+	/**
+	 * @param priorityFolders folders which files are uploaded before the others, the first folder has the highest priority
+	 */
+	public ScheduledFileQueue(Schedule schedule, int capacity, Collection<File> priorityFolders) {
+		this.schedule = schedule;
+		this.capacity = Math.max(1, capacity);
+		if (priorityFolders != null) {
+			for(File folder : priorityFolders) {
+				this.priorityFolders.add(folder.getAbsoluteFile().toPath().normalize());
+			}
+		}
+		this.entries = new TreeSet<Entry>(new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				if (e1.priority != e2.priority) {
+					return e1.priority < e2.priority ? -1 : 1;
+				}
+				if (ScheduledFileQueue.this.schedule != Schedule.FIFO && e1.size != e2.size) {
+					return e1.size > e2.size ? -1 : 1;
+				}
+				return Long.compare(e1.sequence, e2.sequence);
+			}
+		});
+	}
+
+	public Schedule getSchedule() {
+		return schedule;
+	}
+
+	private int priority(ScannedFile file) {
+		if (priorityFolders.isEmpty()) {
+			return 0;
+		}
+		Path path = file.getFile().getAbsoluteFile().toPath().normalize();
+		for(int i = 0; i < priorityFolders.size(); ++i) {
+			if (path.startsWith(priorityFolders.get(i))) {
+				return i;
+			}
+		}
+		return priorityFolders.size();
+	}
+
+	private void enqueue(ScannedFile file, int priority) {
+		entries.add(new Entry(file, file.getSize(), priority, sequence++));
+		notEmpty.signal();
+	}
+
+	private ScannedFile dequeue() {
+		Entry entry;
+		if (schedule == Schedule.MIXED && !isLargestNext) {
+			// the smallest file of the highest priority queued, the one right before the head of the next priority
+			entry = entries.lower(new Entry(null, Long.MAX_VALUE, entries.first().priority + 1, Long.MIN_VALUE));
+		} else {
+			entry = entries.first();
+		}
+		if (schedule == Schedule.MIXED) {
+			isLargestNext = !isLargestNext;
+		}
+		entries.remove(entry);
+		notFull.signal();
+		return entry.file;
+	}
+
+	@Override
+	public boolean offer(ScannedFile file) {
+		if (file == null) {
+			throw new NullPointerException();
+		}
+		int priority = priority(file);
+		lock.lock();
+		try {
+			if (entries.size() >= capacity) {
+				return false;
+			}
+			enqueue(file, priority);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(ScannedFile file) throws InterruptedException {
+		if (file == null) {
+			throw new NullPointerException();
+		}
+		int priority = priority(file);
+		lock.lockInterruptibly();
+		try {
+			while (entries.size() >= capacity) {
+				notFull.await();
+			}
+			enqueue(file, priority);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(ScannedFile file, long timeout, TimeUnit unit) throws InterruptedException {
+		if (file == null) {
+			throw new NullPointerException();
+		}
+		int priority = priority(file);
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (entries.size() >= capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			enqueue(file, priority);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ScannedFile poll() {
+		lock.lock();
+		try {
+			return entries.isEmpty() ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ScannedFile take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (entries.isEmpty()) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ScannedFile poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (entries.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ScannedFile peek() {
+		lock.lock();
+		try {
+			return entries.isEmpty() ? null : entries.first().file;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super ScannedFile> collection) {
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super ScannedFile> collection, int maxElements) {
+		lock.lock();
+		try {
+			int count = 0;
+			while (count < maxElements && !entries.isEmpty()) {
+				collection.add(dequeue());
+				++count;
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return iterator over a snapshot of queued files
+	 */
+	@Override
+	public Iterator<ScannedFile> iterator() {
+		List<ScannedFile> files = new ArrayList<ScannedFile>();
+		lock.lock();
+		try {
+			for(Entry entry : entries) {
+				files.add(entry.file);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return files.iterator();
+	}
+}
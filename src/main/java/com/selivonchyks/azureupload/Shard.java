@@ -0,0 +1,149 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Part of the source folder uploaded by one of several uploader nodes, so that nodes split the folder without any
+ * coordination. File belongs to the shard selected by a stable hash of its path relative to the source folder.
+ * Balanced shards are computed from the sizes recorded in an upload log of a previous run: logged files are spread
+ * over shards largest first, each to the shard having the least bytes so far, the rest of files are assigned by hash.
+ * Every node has to be given the same log and the source folder mounted at the same path.
+ */
+public class Shard {
+	static final Logger logger = LoggerFactory.getLogger(Shard.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int index;
+	private final int count;
+	// shard of every logged file by normalized path
+	private Map<String, Integer> balancedShards;
+
+	/**
+	 * @param index shard number in range [1, count]
+	 */
+	public Shard(int index, int count) {
+		if (count < 1 || index < 1 || index > count) {
+			throw new IllegalArgumentException(String.format("Shard %d/%d should be in range [1/%d, %d/%d]", index, count, count, count, count));
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * @param value shard as <code>i/N</code>, e.g. 2/4 is the second of four shards
+	 */
+	public static Shard parse(String value) {
+		String[] values = value.trim().split("/");
+		if (values.length != 2) {
+			throw new IllegalArgumentException(String.format("Shard %s should be given as i/N", value));
+		}
+		try {
+			return new Shard(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Shard %s should be given as i/N", value), e);
+		}
+	}
+
+	public int getIndex() {
+		return index;
+	}
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param relativePath path of the file relative to the source folder, the one blob name is made of
+	 * @return true if the file is uploaded by this shard
+	 */
+	public boolean contains(File file, String relativePath) {
+		if (balancedShards != null) {
+			Integer shard = balancedShards.get(UploadLogIndex.normalizePath(file.getAbsolutePath()));
+			if (shard != null) {
+				return shard == index;
+			}
+		}
+		return hashShard(relativePath, count) == index;
+	}
+
+	/**
+	 * @return shard in range [1, count] of the relative path
+	 */
+	static int hashShard(String relativePath, int count) {
+		byte[] md5 = DigestUtils.md5(relativePath.getBytes(UTF8));
+		long hash = 0;
+		for(int i = 0; i < 8; ++i) {
+			hash = (hash << 8) | (md5[i] & 0xff);
+		}
+		return (int) ((hash & Long.MAX_VALUE) % count) + 1;
+	}
+
+	/**
+	 * Assigns files of the upload log in csv or compacted format to shards balancing their total sizes.
+	 */
+	public void balance(File uploadLogFile) throws IOException, InterruptedException {
+		long startTime = System.currentTimeMillis();
+		UploadLogCompactor compactor = new UploadLogCompactor();
+		compactor.read(uploadLogFile);
+		// ordered by path, so ties are broken the same way on every node
+		List<UploadedFileLogItem> items = new ArrayList<UploadedFileLogItem>(compactor.getItems().values());
+		Collections.sort(items, new Comparator<UploadedFileLogItem>() {
+			@Override
+			public int compare(UploadedFileLogItem item1, UploadedFileLogItem item2) {
+				return Long.compare(item2.getSize(), item1.getSize());
+			}
+		});
+		final long[] shardSizes = new long[count];
+		PriorityQueue<Integer> shards = new PriorityQueue<Integer>(count, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer shard1, Integer shard2) {
+				int result = Long.compare(shardSizes[shard1], shardSizes[shard2]);
+				return result != 0 ? result : shard1.compareTo(shard2);
+			}
+		});
+		for(int i = 0; i < count; ++i) {
+			shards.add(i);
+		}
+		Map<String, Integer> balancedShards = new HashMap<String, Integer>(items.size() * 4 / 3 + 1);
+		for(UploadedFileLogItem item : items) {
+			int shard = shards.poll();
+			shardSizes[shard] += item.getSize();
+			shards.add(shard);
+			balancedShards.put(UploadLogIndex.normalizePath(item.getPath()), shard + 1);
+		}
+		this.balancedShards = balancedShards;
+		logger.info("Balanced [{}] files of upload log [{}] over [{}] shards, shard {} gets [{}] bytes, it took [{}] ms", items.size(), uploadLogFile, count, this, shardSizes[index - 1], System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * @return path of the upload log of the shard, e.g. <code>upload-2-of-4.csv</code> for <code>upload.csv</code>
+	 */
+	public String getLogPath(String path) {
+		return getLogPath(path, index, count);
+	}
+
+	static String getLogPath(String path, int index, int count) {
+		String extension = FilenameUtils.getExtension(path);
+		String shardSuffix = String.format("-%d-of-%d", index, count);
+		return extension.isEmpty() ? path + shardSuffix : FilenameUtils.removeExtension(path) + shardSuffix + "." + extension;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d/%d", index, count);
+	}
+}
@@ -0,0 +1,50 @@
+package com.selivonchyks.azureupload;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated by many threads without contending on the same cache line: every thread adds to its own
+ * padded stripe selected by thread id, reads sum all stripes up. The sum is not a snapshot when the counter
+ * is being updated concurrently, which is fine for statistics.
+ */
+public class StripedCounter {
+	// longs per stripe, keeps stripes on separate 64 byte cache lines
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray stripes;
+	private final int mask;
+
+	public StripedCounter() {
+		int stripesCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+		this.stripes = new AtomicLongArray(stripesCount * PADDING);
+		this.mask = stripesCount - 1;
+	}
+
+	private int stripe() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32));
+		hash ^= (hash >>> 16);
+		return (hash & mask) * PADDING;
+	}
+
+	public void add(long value) {
+		stripes.addAndGet(stripe(), value);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for(int i = 0; i < stripes.length(); i += PADDING) {
+			sum += stripes.get(i);
+		}
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(sum());
+	}
+}
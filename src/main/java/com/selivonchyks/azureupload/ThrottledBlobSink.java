@@ -0,0 +1,91 @@
+package com.selivonchyks.azureupload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends content of the wrapped sink within the shared bandwidth budget, other requests are passed as is.
+ */
+public class ThrottledBlobSink implements BlobSink {
+	private final BlobSink sink;
+	private final BandwidthLimiter limiter;
+
+	public ThrottledBlobSink(BlobSink sink, BandwidthLimiter limiter) {
+		this.sink = sink;
+		this.limiter = limiter;
+	}
+
+	@Override
+	public void addResponseListener(ResponseListener listener) {
+		sink.addResponseListener(listener);
+	}
+
+	@Override
+	public URI getUri() {
+		return sink.getUri();
+	}
+
+	@Override
+	public URI getUri(String blobName) throws IOException {
+		return sink.getUri(blobName);
+	}
+
+	@Override
+	public void createIfNotExists() throws IOException {
+		sink.createIfNotExists();
+	}
+
+	@Override
+	public String upload(String blobName, InputStream is, long length) throws IOException {
+		return sink.upload(blobName, limiter.limit(is), length);
+	}
+
+	@Override
+	public String upload(String blobName, InputStream is, long length, String contentEncoding, Map<String, String> metadata) throws IOException {
+		return sink.upload(blobName, limiter.limit(is), length, contentEncoding, metadata);
+	}
+
+	@Override
+	public void uploadBlock(String blobName, String blockId, InputStream is, long length) throws IOException {
+		sink.uploadBlock(blobName, blockId, limiter.limit(is), length);
+	}
+
+	@Override
+	public Map<String, Long> downloadUncommittedBlocks(String blobName) throws IOException {
+		return sink.downloadUncommittedBlocks(blobName);
+	}
+
+	@Override
+	public long commitBlockList(String blobName, List<String> blockIds, String contentMd5) throws IOException {
+		return sink.commitBlockList(blobName, blockIds, contentMd5);
+	}
+
+	@Override
+	public OutputStream openOutputStream(String blobName) throws IOException {
+		return limiter.limit(sink.openOutputStream(blobName));
+	}
+
+	@Override
+	public void uploadText(String blobName, String text) throws IOException {
+		sink.uploadText(blobName, text);
+	}
+
+	@Override
+	public String copy(String sourceBlobName, String blobName) throws IOException {
+		return sink.copy(sourceBlobName, blobName);
+	}
+
+	@Override
+	public boolean deleteIfExists(String blobName) throws IOException {
+		return sink.deleteIfExists(blobName);
+	}
+
+	@Override
+	public List<String> listBlobs(String prefix, boolean flat, BlobListener listener) throws IOException {
+		return sink.listBlobs(prefix, flat, listener);
+	}
+}
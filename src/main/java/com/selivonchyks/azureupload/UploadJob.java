@@ -0,0 +1,140 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+/**
+ * Source folder uploaded into a container together with the scanner, queue, sink and metrics of the upload.
+ * Jobs of the process share upload threads, upload log and bandwidth budget.
+ */
+public class UploadJob {
+	public static final double DEFAULT_WEIGHT = 1;
+
+	private final String name;
+	private final File sourceFolder;
+	private final URI sourceFolderUri;
+	private final String targetContainer;
+	private final String targetFolder;
+	private final double weight;
+	private BlockingQueue<ScannedFile> queue;
+	private FolderScanner scanner;
+	private BlobSink sink;
+	private UploadMetrics metrics;
+	private UploadLogIndex remoteManifestIndex;
+	private ArchivePackerPool archivePackers;
+
+	/**
+	 * @param targetFolder folder in the container files are uploaded into, blank for the container root
+	 * @param weight share of upload threads the job gets relative to the other jobs
+	 */
+	public UploadJob(String name, File sourceFolder, String targetContainer, String targetFolder, double weight) {
+		this.name = name;
+		this.sourceFolder = sourceFolder;
+		this.sourceFolderUri = sourceFolder.toURI();
+		this.targetContainer = targetContainer;
+		this.targetFolder = targetFolder;
+		this.weight = weight > 0 ? weight : DEFAULT_WEIGHT;
+	}
+
+	/**
+	 * Reads jobs from the file, one job per line: <code>source,container[,target folder[,weight]]</code>.
+	 * Empty lines and lines starting with # are ignored.
+	 */
+	public static List<UploadJob> readJobFile(File jobFile) throws IOException {
+		List<UploadJob> jobs = new ArrayList<UploadJob>();
+		int lineNumber = 0;
+		for(String line : FileUtils.readLines(jobFile, Charset.forName("UTF-8"))) {
+			++lineNumber;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] values = StringUtils.splitPreserveAllTokens(line, ',');
+			if (values.length < 2 || values.length > 4 || StringUtils.isBlank(values[0]) || StringUtils.isBlank(values[1])) {
+				throw new IOException(String.format("Wrong job [%s] at line %d of job file [%s], expected source,container[,target folder[,weight]]", line, lineNumber, jobFile));
+			}
+			String targetFolder = values.length > 2 ? StringUtils.trimToNull(values[2]) : null;
+			double weight = values.length > 3 ? NumberUtils.toDouble(values[3].trim(), DEFAULT_WEIGHT) : DEFAULT_WEIGHT;
+			jobs.add(new UploadJob(String.format("job-%d", jobs.size() + 1), new File(values[0].trim()), values[1].trim(), targetFolder, weight));
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return blob name of the file of the source folder
+	 */
+	public String getBlobName(File file) {
+		String blobName = sourceFolderUri.relativize(file.toURI()).getPath();
+		if (StringUtils.isNotBlank(targetFolder)) {
+			blobName = FilenameUtils.normalize(String.format("%s/%s", targetFolder, blobName), true);
+		}
+		return blobName;
+	}
+
+	public String getName() {
+		return name;
+	}
+	public File getSourceFolder() {
+		return sourceFolder;
+	}
+	public String getTargetContainer() {
+		return targetContainer;
+	}
+	public String getTargetFolder() {
+		return targetFolder;
+	}
+	public double getWeight() {
+		return weight;
+	}
+	public BlockingQueue<ScannedFile> getQueue() {
+		return queue;
+	}
+	public void setQueue(BlockingQueue<ScannedFile> queue) {
+		this.queue = queue;
+	}
+	public FolderScanner getScanner() {
+		return scanner;
+	}
+	public void setScanner(FolderScanner scanner) {
+		this.scanner = scanner;
+	}
+	public BlobSink getSink() {
+		return sink;
+	}
+	public void setSink(BlobSink sink) {
+		this.sink = sink;
+	}
+	public UploadMetrics getMetrics() {
+		return metrics;
+	}
+	public void setMetrics(UploadMetrics metrics) {
+		this.metrics = metrics;
+	}
+	public UploadLogIndex getRemoteManifestIndex() {
+		return remoteManifestIndex;
+	}
+	public void setRemoteManifestIndex(UploadLogIndex remoteManifestIndex) {
+		this.remoteManifestIndex = remoteManifestIndex;
+	}
+	public ArchivePackerPool getArchivePackers() {
+		return archivePackers;
+	}
+	public void setArchivePackers(ArchivePackerPool archivePackers) {
+		this.archivePackers = archivePackers;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s [%s] to [%s]", name, sourceFolder, StringUtils.isNotBlank(targetFolder) ? targetContainer + "/" + targetFolder : targetContainer);
+	}
+}
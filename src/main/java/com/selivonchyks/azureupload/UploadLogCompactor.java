@@ -0,0 +1,191 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+
+/**
+ * Reduces upload logs to the latest item per path, by upload date, and writes them as {@link CompactedUploadLog}
+ * and or as csv upload log. Input logs might be in either format, so a compacted log can be merged with the csv
+ * log appended since it has been compacted.
+ */
+public class UploadLogCompactor {
+	static final Logger logger = LoggerFactory.getLogger(UploadLogCompactor.class);
+
+	static final String INPUT_ARG_NAME = "input";
+	static final String OUTPUT_ARG_NAME = "output";
+	static final String CSV_OUTPUT_ARG_NAME = "csvOutput";
+	static final String SHARDS_ARG_NAME = "shards";
+
+	private final ConcurrentMap<String, UploadedFileLogItem> items = new ConcurrentHashMap<String, UploadedFileLogItem>(1 << 16, 0.75f, 64);
+	private final UploadLogReader reader;
+
+	public UploadLogCompactor() {
+		CsvMapper mapper = new CsvMapper();
+		CsvSchema schema = mapper.schemaFor(UploadedFileLogItem.class).withoutHeader();
+		reader = new UploadLogReader(mapper.reader(UploadedFileLogItem.class).with(schema));
+	}
+
+	/**
+	 * Keeps the item if it has been uploaded later than the kept item of the same path.
+	 */
+	void add(UploadedFileLogItem item) {
+		String key = UploadLogIndex.normalizePath(item.getPath());
+		if (key == null) {
+			return;
+		}
+		while (true) {
+			UploadedFileLogItem current = items.get(key);
+			if (current == null) {
+				if (items.putIfAbsent(key, item) == null) {
+					return;
+				}
+			} else if (current.getUploaded() >= item.getUploaded() || items.replace(key, current, item)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds all items of the upload log in csv or compacted format.
+	 */
+	public void read(File uploadLogFile) throws IOException, InterruptedException {
+		long startTime = System.currentTimeMillis();
+		if (CompactedUploadLog.isCompacted(uploadLogFile)) {
+			CompactedUploadLog compactedLog = CompactedUploadLog.open(uploadLogFile);
+			for(int i = 0; i < compactedLog.size(); ++i) {
+				add(compactedLog.getItem(i));
+			}
+			logger.info("Read [{}] compacted upload log items from [{}] in [{}] ms", compactedLog.size(), uploadLogFile, System.currentTimeMillis() - startTime);
+		} else {
+			// reader counts items of all files it has read
+			long readItemsCount = reader.getParsedLinesCount();
+			long itemsCount = reader.read(uploadLogFile, new UploadLogReader.ItemHandler() {
+				@Override
+				public void handle(UploadedFileLogItem item) {
+					add(item);
+				}
+			});
+			logger.info("Read [{}] upload log items from [{}] in [{}] ms", itemsCount - readItemsCount, uploadLogFile, System.currentTimeMillis() - startTime);
+		}
+	}
+
+	public SortedMap<String, UploadedFileLogItem> getItems() {
+		return new TreeMap<String, UploadedFileLogItem>(items);
+	}
+
+	/**
+	 * Writes items as csv upload log next to the file and moves it over the file once complete.
+	 */
+	static void writeCsv(File file, SortedMap<String, UploadedFileLogItem> items) throws IOException {
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		FileUtils.deleteQuietly(tmpFile);
+		try (UploadLogWriter writer = new UploadLogWriter(tmpFile, UploadLogWriter.DEFAULT_FLUSH_RECORDS_COUNT, UploadLogWriter.DEFAULT_FLUSH_INTERVAL, false)) {
+			for(UploadedFileLogItem item : items.values()) {
+				writer.log(item.getPath(), item.getSize(), UploadLogIndex.decodeHash(item.getHash()), item.getUploaded(),
+						item.getLast_modification(), item.getArchive(), item.getArchive_offset(), item.getBlob());
+			}
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@SuppressWarnings("static-access")
+	private static Options buildCommandLineOptions() {
+		Options options = new Options();
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(INPUT_ARG_NAME)
+					.hasArgs()
+					.withDescription("upload log files in csv or compacted format, the latest uploaded item is kept for every path")
+					.isRequired(true)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(OUTPUT_ARG_NAME)
+					.hasArg(true)
+					.withDescription("compacted upload log file to write, it might be one of the input files")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(CSV_OUTPUT_ARG_NAME)
+					.hasArg(true)
+					.withDescription("csv upload log file to write the latest items into, it might be one of the input files")
+					.isRequired(false)
+					.create()
+		);
+		options.addOption(
+				OptionBuilder
+					.withLongOpt(SHARDS_ARG_NAME)
+					.hasArg(true)
+					.withDescription("shards count of a sharded run, input files are then upload log paths given to the shards and upload logs of all shards are read instead")
+					.withType(Integer.class)
+					.isRequired(false)
+					.create()
+		);
+		return options;
+	}
+
+	public static void main(String[] args) {
+		Options options = buildCommandLineOptions();
+		try {
+			CommandLine commandLine = new BasicParser().parse(options, args);
+			String output = commandLine.getOptionValue(OUTPUT_ARG_NAME);
+			String csvOutput = commandLine.getOptionValue(CSV_OUTPUT_ARG_NAME);
+			if (output == null && csvOutput == null) {
+				throw new ParseException(String.format("Either %s or %s option has to be specified", OUTPUT_ARG_NAME, CSV_OUTPUT_ARG_NAME));
+			}
+
+			int shardsCount = NumberUtils.toInt(commandLine.getOptionValue(SHARDS_ARG_NAME));
+			UploadLogCompactor compactor = new UploadLogCompactor();
+			for(String input : commandLine.getOptionValues(INPUT_ARG_NAME)) {
+				if (shardsCount < 1) {
+					compactor.read(new File(input));
+					continue;
+				}
+				for(int i = 1; i <= shardsCount; ++i) {
+					File shardLogFile = new File(Shard.getLogPath(input, i, shardsCount));
+					if (shardLogFile.exists()) {
+						compactor.read(shardLogFile);
+					} else {
+						logger.warn("Upload log [{}] of shard {}/{} doesn't exist", shardLogFile, i, shardsCount);
+					}
+				}
+			}
+			SortedMap<String, UploadedFileLogItem> items = compactor.getItems();
+			if (output != null) {
+				CompactedUploadLog.write(new File(output), items);
+			}
+			if (csvOutput != null) {
+				writeCsv(new File(csvOutput), items);
+			}
+		} catch (ParseException exp) {
+			logger.warn(exp.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("azureupload-compact", options);
+		} catch (Exception e) {
+			logger.warn("Failed to compact upload log", e);
+		}
+	}
+}
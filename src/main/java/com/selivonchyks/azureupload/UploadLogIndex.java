@@ -0,0 +1,257 @@
+package com.selivonchyks.azureupload;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * In-memory index of upload log items keyed by normalized file path.
+ * Readers never lock: every path maps to an immutable chain of entries which is replaced atomically on insert.
+ * While the index is being loaded a lookup miss waits for the loading to finish, hits are returned immediately.
+ * Once a {@link PathFilter} of the paths being loaded is set, misses of paths which are not in it don't wait.
+ * Paths missing in memory are looked up in the compacted upload log if there is one.
+ * Local paths are matched ignoring case, blob names of a container listing are matched exactly.
+ */
+public class UploadLogIndex {
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>(1 << 16, 0.75f, 64);
+	private final AtomicInteger itemsCount = new AtomicInteger(0);
+	private final CountDownLatch loadedLatch = new CountDownLatch(1);
+	private final CountDownLatch pathFilterLatch = new CountDownLatch(1);
+	private volatile PathFilter pathFilter;
+	private volatile boolean loaded = true;
+	private volatile CompactedUploadLog compactedLog;
+	private final boolean caseSensitive;
+
+	public static class Entry {
+		private final long size;
+		private final long lastModification;
+		private final long uploaded;
+		private final byte[] hash;
+		private final Entry next;
+
+		Entry(long size, long lastModification, long uploaded, byte[] hash, Entry next) {
+			this.size = size;
+			this.lastModification = lastModification;
+			this.uploaded = uploaded;
+			this.hash = hash;
+			this.next = next;
+		}
+
+		public long getSize() {
+			return size;
+		}
+		public long getLastModification() {
+			return lastModification;
+		}
+		public long getUploaded() {
+			return uploaded;
+		}
+		public byte[] getHash() {
+			return hash;
+		}
+	}
+
+	public UploadLogIndex() {
+		this(false);
+	}
+
+	/**
+	 * @param caseSensitive true to match paths exactly, e.g. blob names, instead of ignoring their case
+	 */
+	public UploadLogIndex(boolean caseSensitive) {
+		this.caseSensitive = caseSensitive;
+	}
+
+	public boolean isCaseSensitive() {
+		return caseSensitive;
+	}
+
+	public static String normalizePath(String path) {
+		return normalizePath(path, false);
+	}
+
+	public static String normalizePath(String path, boolean caseSensitive) {
+		if (path == null) {
+			return null;
+		}
+		String normalizedPath = FilenameUtils.normalize(path, true);
+		if (normalizedPath == null) {
+			normalizedPath = FilenameUtils.separatorsToUnix(path);
+		}
+		return caseSensitive ? normalizedPath : normalizedPath.toLowerCase(Locale.ENGLISH);
+	}
+
+	public static byte[] decodeHash(String hashHex) {
+		if (StringUtils.isBlank(hashHex)) {
+			return null;
+		}
+		try {
+			return Hex.decodeHex(hashHex.trim().toCharArray());
+		} catch (DecoderException e) {
+			return null;
+		}
+	}
+
+	public void add(UploadedFileLogItem item) {
+		add(item.getPath(), item.getSize(), item.getLast_modification(), item.getUploaded(), decodeHash(item.getHash()));
+	}
+
+	public void add(String path, long size, long lastModification, long uploaded, byte[] hash) {
+		String key = normalizePath(path, caseSensitive);
+		if (key == null) {
+			return;
+		}
+		while (true) {
+			Entry head = entries.get(key);
+			Entry entry = new Entry(size, lastModification, uploaded, hash, head);
+			boolean added = head == null ? entries.putIfAbsent(key, entry) == null : entries.replace(key, head, entry);
+			if (added) {
+				itemsCount.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	public CompactedUploadLog getCompactedLog() {
+		return compactedLog;
+	}
+	public void setCompactedLog(CompactedUploadLog compactedLog) {
+		this.compactedLog = compactedLog;
+	}
+
+	public void beginLoading() {
+		loaded = false;
+	}
+
+	public void endLoading() {
+		loaded = true;
+		loadedLatch.countDown();
+		pathFilterLatch.countDown();
+	}
+
+	/**
+	 * @param pathFilter filter of all paths being loaded normalized with case sensitivity of the index
+	 */
+	public void setPathFilter(PathFilter pathFilter) {
+		this.pathFilter = pathFilter;
+		pathFilterLatch.countDown();
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Waits for the path filter, then for the loading to finish unless the filter rules the path out.
+	 * @return true if the index has been loaded meanwhile and the lookup should be repeated
+	 */
+	private boolean awaitLoaded(String key) {
+		if (loaded) {
+			return false;
+		}
+		try {
+			pathFilterLatch.await();
+			PathFilter filter = pathFilter;
+			if (!loaded && filter != null && key != null && !filter.mightContain(key)) {
+				return false;
+			}
+			loadedLatch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	public Entry findByModification(String path, long size, long lastModification) {
+		Entry entry = lookupByModification(path, size, lastModification);
+		if (entry == null && awaitLoaded(normalizePath(path, caseSensitive))) {
+			entry = lookupByModification(path, size, lastModification);
+		}
+		return entry;
+	}
+
+	public Entry findByHash(String path, long size, byte[] hash) {
+		Entry entry = lookupByHash(path, size, hash);
+		if (entry == null && awaitLoaded(normalizePath(path, caseSensitive))) {
+			entry = lookupByHash(path, size, hash);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return true if the file has been uploaded with the same size before, so its hash should be compared before upload
+	 */
+	public boolean hasCandidate(String path, long size) {
+		boolean found = lookupCandidate(path, size);
+		if (!found && awaitLoaded(normalizePath(path, caseSensitive))) {
+			found = lookupCandidate(path, size);
+		}
+		return found;
+	}
+
+	private boolean lookupCandidate(String path, long size) {
+		String key = normalizePath(path, caseSensitive);
+		for(Entry entry = head(key); entry != null; entry = entry.next) {
+			if (entry.size == size && entry.hash != null) {
+				return true;
+			}
+		}
+		Entry entry = findCompacted(key);
+		return entry != null && entry.size == size && entry.hash != null;
+	}
+
+	private Entry lookupByModification(String path, long size, long lastModification) {
+		String key = normalizePath(path, caseSensitive);
+		for(Entry entry = head(key); entry != null; entry = entry.next) {
+			if (entry.size == size && entry.lastModification == lastModification) {
+				return entry;
+			}
+		}
+		Entry entry = findCompacted(key);
+		return entry != null && entry.size == size && entry.lastModification == lastModification ? entry : null;
+	}
+
+	private Entry lookupByHash(String path, long size, byte[] hash) {
+		if (hash == null || hash.length == 0) {
+			return null;
+		}
+		String key = normalizePath(path, caseSensitive);
+		for(Entry entry = head(key); entry != null; entry = entry.next) {
+			if (entry.size == size && Arrays.equals(entry.hash, hash)) {
+				return entry;
+			}
+		}
+		Entry entry = findCompacted(key);
+		return entry != null && entry.size == size && Arrays.equals(entry.hash, hash) ? entry : null;
+	}
+
+	private Entry head(String key) {
+		return key != null ? entries.get(key) : null;
+	}
+
+	private Entry findCompacted(String key) {
+		CompactedUploadLog log = compactedLog;
+		return key != null && log != null ? log.find(key) : null;
+	}
+
+	/**
+	 * @return count of items held in memory
+	 */
+	public int size() {
+		return itemsCount.get();
+	}
+
+	public boolean isEmpty() {
+		CompactedUploadLog log = compactedLog;
+		return loaded && itemsCount.get() == 0 && (log == null || log.size() == 0);
+	}
+}
@@ -0,0 +1,254 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Streaming reader of the csv upload log. The file is split into line aligned chunks which are parsed in parallel
+ * straight into {@link UploadLogIndex}, so the log is never held in memory as text. Paths alone might be read first,
+ * which takes a fraction of the parsing time, see {@link PathFilter}.
+ */
+public class UploadLogReader {
+	static final Logger logger = LoggerFactory.getLogger(UploadLogReader.class);
+
+	static final long DEFAULT_CHUNK_SIZE = 32L * 1024 * 1024;
+	static final int READ_BUFFER_SIZE = 256 * 1024;
+	static final int MAX_REPORTED_MALFORMED_LINES = 100;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final ObjectReader csvObjectReader;
+	private final int threadsCount;
+	private final long chunkSize;
+	private final AtomicLong parsedLinesCount = new AtomicLong(0);
+	private final AtomicLong malformedLinesCount = new AtomicLong(0);
+
+	public UploadLogReader(ObjectReader csvObjectReader, int threadsCount, long chunkSize) {
+		this.csvObjectReader = csvObjectReader;
+		this.threadsCount = Math.max(1, threadsCount);
+		this.chunkSize = Math.max(READ_BUFFER_SIZE, chunkSize);
+	}
+
+	public UploadLogReader(ObjectReader csvObjectReader) {
+		this(csvObjectReader, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+
+	public long getParsedLinesCount() {
+		return parsedLinesCount.get();
+	}
+
+	public long getMalformedLinesCount() {
+		return malformedLinesCount.get();
+	}
+
+	/**
+	 * Receives parsed items, called concurrently by the parsing threads.
+	 */
+	public interface ItemHandler {
+		void handle(UploadedFileLogItem item);
+	}
+
+	/**
+	 * Receives paths of items, called concurrently by the reading threads.
+	 */
+	public interface PathHandler {
+		void handle(String path);
+	}
+
+	private interface LineHandler {
+		void handle(String line, long offset);
+	}
+
+	/**
+	 * Parses all items of the upload log file into the index, malformed lines are reported and skipped.
+	 * @return count of items added to the index
+	 */
+	public long read(File uploadLogFile, final UploadLogIndex index) throws IOException, InterruptedException {
+		return read(uploadLogFile, new ItemHandler() {
+			@Override
+			public void handle(UploadedFileLogItem item) {
+				index.add(item);
+			}
+		});
+	}
+
+	/**
+	 * Parses all items of the upload log file passing them to the handler, malformed lines are reported and skipped.
+	 * @return count of items passed to the handler
+	 */
+	public long read(File uploadLogFile, final ItemHandler handler) throws IOException, InterruptedException {
+		readLines(uploadLogFile, new LineHandler() {
+			@Override
+			public void handle(String line, long offset) {
+				parseLine(line, offset, handler);
+			}
+		});
+		if (malformedLinesCount.get() > 0) {
+			logger.warn("Skipped [{}] malformed lines in upload log file [{}]", malformedLinesCount.get(), uploadLogFile);
+		}
+		return parsedLinesCount.get();
+	}
+
+	/**
+	 * Reads only the path of every item without parsing the rest of the line.
+	 */
+	public void readPaths(File uploadLogFile, final PathHandler handler) throws IOException, InterruptedException {
+		readLines(uploadLogFile, new LineHandler() {
+			@Override
+			public void handle(String line, long offset) {
+				if (StringUtils.isNotBlank(line)) {
+					handler.handle(firstField(line));
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return unquoted first field of the csv line
+	 */
+	static String firstField(String line) {
+		if (line.isEmpty() || line.charAt(0) != '"') {
+			int separator = line.indexOf(',');
+			return separator < 0 ? line : line.substring(0, separator);
+		}
+		StringBuilder field = new StringBuilder(line.length());
+		for(int i = 1; i < line.length(); ++i) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					++i;
+				} else {
+					break;
+				}
+			}
+			field.append(c);
+		}
+		return field.toString();
+	}
+
+	private void readLines(File uploadLogFile, LineHandler handler) throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(uploadLogFile.toPath(), StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			Collection<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for(long start = 0; start < fileSize; start += chunkSize) {
+				tasks.add(new ChunkParser(channel, start, Math.min(fileSize, start + chunkSize), handler));
+			}
+			ExecutorService exec = Executors.newFixedThreadPool(Math.min(threadsCount, Math.max(1, tasks.size())));
+			try {
+				for(Future<Void> result : exec.invokeAll(tasks)) {
+					result.get();
+				}
+			} catch (ExecutionException e) {
+				throw new IOException(String.format("Failed to read upload log file [%s]", uploadLogFile), e.getCause());
+			} finally {
+				exec.shutdownNow();
+			}
+		}
+	}
+
+	private void parseLine(String line, long offset, ItemHandler handler) {
+		if (StringUtils.isBlank(line)) {
+			return;
+		}
+		try {
+			UploadedFileLogItem logItem = csvObjectReader.readValue(line);
+			handler.handle(logItem);
+			parsedLinesCount.incrementAndGet();
+		} catch (Exception e) {
+			if (malformedLinesCount.incrementAndGet() <= MAX_REPORTED_MALFORMED_LINES) {
+				logger.warn(String.format("Failed to parse upload log item at offset [%d]\n%s", offset, line), e);
+			}
+		}
+	}
+
+	/**
+	 * Passes lines which start within [start, end) byte range to the handler, the last line may extend beyond the range end.
+	 */
+	private class ChunkParser implements Callable<Void> {
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final LineHandler handler;
+		private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private long bufferPosition;
+		private byte[] line = new byte[1024];
+
+		ChunkParser(FileChannel channel, long start, long end, LineHandler handler) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.handler = handler;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long position = start;
+			buffer.limit(0);
+			if (start > 0) {
+				// the line crossing the chunk start belongs to the previous chunk
+				bufferPosition = start - 1;
+				int b;
+				do {
+					b = next();
+					++position;
+				} while (b != -1 && b != '\n');
+				--position;
+			} else {
+				bufferPosition = 0;
+			}
+			while (position < end) {
+				long lineStart = position;
+				int length = 0;
+				int b;
+				while ((b = next()) != -1 && b != '\n') {
+					if (length == line.length) {
+						line = Arrays.copyOf(line, line.length * 2);
+					}
+					line[length++] = (byte) b;
+				}
+				position += length + (b == -1 ? 0 : 1);
+				if (length > 0 && line[length - 1] == '\r') {
+					--length;
+				}
+				handler.handle(new String(line, 0, length, UTF_8), lineStart);
+				if (b == -1) {
+					break;
+				}
+			}
+			return null;
+		}
+
+		private int next() throws IOException {
+			if (!buffer.hasRemaining()) {
+				buffer.clear();
+				int read = channel.read(buffer, bufferPosition);
+				if (read <= 0) {
+					buffer.limit(0);
+					return -1;
+				}
+				bufferPosition += read;
+				buffer.flip();
+			}
+			return buffer.get() & 0xFF;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package com.selivonchyks.azureupload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends upload log items from its own thread: upload threads only put records into the queue, the writer
+ * takes them in batches, serializes them into a reused buffer and group commits them: the log is flushed and
+ * forced to disk once the given count of records has been written or the given time has passed since the
+ * first unflushed record. Records have the csv format of {@link UploadedFileLogItem}, values are quoted only when
+ * they have to be, so logs are read by {@link UploadLogReader} as before.
+ */
+public class UploadLogWriter implements Closeable {
+	static final Logger logger = LoggerFactory.getLogger(UploadLogWriter.class);
+
+	public static final int DEFAULT_FLUSH_RECORDS_COUNT = 1000;
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+	static final int QUEUE_SIZE = 65536;
+	static final int MAX_BATCH_SIZE = 4096;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	static class Record {
+		final String path;
+		final long size;
+		final byte[] hash;
+		final long uploaded;
+		final long lastModification;
+		final String archive;
+		final Long archiveOffset;
+		final String blob;
+
+		Record(String path, long size, byte[] hash, long uploaded, long lastModification, String archive, Long archiveOffset, String blob) {
+			this.path = path;
+			this.size = size;
+			this.hash = hash;
+			this.uploaded = uploaded;
+			this.lastModification = lastModification;
+			this.archive = archive;
+			this.archiveOffset = archiveOffset;
+			this.blob = blob;
+		}
+	}
+
+	// marks the end of the queue
+	private static final Record CLOSED = new Record(null, 0, null, 0, 0, null, null, null);
+
+	private final File file;
+	private final FileChannel channel;
+	private final Writer writer;
+	private final int flushRecordsCount;
+	private final long flushInterval;
+	private final boolean force;
+	private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>(QUEUE_SIZE);
+	private final Thread thread;
+
+	private final StringBuilder line = new StringBuilder(512);
+	private char[] chars = new char[512];
+	private int unflushedRecordsCount = 0;
+	private long firstUnflushedRecordTime = 0;
+	private long writtenRecordsCount = 0;
+	private long flushesCount = 0;
+	private boolean failed = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Opens log for appending, a line left incomplete by a crashed run is terminated, so it's the only malformed one.
+	 * @param flushRecordsCount records count log is flushed at
+	 * @param flushInterval maximum time in milliseconds a record stays unflushed
+	 * @param force force flushed content to disk
+	 */
+	public UploadLogWriter(File file, int flushRecordsCount, long flushInterval, boolean force) throws IOException {
+		this.file = file;
+		this.flushRecordsCount = Math.max(1, flushRecordsCount);
+		this.flushInterval = Math.max(0, flushInterval);
+		this.force = force;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > 0) {
+				ByteBuffer last = ByteBuffer.allocate(1);
+				channel.read(last, size - 1);
+				channel.position(size);
+				if (last.get(0) != '\n') {
+					logger.info("Upload log file [{}] ends with incomplete line, terminating it", file);
+					channel.write(ByteBuffer.wrap(new byte[] { '\n' }));
+				}
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.writer = new OutputStreamWriter(Channels.newOutputStream(channel), UTF_8.newEncoder());
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "upload-log-writer");
+		this.thread.start();
+	}
+
+	/**
+	 * Queues record, blocks while the writer is behind by the queue size.
+	 * @param blob name of the blob file has been uploaded or copied to, null if it has been packed
+	 */
+	public void log(String path, long size, byte[] hash, long uploaded, long lastModification, String archive, Long archiveOffset, String blob) {
+		if (closed) {
+			throw new IllegalStateException(String.format("Upload log [%s] is closed", file));
+		}
+		try {
+			queue.put(new Record(path, size, hash, uploaded, lastModification, archive, archiveOffset, blob));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while saving upload log item for file [{}]", path);
+		}
+	}
+
+	private void write() {
+		List<Record> batch = new ArrayList<Record>(MAX_BATCH_SIZE);
+		boolean isClosed = false;
+		while (!isClosed) {
+			try {
+				Record record;
+				if (unflushedRecordsCount > 0) {
+					long wait = firstUnflushedRecordTime + flushInterval - System.currentTimeMillis();
+					record = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+				} else {
+					record = queue.take();
+				}
+				if (record != null) {
+					batch.add(record);
+					queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+					for(Record item : batch) {
+						if (item == CLOSED) {
+							isClosed = true;
+						} else {
+							append(item);
+						}
+					}
+					batch.clear();
+				}
+				if (unflushedRecordsCount >= flushRecordsCount
+						|| (unflushedRecordsCount > 0 && System.currentTimeMillis() - firstUnflushedRecordTime >= flushInterval)
+						|| isClosed) {
+					flush();
+				}
+			} catch (InterruptedException e) {
+				logger.warn("Upload log writer has been interrupted, [{}] records are not saved", queue.size() + unflushedRecordsCount);
+				return;
+			}
+		}
+	}
+
+	private void append(Record record) {
+		line.setLength(0);
+		appendValue(record.path);
+		line.append(',').append(record.size);
+		line.append(',').append(record.uploaded);
+		line.append(',').append(record.lastModification);
+		line.append(',');
+		if (record.hash != null) {
+			for(byte b : record.hash) {
+				line.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+			}
+		}
+		line.append(',');
+		appendValue(record.archive);
+		line.append(',');
+		if (record.archiveOffset != null) {
+			line.append(record.archiveOffset.longValue());
+		}
+		line.append(',');
+		appendValue(record.blob);
+		line.append('\n');
+
+		int length = line.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		line.getChars(0, length, chars, 0);
+		try {
+			writer.write(chars, 0, length);
+			if (unflushedRecordsCount++ == 0) {
+				firstUnflushedRecordTime = System.currentTimeMillis();
+			}
+			++writtenRecordsCount;
+			failed = false;
+		} catch (IOException e) {
+			if (!failed) {
+				logger.warn(String.format("Failed to save upload log item for file [%s]", record.path), e);
+			}
+			failed = true;
+		}
+	}
+
+	/**
+	 * Appends value quoted if it contains separator, quote, line break, white space or comment characters.
+	 */
+	private void appendValue(String value) {
+		if (value == null) {
+			return;
+		}
+		boolean quote = false;
+		for(int i = 0; i < value.length() && !quote; ++i) {
+			quote = value.charAt(i) <= ',';
+		}
+		if (!quote) {
+			line.append(value);
+			return;
+		}
+		line.append('"');
+		for(int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				line.append('"');
+			}
+			line.append(c);
+		}
+		line.append('"');
+	}
+
+	private void flush() {
+		try {
+			writer.flush();
+			if (force) {
+				channel.force(false);
+			}
+			++flushesCount;
+		} catch (IOException e) {
+			logger.warn(String.format("Failed to flush upload log [%s]", file), e);
+		}
+		unflushedRecordsCount = 0;
+	}
+
+	/**
+	 * Writes all queued records, flushes and closes the log.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			queue.put(CLOSED);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			thread.interrupt();
+		} finally {
+			writer.close();
+		}
+		logger.info("Saved [{}] upload log items into [{}] with [{}] flushes", writtenRecordsCount, file, flushesCount);
+	}
+}
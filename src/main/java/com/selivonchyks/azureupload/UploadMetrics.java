@@ -0,0 +1,488 @@
+package com.selivonchyks.azureupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Upload statistics updated by the scanning and upload threads through striped counters and lock free latency
+ * histograms. Being run periodically it logs throughput over the last interval with the estimated time left and
+ * writes a JSON snapshot into the metrics file, the same values are available over JMX.
+ */
+public class UploadMetrics implements UploadMetricsMBean, Runnable {
+	static final Logger logger = LoggerFactory.getLogger(UploadMetrics.class);
+
+	public static final long DEFAULT_REPORT_INTERVAL = 10000;
+	public static final String OBJECT_NAME = "com.selivonchyks.azureupload:type=UploadMetrics";
+
+	public enum Phase {
+		/** reading file attributes while scanning */
+		STAT,
+		/** computing file hash before upload */
+		HASH,
+		/** compressing file content before upload */
+		COMPRESS,
+		/** looking file up in upload log */
+		SKIP_CHECK,
+		/** uploading or packing file */
+		UPLOAD,
+		/** writing upload log item */
+		LOG_WRITE
+	}
+
+	private final StripedCounter foundFilesCount = new StripedCounter();
+	private final StripedCounter foundFilesSize = new StripedCounter();
+	private final StripedCounter uploadedFilesCount = new StripedCounter();
+	private final StripedCounter uploadedFilesSize = new StripedCounter();
+	private final StripedCounter skippedFilesCount = new StripedCounter();
+	private final StripedCounter skippedFilesSize = new StripedCounter();
+	private final StripedCounter failedFilesCount = new StripedCounter();
+	private final StripedCounter failedFilesSize = new StripedCounter();
+	private final StripedCounter deduplicatedFilesCount = new StripedCounter();
+	private final StripedCounter deduplicatedBytes = new StripedCounter();
+	private final StripedCounter compressedFilesCount = new StripedCounter();
+	private final StripedCounter compressionSavedBytes = new StripedCounter();
+	private final StripedCounter transferredBytes = new StripedCounter();
+	private final StripedCounter retriesCount = new StripedCounter();
+	// time upload threads have spent waiting for files and since they finished, by thread name
+	private final ConcurrentMap<String, AtomicLong> workerIdleNanos = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, Long> workerFinishTimes = new ConcurrentHashMap<String, Long>();
+	private final Map<Phase, LatencyHistogram> latencies = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+	private volatile boolean scanFinished = false;
+	private final UploadMetrics parent;
+	private final List<UploadMetrics> children = new CopyOnWriteArrayList<UploadMetrics>();
+	private volatile Collection<?> queue;
+	private volatile File metricsFile;
+
+	private final long startTime = System.currentTimeMillis();
+	private long lastReportTime = startTime;
+	private long lastTransferredBytes = 0;
+	private long lastCompletedFilesCount = 0;
+	private volatile long bytesPerSecond = 0;
+	private volatile double filesPerSecond = 0;
+	private volatile long estimatedRemainingSeconds = -1;
+	private ObjectName objectName;
+
+	public UploadMetrics() {
+		this.parent = null;
+		for(Phase phase : Phase.values()) {
+			latencies.put(phase, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Metrics of a part of the upload, e.g. of one job, counters are added to the parent as well
+	 * and latencies are shared with the parent. Scanning of the parent is finished once it's finished for all parts.
+	 */
+	public UploadMetrics(UploadMetrics parent) {
+		this.parent = parent;
+		latencies.putAll(parent.latencies);
+		parent.children.add(this);
+	}
+
+	/**
+	 * @param queue queue of files waiting for upload, its size is reported as queue depth
+	 */
+	public void setQueue(Collection<?> queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * @param metricsFile file JSON snapshot is written to on every report, null to only log
+	 */
+	public void setMetricsFile(File metricsFile) {
+		this.metricsFile = metricsFile;
+	}
+
+	public void fileFound(long size) {
+		foundFilesCount.increment();
+		foundFilesSize.add(size);
+		if (parent != null) {
+			parent.fileFound(size);
+		}
+	}
+
+	public void setScanFinished() {
+		scanFinished = true;
+	}
+
+	public void fileUploaded(long size) {
+		uploadedFilesCount.increment();
+		uploadedFilesSize.add(size);
+		if (parent != null) {
+			parent.fileUploaded(size);
+		}
+	}
+
+	public void fileSkipped(long size) {
+		skippedFilesCount.increment();
+		skippedFilesSize.add(size);
+		if (parent != null) {
+			parent.fileSkipped(size);
+		}
+	}
+
+	public void fileFailed(long size) {
+		failedFilesCount.increment();
+		failedFilesSize.add(size);
+		if (parent != null) {
+			parent.fileFailed(size);
+		}
+	}
+
+	/**
+	 * @param size size of the file copied from a blob with the same content instead of being sent,
+	 * the file is counted as uploaded too
+	 */
+	public void fileDeduplicated(long size) {
+		deduplicatedFilesCount.increment();
+		deduplicatedBytes.add(size);
+		if (parent != null) {
+			parent.fileDeduplicated(size);
+		}
+	}
+
+	/**
+	 * @param size size of the file content
+	 * @param compressedSize size of the compressed content sent instead
+	 */
+	public void fileCompressed(long size, long compressedSize) {
+		compressedFilesCount.increment();
+		compressionSavedBytes.add(size - compressedSize);
+		if (parent != null) {
+			parent.fileCompressed(size, compressedSize);
+		}
+	}
+
+	/**
+	 * @param bytes bytes sent to the service, reported as soon as a file or a block is sent
+	 */
+	public void bytesTransferred(long bytes) {
+		transferredBytes.add(bytes);
+		if (parent != null) {
+			parent.bytesTransferred(bytes);
+		}
+	}
+
+	public void retried() {
+		retriesCount.increment();
+		if (parent != null) {
+			parent.retried();
+		}
+	}
+
+	/**
+	 * @param nanos time the current upload thread has been waiting for a file to upload
+	 */
+	public void workerIdle(long nanos) {
+		String worker = Thread.currentThread().getName();
+		AtomicLong idle = workerIdleNanos.get(worker);
+		if (idle == null) {
+			AtomicLong current = workerIdleNanos.putIfAbsent(worker, idle = new AtomicLong());
+			if (current != null) {
+				idle = current;
+			}
+		}
+		idle.addAndGet(nanos);
+	}
+
+	/**
+	 * Current upload thread has no more files to upload, it's idle until the upload is finished.
+	 */
+	public void workerFinished() {
+		workerIdle(0);
+		workerFinishTimes.put(Thread.currentThread().getName(), System.nanoTime());
+	}
+
+	/**
+	 * @return idle time in milliseconds of every upload thread by thread name
+	 */
+	public Map<String, Long> getWorkerIdleMillis() {
+		long now = System.nanoTime();
+		Map<String, Long> idleMillis = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> idle : workerIdleNanos.entrySet()) {
+			Long finishTime = workerFinishTimes.get(idle.getKey());
+			long nanos = idle.getValue().get() + (finishTime != null ? now - finishTime : 0);
+			idleMillis.put(idle.getKey(), nanos / 1000000);
+		}
+		return idleMillis;
+	}
+
+	public LatencyHistogram getLatency(Phase phase) {
+		return latencies.get(phase);
+	}
+
+	/**
+	 * Counts requests retried by the sink.
+	 */
+	public void listen(BlobSink sink) {
+		sink.addResponseListener(new BlobSink.ResponseListener() {
+			@Override
+			public void responseReceived(int statusCode, long latencyMillis) {
+			}
+
+			@Override
+			public void retrying() {
+				retried();
+			}
+		});
+	}
+
+	@Override
+	public long getFoundFilesCount() {
+		return foundFilesCount.sum();
+	}
+	@Override
+	public long getFoundFilesSize() {
+		return foundFilesSize.sum();
+	}
+	@Override
+	public boolean isScanFinished() {
+		if (scanFinished) {
+			return true;
+		}
+		if (children.isEmpty()) {
+			return false;
+		}
+		for(UploadMetrics child : children) {
+			if (!child.isScanFinished()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	@Override
+	public long getUploadedFilesCount() {
+		return uploadedFilesCount.sum();
+	}
+	@Override
+	public long getUploadedFilesSize() {
+		return uploadedFilesSize.sum();
+	}
+	@Override
+	public long getSkippedFilesCount() {
+		return skippedFilesCount.sum();
+	}
+	@Override
+	public long getFailedFilesCount() {
+		return failedFilesCount.sum();
+	}
+	@Override
+	public long getDeduplicatedFilesCount() {
+		return deduplicatedFilesCount.sum();
+	}
+	@Override
+	public long getDeduplicatedBytes() {
+		return deduplicatedBytes.sum();
+	}
+	@Override
+	public long getCompressedFilesCount() {
+		return compressedFilesCount.sum();
+	}
+	@Override
+	public long getCompressionSavedBytes() {
+		return compressionSavedBytes.sum();
+	}
+	@Override
+	public long getTransferredBytes() {
+		return transferredBytes.sum();
+	}
+	@Override
+	public long getRetriesCount() {
+		return retriesCount.sum();
+	}
+	@Override
+	public int getQueueDepth() {
+		Collection<?> queue = this.queue;
+		if (queue != null) {
+			return queue.size();
+		}
+		int queueDepth = 0;
+		for(UploadMetrics child : children) {
+			queueDepth += child.getQueueDepth();
+		}
+		return queueDepth;
+	}
+	@Override
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+	@Override
+	public double getFilesPerSecond() {
+		return filesPerSecond;
+	}
+	/**
+	 * @return seconds left at the throughput of the last interval, -1 when unknown
+	 */
+	@Override
+	public long getEstimatedRemainingSeconds() {
+		return estimatedRemainingSeconds;
+	}
+	@Override
+	public String[] getPhaseLatencies() {
+		String[] phaseLatencies = new String[latencies.size()];
+		int i = 0;
+		for(Map.Entry<Phase, LatencyHistogram> latency : latencies.entrySet()) {
+			phaseLatencies[i++] = String.format("%s: %s", latency.getKey().name().toLowerCase(), latency.getValue());
+		}
+		return phaseLatencies;
+	}
+
+	@Override
+	public String[] getWorkerIdleTimes() {
+		Map<String, Long> idleMillis = getWorkerIdleMillis();
+		String[] idleTimes = new String[idleMillis.size()];
+		int i = 0;
+		for(Map.Entry<String, Long> idle : idleMillis.entrySet()) {
+			idleTimes[i++] = String.format("%s: %d ms", idle.getKey(), idle.getValue());
+		}
+		return idleTimes;
+	}
+
+	private long getRemainingBytes() {
+		return Math.max(0, getFoundFilesSize() - skippedFilesSize.sum() - failedFilesSize.sum() - getTransferredBytes() - getDeduplicatedBytes() - getCompressionSavedBytes());
+	}
+
+	public void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			objectName = name;
+		} catch (Exception e) {
+			logger.warn(String.format("Failed to register MBean [%s]", OBJECT_NAME), e);
+		}
+	}
+
+	public void unregisterMBean() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				logger.info(String.format("Failed to unregister MBean [%s]", objectName), e);
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Updates rates using the counters collected since the previous report, logs progress and writes metrics file.
+	 */
+	@Override
+	public synchronized void run() {
+		long now = System.currentTimeMillis();
+		long elapsed = Math.max(1, now - lastReportTime);
+		long transferred = getTransferredBytes();
+		long completedFilesCount = getUploadedFilesCount() + getSkippedFilesCount() + getFailedFilesCount();
+		bytesPerSecond = (transferred - lastTransferredBytes) * 1000 / elapsed;
+		filesPerSecond = (completedFilesCount - lastCompletedFilesCount) * 1000.0 / elapsed;
+		lastReportTime = now;
+		lastTransferredBytes = transferred;
+		lastCompletedFilesCount = completedFilesCount;
+
+		long remainingBytes = getRemainingBytes();
+		long remainingFilesCount = Math.max(0, getFoundFilesCount() - completedFilesCount);
+		if (remainingBytes == 0 && remainingFilesCount == 0) {
+			estimatedRemainingSeconds = isScanFinished() ? 0 : -1;
+		} else if (bytesPerSecond > 0) {
+			estimatedRemainingSeconds = remainingBytes / bytesPerSecond;
+		} else if (filesPerSecond > 0) {
+			estimatedRemainingSeconds = (long) (remainingFilesCount / filesPerSecond);
+		} else {
+			estimatedRemainingSeconds = -1;
+		}
+
+		logger.info("Progress: uploaded [{}] of [{}{}] files ([{}] skipped, [{}] failed), transferred [{}] of [{}{}] bytes, [{}] bytes/s, [{}] files/s, [{}] files queued, [{}] retries, ETA [{}]",
+				getUploadedFilesCount(), getFoundFilesCount(), isScanFinished() ? "" : "+", getSkippedFilesCount(), getFailedFilesCount(),
+				transferred, transferred + remainingBytes, isScanFinished() ? "" : "+", bytesPerSecond, String.format("%.1f", filesPerSecond),
+				getQueueDepth(), getRetriesCount(), formatEstimate());
+		if (logger.isDebugEnabled()) {
+			for(String phaseLatency : getPhaseLatencies()) {
+				logger.debug("Latency of {}", phaseLatency);
+			}
+		}
+		writeMetricsFile(now);
+	}
+
+	private String formatEstimate() {
+		long seconds = estimatedRemainingSeconds;
+		if (seconds < 0) {
+			return "unknown";
+		}
+		return String.format("%s%d:%02d:%02d", isScanFinished() ? "" : ">", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+
+	private void writeMetricsFile(long now) {
+		File file = metricsFile;
+		if (file == null) {
+			return;
+		}
+		Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+		snapshot.put("timestamp", now);
+		snapshot.put("elapsed_ms", now - startTime);
+		snapshot.put("scan_finished", isScanFinished());
+		snapshot.put("found_files", getFoundFilesCount());
+		snapshot.put("found_bytes", getFoundFilesSize());
+		snapshot.put("uploaded_files", getUploadedFilesCount());
+		snapshot.put("uploaded_bytes", getUploadedFilesSize());
+		snapshot.put("skipped_files", getSkippedFilesCount());
+		snapshot.put("failed_files", getFailedFilesCount());
+		snapshot.put("deduplicated_files", getDeduplicatedFilesCount());
+		snapshot.put("deduplicated_bytes", getDeduplicatedBytes());
+		snapshot.put("compressed_files", getCompressedFilesCount());
+		snapshot.put("compression_saved_bytes", getCompressionSavedBytes());
+		snapshot.put("transferred_bytes", getTransferredBytes());
+		snapshot.put("retries", getRetriesCount());
+		snapshot.put("queue_depth", getQueueDepth());
+		snapshot.put("bytes_per_second", bytesPerSecond);
+		snapshot.put("files_per_second", filesPerSecond);
+		snapshot.put("eta_seconds", estimatedRemainingSeconds);
+		Map<String, Object> phases = new LinkedHashMap<String, Object>();
+		for(Map.Entry<Phase, LatencyHistogram> latency : latencies.entrySet()) {
+			LatencyHistogram histogram = latency.getValue();
+			Map<String, Object> phase = new LinkedHashMap<String, Object>();
+			phase.put("count", histogram.getCount());
+			phase.put("mean_us", histogram.getMean());
+			phase.put("p50_us", histogram.getPercentile(50));
+			phase.put("p90_us", histogram.getPercentile(90));
+			phase.put("p99_us", histogram.getPercentile(99));
+			phase.put("max_us", histogram.getMax());
+			phases.put(latency.getKey().name().toLowerCase(), phase);
+		}
+		snapshot.put("latencies", phases);
+		snapshot.put("worker_idle_ms", getWorkerIdleMillis());
+
+		// written next to the target and moved over it, so readers never see a partially written file
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		try {
+			FileUtils.writeByteArrayToFile(tmpFile, new ObjectMapper().writeValueAsBytes(snapshot));
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.info(String.format("Failed to write metrics file [%s]", file), e);
+		}
+	}
+}
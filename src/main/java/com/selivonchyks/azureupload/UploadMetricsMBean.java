@@ -0,0 +1,26 @@
+package com.selivonchyks.azureupload;
+
+/**
+ * Upload progress exposed over JMX, see {@link UploadMetrics}.
+ */
+public interface UploadMetricsMBean {
+	long getFoundFilesCount();
+	long getFoundFilesSize();
+	boolean isScanFinished();
+	long getUploadedFilesCount();
+	long getUploadedFilesSize();
+	long getSkippedFilesCount();
+	long getFailedFilesCount();
+	long getDeduplicatedFilesCount();
+	long getDeduplicatedBytes();
+	long getCompressedFilesCount();
+	long getCompressionSavedBytes();
+	long getTransferredBytes();
+	long getRetriesCount();
+	int getQueueDepth();
+	long getBytesPerSecond();
+	double getFilesPerSecond();
+	long getEstimatedRemainingSeconds();
+	String[] getPhaseLatencies();
+	String[] getWorkerIdleTimes();
+}
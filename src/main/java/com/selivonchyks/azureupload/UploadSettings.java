@@ -0,0 +1,386 @@
+package com.selivonchyks.azureupload;
+
+public class UploadSettings {
+	public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+	public static final long DEFAULT_LARGE_FILE_THRESHOLD = 64L * 1024 * 1024;
+	public static final long DEFAULT_ARCHIVE_SIZE = 256L * 1024 * 1024;
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+	public static final int DEFAULT_IN_MEMORY_BUFFER_SIZE = 1024 * 1024;
+	public static final long DEFAULT_MAPPING_THRESHOLD = 16L * 1024 * 1024;
+	public static final int DEFAULT_MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private String azureConnectionString;
+	private String sourcePath;
+	private String targetContainer;
+	private String targetFolder;
+	private int uploadThreadsCount;
+	private boolean allowInMemoryFileHandling;
+	private String uploadLogFilePath;
+	private String skipUploadedFilePath;
+	private String folderReadyMarkerFileName;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private int parallelBlocksCount;
+	private long largeFileThreshold = DEFAULT_LARGE_FILE_THRESHOLD;
+	private long packThreshold;
+	private long archiveSize = DEFAULT_ARCHIVE_SIZE;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private int scanThreadsCount = Runtime.getRuntime().availableProcessors();
+	private long inMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+	private int inMemoryBufferSize = DEFAULT_IN_MEMORY_BUFFER_SIZE;
+	private boolean inMemoryOffHeap;
+	private boolean mapFiles;
+	private long mappingThreshold = DEFAULT_MAPPING_THRESHOLD;
+	private int mappedWindowSize = DEFAULT_MAPPED_WINDOW_SIZE;
+	private boolean adaptiveConcurrency;
+	private int minThreadsCount = 1;
+	private String checkpointFolderPath;
+	private int blockAttemptsCount = LargeFileUpload.DEFAULT_ATTEMPTS_COUNT;
+	private String metricsFilePath;
+	private long metricsInterval = UploadMetrics.DEFAULT_REPORT_INTERVAL;
+	private String sink;
+	private long sinkLatency = 0;
+	private double sinkThrottleRate = 0;
+	private int logFlushRecordsCount = UploadLogWriter.DEFAULT_FLUSH_RECORDS_COUNT;
+	private long logFlushInterval = UploadLogWriter.DEFAULT_FLUSH_INTERVAL;
+	private boolean logFsync = true;
+	private boolean skipExisting;
+	private String manifestCacheFolderPath;
+	private long manifestTtl = RemoteManifest.DEFAULT_TTL;
+	private boolean dedupe;
+	private long dedupeThreshold = DedupeIndex.DEFAULT_THRESHOLD;
+	private String compression;
+	private String schedule;
+	private String[] priorityFolders;
+	private boolean watch;
+	private long reconcileInterval = FolderWatcher.DEFAULT_RECONCILE_INTERVAL;
+	private String jobFilePath;
+	private long bandwidth;
+	private String engine;
+	private String shard;
+	private String shardBalanceFilePath;
+	private String snapshotFilePath;
+	private boolean fullScan;
+	private int compressThreadsCount;
+
+	public String getAzureConnectionString() {
+		return azureConnectionString;
+	}
+	public void setAzureConnectionString(String azureConnectionString) {
+		this.azureConnectionString = azureConnectionString;
+	}
+	public String getSourcePath() {
+		return sourcePath;
+	}
+	public void setSourcePath(String sourcePath) {
+		this.sourcePath = sourcePath;
+	}
+	public String getTargetContainer() {
+		return targetContainer;
+	}
+	public void setTargetContainer(String targetContainer) {
+		this.targetContainer = targetContainer;
+	}
+	public String getTargetFolder() {
+		return targetFolder;
+	}
+	public void setTargetFolder(String targetFolder) {
+		this.targetFolder = targetFolder;
+	}
+	public int getUploadThreadsCount() {
+		return uploadThreadsCount;
+	}
+	public void setUploadThreadsCount(int uploadThreadsCount) {
+		this.uploadThreadsCount = uploadThreadsCount;
+	}
+	public boolean isAllowInMemoryFileHandling() {
+		return allowInMemoryFileHandling;
+	}
+	public void setAllowInMemoryFileHandling(boolean allowInMemoryFileHandling) {
+		this.allowInMemoryFileHandling = allowInMemoryFileHandling;
+	}
+	public String getUploadLogFilePath() {
+		return uploadLogFilePath;
+	}
+	public void setUploadLogFilePath(String uploadLogFilePath) {
+		this.uploadLogFilePath = uploadLogFilePath;
+	}
+	public String getSkipUploadedFilePath() {
+		return skipUploadedFilePath;
+	}
+	public void setSkipUploadedFilePath(String skipUploadedFilePath) {
+		this.skipUploadedFilePath = skipUploadedFilePath;
+	}
+	public String getFolderReadyMarkerFileName() {
+		return folderReadyMarkerFileName;
+	}
+	public void setFolderReadyMarkerFileName(String folderReadyMarkerFileName) {
+		this.folderReadyMarkerFileName = folderReadyMarkerFileName;
+	}
+	public int getBlockSize() {
+		return blockSize;
+	}
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+	/**
+	 * @return maximum count of blocks of the same file uploaded at once, upload threads count if not specified
+	 */
+	public int getParallelBlocksCount() {
+		return parallelBlocksCount > 0 ? parallelBlocksCount : uploadThreadsCount;
+	}
+	public void setParallelBlocksCount(int parallelBlocksCount) {
+		this.parallelBlocksCount = parallelBlocksCount;
+	}
+	public long getLargeFileThreshold() {
+		return largeFileThreshold;
+	}
+	public void setLargeFileThreshold(long largeFileThreshold) {
+		this.largeFileThreshold = largeFileThreshold;
+	}
+	/**
+	 * @return files smaller than threshold are packed into archives, 0 disables packing
+	 */
+	public long getPackThreshold() {
+		return packThreshold;
+	}
+	public void setPackThreshold(long packThreshold) {
+		this.packThreshold = packThreshold;
+	}
+	public long getArchiveSize() {
+		return archiveSize;
+	}
+	public void setArchiveSize(long archiveSize) {
+		this.archiveSize = archiveSize;
+	}
+	public int getQueueSize() {
+		return queueSize;
+	}
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+	public int getScanThreadsCount() {
+		return scanThreadsCount;
+	}
+	public void setScanThreadsCount(int scanThreadsCount) {
+		this.scanThreadsCount = scanThreadsCount;
+	}
+	public long getInMemoryBudget() {
+		return inMemoryBudget;
+	}
+	public void setInMemoryBudget(long inMemoryBudget) {
+		this.inMemoryBudget = inMemoryBudget;
+	}
+	public int getInMemoryBufferSize() {
+		return inMemoryBufferSize;
+	}
+	public void setInMemoryBufferSize(int inMemoryBufferSize) {
+		this.inMemoryBufferSize = inMemoryBufferSize;
+	}
+	public boolean isInMemoryOffHeap() {
+		return inMemoryOffHeap;
+	}
+	public void setInMemoryOffHeap(boolean inMemoryOffHeap) {
+		this.inMemoryOffHeap = inMemoryOffHeap;
+	}
+	public boolean isMapFiles() {
+		return mapFiles;
+	}
+	public void setMapFiles(boolean mapFiles) {
+		this.mapFiles = mapFiles;
+	}
+	public long getMappingThreshold() {
+		return mappingThreshold;
+	}
+	public void setMappingThreshold(long mappingThreshold) {
+		this.mappingThreshold = mappingThreshold;
+	}
+	public int getMappedWindowSize() {
+		return mappedWindowSize;
+	}
+	public void setMappedWindowSize(int mappedWindowSize) {
+		this.mappedWindowSize = mappedWindowSize;
+	}
+	public boolean isAdaptiveConcurrency() {
+		return adaptiveConcurrency;
+	}
+	public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+		this.adaptiveConcurrency = adaptiveConcurrency;
+	}
+	public int getMinThreadsCount() {
+		return minThreadsCount;
+	}
+	public void setMinThreadsCount(int minThreadsCount) {
+		this.minThreadsCount = minThreadsCount;
+	}
+	public String getCheckpointFolderPath() {
+		return checkpointFolderPath;
+	}
+	public void setCheckpointFolderPath(String checkpointFolderPath) {
+		this.checkpointFolderPath = checkpointFolderPath;
+	}
+	public int getBlockAttemptsCount() {
+		return blockAttemptsCount;
+	}
+	public void setBlockAttemptsCount(int blockAttemptsCount) {
+		this.blockAttemptsCount = blockAttemptsCount;
+	}
+	public String getMetricsFilePath() {
+		return metricsFilePath;
+	}
+	public void setMetricsFilePath(String metricsFilePath) {
+		this.metricsFilePath = metricsFilePath;
+	}
+	public long getMetricsInterval() {
+		return metricsInterval;
+	}
+	public void setMetricsInterval(long metricsInterval) {
+		this.metricsInterval = metricsInterval;
+	}
+	/**
+	 * @return azure, null or local folder path, see {@link AzureFolderUpload}
+	 */
+	public String getSink() {
+		return sink;
+	}
+	public void setSink(String sink) {
+		this.sink = sink;
+	}
+	public long getSinkLatency() {
+		return sinkLatency;
+	}
+	public void setSinkLatency(long sinkLatency) {
+		this.sinkLatency = sinkLatency;
+	}
+	public double getSinkThrottleRate() {
+		return sinkThrottleRate;
+	}
+	public void setSinkThrottleRate(double sinkThrottleRate) {
+		this.sinkThrottleRate = sinkThrottleRate;
+	}
+	public int getLogFlushRecordsCount() {
+		return logFlushRecordsCount;
+	}
+	public void setLogFlushRecordsCount(int logFlushRecordsCount) {
+		this.logFlushRecordsCount = logFlushRecordsCount;
+	}
+	public long getLogFlushInterval() {
+		return logFlushInterval;
+	}
+	public void setLogFlushInterval(long logFlushInterval) {
+		this.logFlushInterval = logFlushInterval;
+	}
+	public boolean isLogFsync() {
+		return logFsync;
+	}
+	public void setLogFsync(boolean logFsync) {
+		this.logFsync = logFsync;
+	}
+	public boolean isSkipExisting() {
+		return skipExisting;
+	}
+	public void setSkipExisting(boolean skipExisting) {
+		this.skipExisting = skipExisting;
+	}
+	public String getManifestCacheFolderPath() {
+		return manifestCacheFolderPath;
+	}
+	public void setManifestCacheFolderPath(String manifestCacheFolderPath) {
+		this.manifestCacheFolderPath = manifestCacheFolderPath;
+	}
+	public long getManifestTtl() {
+		return manifestTtl;
+	}
+	public void setManifestTtl(long manifestTtl) {
+		this.manifestTtl = manifestTtl;
+	}
+	public boolean isDedupe() {
+		return dedupe;
+	}
+	public void setDedupe(boolean dedupe) {
+		this.dedupe = dedupe;
+	}
+	public long getDedupeThreshold() {
+		return dedupeThreshold;
+	}
+	public void setDedupeThreshold(long dedupeThreshold) {
+		this.dedupeThreshold = dedupeThreshold;
+	}
+	public String getCompression() {
+		return compression;
+	}
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+	public int getCompressThreadsCount() {
+		return compressThreadsCount;
+	}
+	public void setCompressThreadsCount(int compressThreadsCount) {
+		this.compressThreadsCount = compressThreadsCount;
+	}
+	public String getSchedule() {
+		return schedule;
+	}
+	public void setSchedule(String schedule) {
+		this.schedule = schedule;
+	}
+	public String[] getPriorityFolders() {
+		return priorityFolders;
+	}
+	public void setPriorityFolders(String[] priorityFolders) {
+		this.priorityFolders = priorityFolders;
+	}
+	public boolean isWatch() {
+		return watch;
+	}
+	public void setWatch(boolean watch) {
+		this.watch = watch;
+	}
+	public long getReconcileInterval() {
+		return reconcileInterval;
+	}
+	public void setReconcileInterval(long reconcileInterval) {
+		this.reconcileInterval = reconcileInterval;
+	}
+	public String getJobFilePath() {
+		return jobFilePath;
+	}
+	public void setJobFilePath(String jobFilePath) {
+		this.jobFilePath = jobFilePath;
+	}
+	public long getBandwidth() {
+		return bandwidth;
+	}
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+	public String getEngine() {
+		return engine;
+	}
+	public void setEngine(String engine) {
+		this.engine = engine;
+	}
+	public String getShard() {
+		return shard;
+	}
+	public void setShard(String shard) {
+		this.shard = shard;
+	}
+	public String getShardBalanceFilePath() {
+		return shardBalanceFilePath;
+	}
+	public void setShardBalanceFilePath(String shardBalanceFilePath) {
+		this.shardBalanceFilePath = shardBalanceFilePath;
+	}
+	public String getSnapshotFilePath() {
+		return snapshotFilePath;
+	}
+	public void setSnapshotFilePath(String snapshotFilePath) {
+		this.snapshotFilePath = snapshotFilePath;
+	}
+	public boolean isFullScan() {
+		return fullScan;
+	}
+	public void setFullScan(boolean fullScan) {
+		this.fullScan = fullScan;
+	}
+}
@@ -0,0 +1,52 @@
+package com.selivonchyks.azureupload;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads running uploads. Pool engine keeps a fixed pool of upload threads, every thread takes the next file once
+ * it's done with the previous one. Virtual engine starts a thread per file and limits the count of files in flight
+ * by a semaphore, so thousands of small files might be in flight to hide request latency. Virtual threads are used
+ * when the runtime has them (Java 21+), otherwise platform threads with small stacks.
+ */
+public class UploadThreads {
+	public enum Engine {
+		/** fixed pool of upload threads */
+		POOL,
+		/** thread per file in flight */
+		VIRTUAL
+	}
+
+	// stack size of platform threads used when virtual threads are not available
+	static final long PLATFORM_THREAD_STACK_SIZE = 256 * 1024;
+
+	/**
+	 * @return factory of virtual threads or null if the runtime doesn't support them
+	 */
+	public static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+		try {
+			// Thread.ofVirtual().name(namePrefix, 0).factory(), called reflectively since the project targets Java 7
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return factory of daemon platform threads with small stacks
+	 */
+	public static ThreadFactory newPlatformThreadFactory(final String namePrefix) {
+		final AtomicInteger threadsNumber = new AtomicInteger(0);
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(null, r, namePrefix + threadsNumber.getAndIncrement(), PLATFORM_THREAD_STACK_SIZE);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -10,7 +10,10 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 	UploadedFileLogItem.FILE_SIZE,
 	UploadedFileLogItem.UPLOAD_DATE,
 	UploadedFileLogItem.LAST_MODIFICATION,
-	UploadedFileLogItem.HASH
+	UploadedFileLogItem.HASH,
+	UploadedFileLogItem.ARCHIVE,
+	UploadedFileLogItem.ARCHIVE_OFFSET,
+	UploadedFileLogItem.BLOB
 })
 public class UploadedFileLogItem implements Serializable {
 	private static final long serialVersionUID = 8011072622156570566L;
@@ -20,6 +23,9 @@ public class UploadedFileLogItem implements Serializable {
 	public static final String LAST_MODIFICATION = "last_modification";
 	public static final String UPLOAD_DATE = "uploaded";
 	public static final String HASH = "hash";
+	public static final String ARCHIVE = "archive";
+	public static final String ARCHIVE_OFFSET = "archive_offset";
+	public static final String BLOB = "blob";
 
 	@JsonProperty(value = UPLOADED_FILE_PATH, required = true)
 	private String path;
@@ -36,6 +42,15 @@ public class UploadedFileLogItem implements Serializable {
 	@JsonProperty(value = HASH, required = true)
 	private String hash;
 
+	@JsonProperty(value = ARCHIVE, required = false)
+	private String archive;
+
+	@JsonProperty(value = ARCHIVE_OFFSET, required = false)
+	private Long archive_offset;
+
+	@JsonProperty(value = BLOB, required = false)
+	private String blob;
+
 	public String getPath() {
 		return path;
 	}
@@ -66,4 +81,22 @@ public class UploadedFileLogItem implements Serializable {
 	public void setHash(String hash) {
 		this.hash = hash;
 	}
+	public String getArchive() {
+		return archive;
+	}
+	public void setArchive(String archive) {
+		this.archive = archive;
+	}
+	public Long getArchive_offset() {
+		return archive_offset;
+	}
+	public void setArchive_offset(Long archive_offset) {
+		this.archive_offset = archive_offset;
+	}
+	public String getBlob() {
+		return blob;
+	}
+	public void setBlob(String blob) {
+		this.blob = blob;
+	}
 }